@@ -0,0 +1,117 @@
+package no.fintlabs.cache
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jol.info.GraphLayout
+import org.pcollections.PSortedMap
+import org.pcollections.TreePMap
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Compares [TimestampIndex] with the persistent `TreePMap<SortKey, entry>` it replaced in
+ * [FintCache].
+ *
+ * Run with `./gradlew jmh`. Throughput is reported per operation; the retained footprint of
+ * each structure, excluding the entries themselves, is printed per entry during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class SortIndexBenchmark {
+    @Param("10000", "300000")
+    var entries: Int = 0
+
+    private lateinit var elements: List<Entry>
+    private lateinit var treeMap: PSortedMap<SortKey, Entry>
+    private lateinit var timestampIndex: TimestampIndex<Entry>
+    private var next = 0
+
+    data class SortKey(
+        val timestamp: Long,
+        val resourceId: String,
+    ) : Comparable<SortKey> {
+        override fun compareTo(other: SortKey): Int {
+            val cmp = timestamp.compareTo(other.timestamp)
+            return if (cmp != 0) cmp else resourceId.compareTo(other.resourceId)
+        }
+    }
+
+    class Entry(
+        override val timestamp: Long,
+        override val resourceId: String,
+    ) : TimestampIndex.Element
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val random = Random(42)
+        elements = List(entries) { Entry(random.nextLong(0, entries / 10L + 1), "resource-$it") }
+        treeMap = buildTreeMap()
+        timestampIndex = buildTimestampIndex()
+
+        val shared = GraphLayout.parseInstance(elements)
+        println()
+        println("TreePMap bytes/entry: ${GraphLayout.parseInstance(treeMap).subtract(shared).totalSize() / entries}")
+        println(
+            "TimestampIndex bytes/entry: ${GraphLayout
+                .parseInstance(
+                    timestampIndex,
+                ).subtract(shared)
+                .totalSize() / entries}",
+        )
+    }
+
+    @Benchmark
+    fun treeMapBuild(): PSortedMap<SortKey, Entry> = buildTreeMap()
+
+    @Benchmark
+    fun timestampIndexBuild(): TimestampIndex<Entry> = buildTimestampIndex()
+
+    @Benchmark
+    fun treeMapReplace(): PSortedMap<SortKey, Entry> {
+        val old = elements[next++ % entries]
+        val new = Entry(old.timestamp + entries, old.resourceId)
+        return treeMap.minus(SortKey(old.timestamp, old.resourceId)).plus(SortKey(new.timestamp, new.resourceId), new)
+    }
+
+    @Benchmark
+    fun timestampIndexReplace(): TimestampIndex<Entry> {
+        val old = elements[next++ % entries]
+        val new = Entry(old.timestamp + entries, old.resourceId)
+        return timestampIndex.minus(old.timestamp, old.resourceId).plus(new)
+    }
+
+    @Benchmark
+    fun treeMapIterate(blackhole: Blackhole) = treeMap.values.forEach { blackhole.consume(it) }
+
+    @Benchmark
+    fun timestampIndexIterate(blackhole: Blackhole) = timestampIndex.forEach { blackhole.consume(it) }
+
+    @Benchmark
+    fun treeMapTail(blackhole: Blackhole) =
+        treeMap.tailMap(SortKey(entries / 20L, "")).values.forEach { blackhole.consume(it) }
+
+    @Benchmark
+    fun timestampIndexTail(blackhole: Blackhole) =
+        timestampIndex.iteratorFrom(entries / 20L, "", inclusive = true).forEach { blackhole.consume(it) }
+
+    private fun buildTreeMap(): PSortedMap<SortKey, Entry> =
+        elements.fold(TreePMap.empty()) { acc, entry -> acc.plus(SortKey(entry.timestamp, entry.resourceId), entry) }
+
+    private fun buildTimestampIndex(): TimestampIndex<Entry> =
+        elements.fold(TimestampIndex.empty()) { acc, entry -> acc.plus(entry) }
+}
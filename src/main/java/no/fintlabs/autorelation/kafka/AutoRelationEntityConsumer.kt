@@ -13,23 +13,35 @@ import no.novari.kafka.consuming.ListenerConfiguration
 import no.novari.kafka.consuming.ParameterizedListenerContainerFactoryService
 import no.novari.kafka.topic.name.EntityTopicNameParameters
 import no.novari.kafka.topic.name.TopicNamePrefixParameters
+import org.apache.kafka.clients.consumer.Consumer
 import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.common.TopicPartition
 import org.slf4j.LoggerFactory
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
+import org.springframework.context.event.EventListener
+import org.springframework.kafka.event.ListenerContainerPartitionIdleEvent
 import org.springframework.kafka.listener.ConcurrentMessageListenerContainer
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener
+import java.time.Duration
 
 @Configuration
 class AutoRelationEntityConsumer(
     private val consumerConfig: ConsumerConfiguration,
     private val relationEventService: RelationEventService,
+    private val autoRelationHandover: AutoRelationHandover,
 ) {
     companion object {
         private val logger = LoggerFactory.getLogger(AutoRelationEntityConsumer::class.java)
         private const val CONSUMER_NAME = "autorelation-entity"
+
+        // How often the handed over partitions, paused and so without records, are committed
+        private val HANDOVER_COMMIT_INTERVAL = Duration.ofSeconds(10)
     }
 
+    private var container: ConcurrentMessageListenerContainer<String, Any>? = null
+
     @Bean
     @ConditionalOnProperty(
         name = ["fint.consumer.autorelation.enabled"],
@@ -67,6 +79,13 @@ class AutoRelationEntityConsumer(
                     container.containerProperties.idleBetweenPolls = consumerConfig.kafka.idleBetweenPolls
                     container.applyConsumerFetchSettings(consumerConfig.kafka)
                     container.applyStartupJitter(consumerConfig.kafka)
+                    if (consumerConfig.kafka.sharedEntityRead) {
+                        container.containerProperties.idlePartitionEventInterval = HANDOVER_COMMIT_INTERVAL.toMillis()
+                        container.containerProperties.setConsumerRebalanceListener(
+                            releaseHandoverOnRevocation(container),
+                        )
+                        this.container = container
+                    }
                 },
             ).createContainer(
                 EntityTopicNameParameters
@@ -82,6 +101,8 @@ class AutoRelationEntityConsumer(
             )
 
     fun consumeRecord(consumerRecord: ConsumerRecord<String, Any?>) {
+        if (consumerConfig.kafka.sharedEntityRead && !takeFromHandover(consumerRecord)) return
+
         consumerRecord
             .value()
             ?.let { resource ->
@@ -93,6 +114,58 @@ class AutoRelationEntityConsumer(
             }
     }
 
+    /**
+     * Whether this consumer publishes the relations of [consumerRecord] itself, pausing its
+     * partition once [AutoRelationHandover] has handed it over to the entity consumer.
+     */
+    private fun takeFromHandover(consumerRecord: ConsumerRecord<String, Any?>): Boolean {
+        val partition = TopicPartition(consumerRecord.topic(), consumerRecord.partition())
+        val taken = autoRelationHandover.take(partition, consumerRecord.offset())
+        container?.let {
+            if (autoRelationHandover.isHandedOver(partition) && !it.isPartitionPauseRequested(partition)) {
+                logger.info("Handing relations of {} over to the entity consumer", partition)
+                it.pausePartition(partition)
+            }
+        }
+        return taken
+    }
+
+    /**
+     * Commits the entity consumer's progress on a handed over partition for the autorelation
+     * group. A paused partition gets no records, so its idle event comes every
+     * [HANDOVER_COMMIT_INTERVAL] however busy the other partitions of the consumer are. Idle
+     * events are published on the consumer thread, so the consumer is safe to use.
+     */
+    @EventListener
+    fun commitHandedOverPartition(event: ListenerContainerPartitionIdleEvent) {
+        val listenerId = container?.listenerId ?: return
+        if (!event.listenerId.startsWith(listenerId)) return
+
+        val offsets = autoRelationHandover.commitOffsets(listOf(event.topicPartition))
+        if (offsets.isNotEmpty()) {
+            event.consumer.commitSync(offsets)
+        }
+    }
+
+    /**
+     * Commits the handed over partitions being revoked and takes them back, so the next owner
+     * continues after the entity consumer's progress and a later assignment starts unpaused.
+     */
+    private fun releaseHandoverOnRevocation(container: ConcurrentMessageListenerContainer<String, Any>) =
+        object : ConsumerAwareRebalanceListener {
+            override fun onPartitionsRevokedAfterCommit(
+                consumer: Consumer<*, *>,
+                partitions: Collection<TopicPartition>,
+            ) {
+                val offsets = autoRelationHandover.commitOffsets(partitions)
+                if (offsets.isNotEmpty()) {
+                    consumer.commitSync(offsets)
+                }
+                autoRelationHandover.release(partitions)
+                partitions.forEach(container::resumePartition)
+            }
+        }
+
     private fun ConsumerRecord<String, Any?>.getResourceName(): String =
         headers().stringValue(RESOURCE_NAME) ?: throw IllegalArgumentException("Resource name header not found")
 }
@@ -0,0 +1,114 @@
+package no.fintlabs.autorelation.kafka
+
+import no.fintlabs.cache.CacheSnapshotService
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import org.springframework.stereotype.Component
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Hands relation publishing for the partitions of the entity topic over from
+ * [AutoRelationEntityConsumer] to [no.fintlabs.consumer.kafka.entity.EntityConsumer], so with
+ * [no.fintlabs.consumer.config.KafkaConfiguration.sharedEntityRead] each record is fetched and
+ * decoded once.
+ *
+ * The autorelation consumer group still decides which pod publishes the relations of which
+ * partition. Once the autorelation consumer of a partition has caught up with the entity
+ * consumer, which reads every partition anyway, it hands the records from there on over in
+ * [take] and pauses the partition. The entity consumer then publishes the relations of the
+ * records it [claim]s from that point on, along with applying them to the cache.
+ *
+ * The entity consumer's progress on a handed over partition is committed for the autorelation
+ * group through [commitOffsets], so the next owner of the partition continues from there. A
+ * record is only counted once it has been applied by the entity consumer, so relations may be
+ * published twice around a rebalance, as they may without a handover, but never skipped.
+ */
+@Component
+class AutoRelationHandover(
+    private val cacheSnapshotService: CacheSnapshotService,
+) {
+    private val partitions = ConcurrentHashMap<TopicPartition, PartitionState>()
+
+    private class PartitionState {
+        /** Offset of the next record the entity consumer reads, or `null` before its first. */
+        var entityNext: Long? = null
+
+        /** Offset the entity consumer publishes relations from, or `null` if not handed over. */
+        var handover: Long? = null
+    }
+
+    /**
+     * Called by the entity consumer for each record of [partition] in the order they are read.
+     *
+     * @return whether the entity consumer publishes the relations of the record at [offset].
+     */
+    fun claim(
+        partition: TopicPartition,
+        offset: Long,
+    ): Boolean {
+        val state = state(partition)
+        synchronized(state) {
+            state.entityNext = offset + 1
+            return state.handover?.let { offset >= it } ?: false
+        }
+    }
+
+    /**
+     * Called by the autorelation consumer for each record of [partition] in the order they are
+     * read. Hands the partition over from the record after [offset] once the entity consumer
+     * hasn't read past [offset] yet.
+     *
+     * Records still delivered after the partition has been paused are published here as well,
+     * moving the handover along, unless the entity consumer has claimed them already. That way
+     * every offset the autorelation consumer commits has been published by one of the two.
+     *
+     * @return whether the autorelation consumer publishes the relations of the record at
+     *   [offset] itself.
+     */
+    fun take(
+        partition: TopicPartition,
+        offset: Long,
+    ): Boolean {
+        val state = state(partition)
+        synchronized(state) {
+            val entityNext = state.entityNext ?: return true
+            val handover = state.handover
+            if (handover != null && offset >= handover && entityNext > offset) return false
+            if (entityNext <= offset + 1) {
+                state.handover = offset + 1
+            }
+            return true
+        }
+    }
+
+    /**
+     * Whether relation publishing for [partition] has been handed over to the entity consumer.
+     */
+    fun isHandedOver(partition: TopicPartition): Boolean =
+        partitions[partition]?.let { synchronized(it) { it.handover != null } } ?: false
+
+    /**
+     * The offsets to commit for the autorelation group on the handed over [partitions]: the
+     * offset after the last record applied by the entity consumer, but never before the handover.
+     */
+    fun commitOffsets(partitions: Collection<TopicPartition>): Map<TopicPartition, OffsetAndMetadata> =
+        partitions
+            .mapNotNull { partition ->
+                val handover = this.partitions[partition]?.let { synchronized(it) { it.handover } }
+                handover?.let {
+                    partition to OffsetAndMetadata(maxOf(it, cacheSnapshotService.resumeOffset(partition) ?: 0L))
+                }
+            }.toMap()
+
+    /**
+     * Take relation publishing for [partitions] back from the entity consumer, as they are no
+     * longer assigned to this pod's autorelation consumer.
+     */
+    fun release(partitions: Collection<TopicPartition>) {
+        partitions.forEach { partition ->
+            this.partitions[partition]?.let { synchronized(it) { it.handover = null } }
+        }
+    }
+
+    private fun state(partition: TopicPartition) = partitions.computeIfAbsent(partition) { PartitionState() }
+}
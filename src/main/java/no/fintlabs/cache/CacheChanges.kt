@@ -0,0 +1,30 @@
+package no.fintlabs.cache
+
+/**
+ * Changes to a [FintCache] since a point in time.
+ *
+ * [updated] holds the resources written since then and [removed] the resources removed since
+ * then that are not in the cache anymore. Both are in ascending `(timestamp, resourceId)` order.
+ * [lastUpdated] is the timestamp to ask for the next changes from.
+ */
+data class CacheChanges<out E>(
+    val lastUpdated: Long,
+    val updated: List<E>,
+    val removed: List<Removal>,
+) {
+    fun <R> map(transform: (E) -> R): CacheChanges<R> = CacheChanges(lastUpdated, updated.map(transform), removed)
+
+    fun <R : Any> mapNotNull(transform: (E) -> R?): CacheChanges<R> =
+        CacheChanges(lastUpdated, updated.mapNotNull(transform), removed)
+}
+
+/**
+ * A resource removed from a [FintCache], either by [FintCache.remove] or because it expired.
+ */
+class Removal(
+    override val resourceId: String,
+    /** Timestamp of the removal. */
+    override val timestamp: Long,
+    /** Identifier values of the removed resource by lowercase identifier field name. */
+    val identifiers: Map<String, Any>,
+) : TimestampIndex.Element
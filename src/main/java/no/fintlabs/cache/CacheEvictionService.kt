@@ -4,6 +4,7 @@ import io.micrometer.core.instrument.MeterRegistry
 import io.micrometer.core.instrument.Timer
 import no.fintlabs.autorelation.RelationEventService
 import no.fintlabs.consumer.config.ConsumerConfiguration
+import no.fintlabs.consumer.resource.ResourceChangeService
 import no.novari.fint.model.resource.FintResource
 import org.slf4j.LoggerFactory
 import org.springframework.scheduling.annotation.Async
@@ -19,6 +20,7 @@ class CacheEvictionService(
     private val relationEventService: RelationEventService,
     private val consumerConfiguration: ConsumerConfiguration,
     private val meterRegistry: MeterRegistry,
+    private val resourceChangeService: ResourceChangeService,
 ) {
     private val evictionStates = ConcurrentHashMap<String, EvictionState>()
 
@@ -67,15 +69,19 @@ class CacheEvictionService(
                 cacheService.getCache(resourceName)
             }
         timed(resourceName, "eviction.cache.evictExpired") {
-            cache
-                .evictExpired(startTimestamp)
-                .forEach {
-                    if (consumerConfiguration.autorelation.enabled) {
-                        timed(resourceName, "eviction.relation.removeRelations") {
-                            publishRelationDeleteRequest(resourceName, it.first, it.second)
-                        }
+            // The evicted resources are only read when something is told about them.
+            val readResources =
+                consumerConfiguration.autorelation.enabled || resourceChangeService.hasSubscribers(resourceName)
+            val evicted = cache.evictExpired(startTimestamp, readResources)
+            val evictedAt = cache.lastUpdated
+            evicted.forEach {
+                if (consumerConfiguration.autorelation.enabled) {
+                    timed(resourceName, "eviction.relation.removeRelations") {
+                        publishRelationDeleteRequest(resourceName, it.first, it.second)
                     }
                 }
+                resourceChangeService.publishRemoval(resourceName, it.first, it.second, evictedAt)
+            }
         }
     }
 
@@ -0,0 +1,18 @@
+package no.fintlabs.cache
+
+/**
+ * One page read from a [FintCache].
+ *
+ * [nextCursor] points at the last of [items] and is only set when more entries follow.
+ * [totalItems] is the number of entries matching the read on all pages together.
+ */
+data class CachePage<E>(
+    val items: List<E>,
+    val nextCursor: PageCursor?,
+    val totalItems: Long,
+) {
+    fun <R> map(transform: (E) -> R): CachePage<R> = CachePage(items.map(transform), nextCursor, totalItems)
+
+    fun <R : Any> mapNotNull(transform: (E) -> R?): CachePage<R> =
+        CachePage(items.mapNotNull(transform), nextCursor, totalItems)
+}
@@ -0,0 +1,27 @@
+package no.fintlabs.cache
+
+import no.novari.fint.model.resource.FintResource
+
+/**
+ * One write of a [FintCache.putAll] batch, taking the arguments [FintCache.put] or
+ * [FintCache.putLazy] would.
+ */
+class CachePut<T : FintResource> private constructor(
+    val resourceId: String,
+    private val decoded: T?,
+    val timestamp: Long,
+    /** The resource to store when it is written with [FintCache.putLazy], otherwise `null`. */
+    val lazyResource: LazyResource<T>?,
+) {
+    constructor(resourceId: String, resource: T, timestamp: Long) : this(resourceId, resource, timestamp, null)
+
+    constructor(
+        resourceId: String,
+        resource: LazyResource<T>,
+        timestamp: Long,
+    ) : this(resourceId, null, timestamp, resource)
+
+    /** The resource to store. Decodes a [lazyResource] that hasn't been read yet. */
+    val resource: T
+        get() = decoded ?: requireNotNull(lazyResource).resource
+}
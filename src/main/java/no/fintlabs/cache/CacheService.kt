@@ -1,16 +1,128 @@
 package no.fintlabs.cache
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import no.fintlabs.consumer.config.CacheProperties
+import no.fintlabs.consumer.config.CacheProperties.StorageMode
+import no.fintlabs.consumer.links.LinkService
+import no.fintlabs.consumer.resource.context.ResourceContext
 import no.novari.fint.model.resource.FintResource
+import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
 import java.util.concurrent.ConcurrentHashMap
 
 @Service
-class CacheService {
+class CacheService(
+    private val cacheProperties: CacheProperties,
+    private val objectMapper: ObjectMapper,
+    private val resourceContext: ResourceContext,
+    private val linkService: LinkService,
+) {
     private val resourceCaches: MutableMap<String, FintCache<FintResource>> =
         ConcurrentHashMap<String, FintCache<FintResource>>()
+    private val lazyResourceReaders = ConcurrentHashMap<String, LazyResourceReader<FintResource>>()
 
     fun getCachedResourceNames(): Set<String> = resourceCaches.keys
 
     fun getCache(resourceName: String): FintCache<FintResource> =
-        resourceCaches.computeIfAbsent(resourceName.lowercase()) { FintCache() }
+        resourceCaches.computeIfAbsent(resourceName.lowercase()) { createCache(it) }
+
+    /**
+     * Create an empty cache configured for [resourceName] without making it the resource's cache.
+     * Used to fill a cache completely before it is published with [register].
+     *
+     * The cache answers changes since [createdAt] only, see [FintCache.getChanges].
+     */
+    fun createCache(
+        resourceName: String,
+        createdAt: Long = System.currentTimeMillis(),
+    ): FintCache<FintResource> {
+        val config = cacheProperties.getResourceCacheConfig(resourceName)
+        return FintCache(
+            shardCount = config.shards,
+            storage = storageFor(resourceName, config),
+            filters = ODataFilterCache(config.filterCacheSize),
+            indexedFields = config.indexedFields,
+            removalLogSize = config.removalLogSize,
+            createdAt = createdAt,
+        )
+    }
+
+    /**
+     * Make [cache] the cache of [resourceName], replacing the current one.
+     */
+    fun register(
+        resourceName: String,
+        cache: FintCache<FintResource>,
+    ) {
+        resourceCaches[resourceName.lowercase()] = cache
+    }
+
+    private fun storageFor(
+        resourceName: String,
+        config: CacheProperties.ResourceCache,
+    ): EntryStorage<FintResource> =
+        when (config.storage) {
+            StorageMode.OBJECT -> {
+                ObjectStorage()
+            }
+
+            StorageMode.PRE_SERIALIZED -> {
+                PreSerializedStorage(objectMapper::writeValueAsBytes)
+            }
+
+            StorageMode.COMPRESSED -> {
+                codecFor(resourceName)?.let { CompressedStorage(it, config.hotTierSize) } ?: ObjectStorage()
+            }
+
+            StorageMode.OFF_HEAP -> {
+                codecFor(resourceName)?.let { OffHeapStorage(it, config.hotTierSize, config.offHeapBudget.toBytes()) }
+                    ?: ObjectStorage()
+            }
+        }
+
+    private fun codecFor(resourceName: String): ResourceCodec<FintResource>? {
+        val codec = resourceCodec(resourceName)
+        if (codec == null) {
+            logger.warn("No resource class known for {}, keeping cached resources as objects", resourceName)
+        }
+        return codec
+    }
+
+    /**
+     * Whether entity records of [resourceName] are to be kept undecoded until they are read, see
+     * [CacheProperties.ResourceCache.lazyDecode].
+     */
+    fun decodesLazily(resourceName: String): Boolean {
+        val config = cacheProperties.getResourceCacheConfig(resourceName)
+        return config.lazyDecode &&
+            config.storage == StorageMode.OBJECT &&
+            config.indexedFields.isEmpty() &&
+            resourceContext.getResource(resourceName) != null
+    }
+
+    /**
+     * Reader of raw JSON of [resourceName] for [FintCache.putLazy], mapping the links of every
+     * resource it decodes, or `null` if the resource class is not known.
+     */
+    fun lazyResourceReader(resourceName: String): LazyResourceReader<FintResource>? {
+        lazyResourceReaders[resourceName.lowercase()]?.let { return it }
+        val information = resourceContext.getResource(resourceName) ?: return null
+        return lazyResourceReaders.computeIfAbsent(resourceName.lowercase()) {
+            LazyResourceReader(
+                ResourceCodec(objectMapper, information.clazz),
+                objectMapper.factory,
+                information.idFieldNames,
+            ) { resource -> linkService.mapLinks(resourceName, resource) }
+        }
+    }
+
+    /**
+     * JSON codec for the resources of [resourceName], or `null` if the resource class is not known.
+     */
+    fun resourceCodec(resourceName: String): ResourceCodec<FintResource>? =
+        resourceContext.getResource(resourceName)?.clazz?.let { ResourceCodec(objectMapper, it) }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(CacheService::class.java)
+    }
 }
@@ -0,0 +1,391 @@
+package no.fintlabs.cache
+
+import jakarta.annotation.PreDestroy
+import no.fintlabs.consumer.config.CacheProperties
+import no.fintlabs.consumer.config.EndpointsConstants
+import no.novari.fint.model.resource.FintResource
+import org.apache.kafka.common.TopicPartition
+import org.slf4j.LoggerFactory
+import org.springframework.context.SmartLifecycle
+import org.springframework.http.MediaType
+import org.springframework.http.client.SimpleClientHttpRequestFactory
+import org.springframework.kafka.listener.AbstractMessageListenerContainer
+import org.springframework.scheduling.annotation.Scheduled
+import org.springframework.stereotype.Service
+import org.springframework.web.client.RestClient
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import java.util.stream.Stream
+import kotlin.concurrent.withLock
+
+/**
+ * Writes all resource caches to local disk periodically and restores them on startup, so a
+ * restarted pod only has to replay the entity records written since the last snapshot.
+ *
+ * The entity consumer reports every processed record through [recordProcessed]. A snapshot
+ * stores the offsets reported before the caches are read, so every record before those offsets
+ * is part of the snapshot. Records processed while the caches are read may be part of it too and
+ * are replayed once more after a restore, which the timestamp checks of [FintCache] make harmless.
+ *
+ * The sync tracker isn't part of a snapshot, so a full sync in progress when it is taken would
+ * never complete after a restore, and stale entries would not be evicted until the next full
+ * sync. The sync tracker therefore reports the records of every full sync through
+ * [fullSyncRecordProcessed] and [fullSyncCompleted], and a snapshot resumes no later than the
+ * first record of any full sync that hadn't completed by its offsets. The whole sync is replayed
+ * after a restore and completes as it would have. A full sync that fails stays in progress until
+ * the tracker gives up on it.
+ *
+ * A new pod can also bootstrap from a warm sibling instead: with
+ * [CacheProperties.Snapshot.peerUrl] set, a pod that has no snapshot of its own pulls one from the
+ * peer's [writeTo] endpoint and resumes from the offsets that came with it. Peers prove they
+ * belong to the component with [CacheProperties.Snapshot.peerToken].
+ *
+ * Caches are restored when the service is started, in the lifecycle phase right before the Kafka
+ * listener containers, so the entity consumer only starts once they are in place and the
+ * application context isn't held up while they are read.
+ *
+ * Restored caches are only published once every cache of the snapshot has been read. If the
+ * snapshot is missing, older than [CacheProperties.Snapshot.maxAge], or can't be read, nothing is
+ * restored and the entity topics are replayed from the beginning as before.
+ */
+@Service
+class CacheSnapshotService(
+    private val cacheService: CacheService,
+    cacheProperties: CacheProperties,
+) : SmartLifecycle {
+    private val config = cacheProperties.snapshot
+    private val store = CacheSnapshotStore(Path.of(config.directory))
+    private val writeLock = ReentrantLock()
+    private val processedOffsets = ConcurrentHashMap<TopicPartition, Long>()
+    private val fullSyncs = ConcurrentHashMap<String, FullSync>()
+
+    /** Where the records of a full sync in progress start, and where it completed once it has. */
+    private class FullSync {
+        val starts = ConcurrentHashMap<TopicPartition, Long>()
+
+        @Volatile
+        var completedAt: Pair<TopicPartition, Long>? = null
+
+        /** Whether the record completing the sync is before [offsets]. */
+        fun completedBefore(offsets: Map<TopicPartition, Long>) =
+            completedAt?.let { (partition, offset) -> (offsets[partition] ?: 0L) > offset } ?: false
+    }
+
+    @Volatile
+    private var running = false
+
+    /**
+     * Offsets the entity topics are resumed from, or `null` if no snapshot was restored and the
+     * topics have to be replayed from the beginning. Only known once the service is started.
+     */
+    @Volatile
+    var restoredOffsets: Map<TopicPartition, Long>? = null
+        private set
+
+    override fun start() {
+        if (running) return
+        running = true
+        restoredOffsets = (if (config.enabled) restore() else null) ?: config.peerUrl?.let(::bootstrapFromPeer)
+        restoredOffsets?.let(processedOffsets::putAll)
+    }
+
+    override fun stop() {
+        running = false
+    }
+
+    override fun isRunning() = running
+
+    override fun getPhase() = AbstractMessageListenerContainer.DEFAULT_PHASE - 1
+
+    /**
+     * Record that the entity record at [offset] of [partition] has been applied to the caches.
+     */
+    fun recordProcessed(
+        partition: TopicPartition,
+        offset: Long,
+    ) {
+        processedOffsets.merge(partition, offset + 1, ::maxOf)
+    }
+
+    /**
+     * Record that the record at [offset] of [partition] belongs to the full sync [correlationId],
+     * so snapshots resume from its first record until it has completed.
+     */
+    fun fullSyncRecordProcessed(
+        correlationId: String,
+        partition: TopicPartition,
+        offset: Long,
+    ) {
+        fullSyncs.computeIfAbsent(correlationId) { FullSync() }.starts.merge(partition, offset, ::minOf)
+    }
+
+    /**
+     * Record that the full sync [correlationId] completed with the record at [offset] of
+     * [partition]. Snapshots stop resuming from its start once they include that record.
+     */
+    fun fullSyncCompleted(
+        correlationId: String,
+        partition: TopicPartition,
+        offset: Long,
+    ) {
+        fullSyncs[correlationId]?.completedAt = Pair(partition, offset)
+    }
+
+    /**
+     * Forget the full sync [correlationId], which the sync tracker has given up on without it
+     * completing.
+     */
+    fun fullSyncAbandoned(correlationId: String) {
+        fullSyncs.remove(correlationId)
+    }
+
+    /**
+     * Offset to resume [partition] from: the one after the last processed record, or `null` if
+     * nothing has been processed or restored for it.
+     */
+    fun resumeOffset(partition: TopicPartition): Long? = processedOffsets[partition]
+
+    /**
+     * Whether records have been applied to the caches, so [writeTo] has a snapshot to serve.
+     */
+    val hasSnapshot: Boolean
+        get() = processedOffsets.isNotEmpty()
+
+    /** Whether [writeTo] is served to peers at all, which takes a [CacheProperties.Snapshot.peerToken]. */
+    val servesPeers: Boolean
+        get() = config.peerToken != null
+
+    /** Whether [token] is the [CacheProperties.Snapshot.peerToken] of the component. */
+    fun isPeer(token: String?): Boolean {
+        val peerToken = config.peerToken ?: return false
+        return token != null && MessageDigest.isEqual(token.toByteArray(), peerToken.toByteArray())
+    }
+
+    /**
+     * Stream a snapshot of all caches and the offsets it reflects to [output], in the form a peer
+     * bootstraps from.
+     *
+     * @throws IllegalStateException if there is nothing to snapshot yet, or a cache holds
+     *   resources of an unknown class.
+     */
+    fun writeTo(output: OutputStream) {
+        val offsets = snapshotOffsets()
+        check(offsets.isNotEmpty()) { "No records have been processed yet" }
+        val caches = checkNotNull(snapshotRecords()) { "Caches hold resources of unknown classes" }
+        CacheSnapshotStream.write(output, offsets, caches)
+    }
+
+    @Scheduled(
+        initialDelayString = "\${fint.consumer.cache.snapshot.interval:5m}",
+        fixedDelayString = "\${fint.consumer.cache.snapshot.interval:5m}",
+    )
+    fun writeSnapshot() {
+        if (!config.enabled) return
+
+        writeLock.withLock {
+            val offsets = snapshotOffsets()
+            if (offsets.isEmpty()) return
+            val caches = snapshotRecords() ?: return
+
+            val started = System.nanoTime()
+            try {
+                store.write(System.currentTimeMillis(), offsets, caches)
+                logger.info(
+                    "Wrote cache snapshot of {} resources in {} ms",
+                    caches.size,
+                    Duration.ofNanos(System.nanoTime() - started).toMillis(),
+                )
+            } catch (exception: IOException) {
+                logger.error("Failed to write cache snapshot to {}", config.directory, exception)
+            }
+        }
+    }
+
+    @PreDestroy
+    fun writeSnapshotOnShutdown() = writeSnapshot()
+
+    /**
+     * Offsets a snapshot taken now resumes from: the processed offsets, moved back to the first
+     * record of every full sync that hasn't completed before them.
+     *
+     * The processed offsets are read first, so every full sync record before them has been
+     * reported already.
+     */
+    private fun snapshotOffsets(): Map<TopicPartition, Long> {
+        val offsets = HashMap(processedOffsets)
+        fullSyncs.values.removeIf { it.completedBefore(offsets) }
+        fullSyncs.values.forEach { sync ->
+            sync.starts.forEach { (partition, start) -> offsets.merge(partition, start, ::minOf) }
+        }
+        return offsets
+    }
+
+    /**
+     * Lazily read records of every cache, or `null` if a cache holds resources of a class that is
+     * not known, since those could not be restored.
+     *
+     * A [LazyResource] that hasn't been read yet is written as the JSON it was received as, marked
+     * [CacheSnapshotStore.Record.raw], so taking a snapshot doesn't decode it. Its links are
+     * mapped once it is restored.
+     */
+    private fun snapshotRecords(): Map<String, Stream<CacheSnapshotStore.Record>>? {
+        val resourceNames = cacheService.getCachedResourceNames().toList()
+        val codecs = resourceNames.associateWith { cacheService.resourceCodec(it) }
+        val unknown = codecs.filterValues { it == null }.keys
+        if (unknown.isNotEmpty()) {
+            logger.warn("Skipping cache snapshot, no resource class known for {}", unknown)
+            return null
+        }
+
+        return resourceNames.associateWith { resourceName ->
+            val codec = codecs.getValue(resourceName)!!
+            cacheService.getCache(resourceName).entries().map { entry ->
+                val rawJson = (entry.stored as? LazyResource)?.rawJson
+                CacheSnapshotStore.Record(
+                    entry.resourceId,
+                    entry.timestamp,
+                    rawJson ?: entry.stored.json ?: codec.serialize(entry.stored.resource),
+                    raw = rawJson != null,
+                )
+            }
+        }
+    }
+
+    private fun restore(): Map<TopicPartition, Long>? {
+        val started = System.nanoTime()
+        try {
+            val snapshot = store.latest() ?: return null
+            val age = Duration.ofMillis(System.currentTimeMillis() - snapshot.createdAt)
+            if (age > config.maxAge) {
+                logger.info("Cache snapshot is {} old, replaying entity topics from the beginning", age)
+                return null
+            }
+
+            val restoredCaches = RestoredCaches(snapshot.createdAt)
+            snapshot.resourceNames.forEach { resourceName ->
+                snapshot.forEachRecord(resourceName) { restoredCaches.add(resourceName, it) }
+            }
+            restoredCaches.publish("cache snapshot taken $age ago", started)
+            return snapshot.offsets
+        } catch (exception: Exception) {
+            logger.warn("Could not restore cache snapshot, replaying entity topics from the beginning", exception)
+            return null
+        }
+    }
+
+    private fun bootstrapFromPeer(peerUrl: String): Map<TopicPartition, Long>? {
+        val started = System.nanoTime()
+        val requestedAt = System.currentTimeMillis()
+        try {
+            val restoredCaches = RestoredCaches(requestedAt)
+            val requestFactory =
+                SimpleClientHttpRequestFactory().apply {
+                    setConnectTimeout(config.peerConnectTimeout)
+                    setReadTimeout(config.peerReadTimeout)
+                }
+            val offsets =
+                RestClient
+                    .builder()
+                    .baseUrl(peerUrl)
+                    .requestFactory(requestFactory)
+                    .build()
+                    .get()
+                    .uri(EndpointsConstants.ADMIN + EndpointsConstants.CACHE_SNAPSHOT)
+                    .accept(MediaType.APPLICATION_OCTET_STREAM)
+                    .headers { headers -> config.peerToken?.let { headers.set(PEER_TOKEN_HEADER, it) } }
+                    .exchange { _, response ->
+                        if (!response.statusCode.is2xxSuccessful) {
+                            throw IOException("Peer answered ${response.statusCode}")
+                        }
+                        CacheSnapshotStream.read(response.body, restoredCaches::add)
+                    }
+            restoredCaches.publish("peer $peerUrl", started)
+            return offsets
+        } catch (exception: Exception) {
+            logger.warn(
+                "Could not bootstrap caches from {}, replaying entity topics from the beginning",
+                peerUrl,
+                exception,
+            )
+            return null
+        }
+    }
+
+    /**
+     * Caches filled from a snapshot, published together once the snapshot has been read completely.
+     *
+     * A snapshot holds no removals, so the removal log of every restored cache starts at the time
+     * the snapshot was [takenAt]. Removals after that are replayed from the entity topics.
+     *
+     * Records of lazily decoded resources are restored as [LazyResource]s again. Other
+     * [CacheSnapshotStore.Record.raw] records have their links mapped as they are decoded, as a
+     * [LazyResource] does on its first read, and are skipped if they don't fit the resource class.
+     * Every other record was written from a resource that was prepared already, and is only decoded.
+     */
+    private inner class RestoredCaches(
+        private val takenAt: Long,
+    ) {
+        private val caches = HashMap<String, FintCache<FintResource>>()
+        private val readers = HashMap<String, LazyResourceReader<FintResource>>()
+
+        fun add(
+            resourceName: String,
+            record: CacheSnapshotStore.Record,
+        ) {
+            val reader =
+                readers.getOrPut(resourceName) {
+                    cacheService.lazyResourceReader(resourceName)
+                        ?: throw IOException("No resource class known for $resourceName")
+                }
+            val cache = caches.getOrPut(resourceName) { cacheService.createCache(resourceName, takenAt) }
+            when {
+                !record.raw -> {
+                    cache.put(record.resourceId, reader.decode(record.json), record.timestamp)
+                }
+
+                cache.supportsLazyEntries && cacheService.decodesLazily(resourceName) -> {
+                    cache.putLazy(record.resourceId, reader.read(record.json), record.timestamp)
+                }
+
+                else -> {
+                    try {
+                        cache.put(record.resourceId, reader.materialize(record.json), record.timestamp)
+                    } catch (exception: UndecodableResourceException) {
+                        logger.warn(
+                            "Skipping restored {} {} that can't be decoded",
+                            resourceName,
+                            record.resourceId,
+                            exception,
+                        )
+                    }
+                }
+            }
+        }
+
+        fun publish(
+            source: String,
+            started: Long,
+        ) {
+            caches.forEach(cacheService::register)
+            logger.info(
+                "Restored {} resources with {} entries from {} in {} ms",
+                caches.size,
+                caches.values.sumOf { it.size },
+                source,
+                Duration.ofNanos(System.nanoTime() - started).toMillis(),
+            )
+        }
+    }
+
+    companion object {
+        /** Request header peers send the [CacheProperties.Snapshot.peerToken] in. */
+        const val PEER_TOKEN_HEADER = "x-cache-snapshot-token"
+
+        private val logger = LoggerFactory.getLogger(CacheSnapshotService::class.java)
+    }
+}
@@ -0,0 +1,303 @@
+package no.fintlabs.cache
+
+import org.apache.kafka.common.TopicPartition
+import java.io.Closeable
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.stream.Stream
+import java.util.zip.CRC32
+import java.util.zip.CheckedOutputStream
+import kotlin.io.path.isDirectory
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+
+/**
+ * Snapshots of the resource caches on local disk, together with the Kafka offsets they reflect.
+ *
+ * Every snapshot is a directory holding a manifest and the files of every resource cache. It is
+ * written under a temporary name and renamed once complete, so a snapshot directory is never
+ * partially written, and older snapshots are deleted afterwards. Every file ends with a CRC32
+ * checksum of its contents and is read through a memory mapping, so restoring a cache copies the
+ * stored JSON straight out of the page cache.
+ *
+ * A memory mapping covers at most 2GB, so a cache is split across as many files of at most
+ * [maxFileSize] as it takes.
+ */
+class CacheSnapshotStore(
+    private val directory: Path,
+    private val maxFileSize: Long = DEFAULT_MAX_FILE_SIZE,
+) {
+    init {
+        require(maxFileSize in MIN_FILE_SIZE..Int.MAX_VALUE) { "maxFileSize out of range: $maxFileSize" }
+    }
+
+    /**
+     * One cache entry in a snapshot.
+     */
+    class Record(
+        val resourceId: String,
+        val timestamp: Long,
+        val json: ByteArray,
+        /**
+         * Whether [json] is the JSON of a [LazyResource] that hasn't been read yet, as it was
+         * received and before its links have been mapped.
+         */
+        val raw: Boolean = false,
+    )
+
+    /**
+     * A complete snapshot found on disk.
+     */
+    inner class Snapshot(
+        private val path: Path,
+        /** Time the snapshot was taken, in epoch milliseconds. */
+        val createdAt: Long,
+        /** Offset of the next record to read for every partition the snapshot reflects. */
+        val offsets: Map<TopicPartition, Long>,
+        val resourceNames: List<String>,
+        /** Number of files every cache of [resourceNames] is split across. */
+        private val fileCounts: List<Int>,
+    ) {
+        /**
+         * Run [action] on every record stored for [resourceName].
+         *
+         * @throws IOException if the cache file can't be read or does not match its checksum.
+         */
+        fun forEachRecord(
+            resourceName: String,
+            action: (Record) -> Unit,
+        ) {
+            val index = resourceNames.indexOf(resourceName)
+            require(index >= 0) { "Snapshot holds no cache for $resourceName" }
+
+            repeat(fileCounts[index]) { part ->
+                readFile(path.resolve(cacheFileName(index, part))) { buffer ->
+                    while (true) {
+                        val raw =
+                            when (buffer.get()) {
+                                ENTRY -> false
+                                RAW_ENTRY -> true
+                                else -> break
+                            }
+                        action(Record(buffer.getString(), buffer.getLong(), buffer.getByteArray(), raw))
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of [caches] that reflects every record before [offsets], replacing the
+     * snapshots written before.
+     */
+    fun write(
+        createdAt: Long,
+        offsets: Map<TopicPartition, Long>,
+        caches: Map<String, Stream<Record>>,
+    ) {
+        Files.createDirectories(directory)
+        val temporary = directory.resolve("$TEMPORARY_PREFIX$createdAt")
+        val target = directory.resolve("$SNAPSHOT_PREFIX$createdAt")
+        deleteRecursively(temporary)
+        Files.createDirectory(temporary)
+
+        try {
+            val resourceNames = caches.keys.toList()
+            val fileCounts =
+                resourceNames.mapIndexed { index, resourceName ->
+                    caches.getValue(resourceName).use { records -> writeCache(temporary, index, records) }
+                }
+            writeFile(temporary.resolve(MANIFEST)) { out ->
+                out.writeLong(createdAt)
+                out.writeInt(offsets.size)
+                offsets.forEach { (partition, offset) ->
+                    out.writeString(partition.topic())
+                    out.writeInt(partition.partition())
+                    out.writeLong(offset)
+                }
+                out.writeInt(resourceNames.size)
+                resourceNames.forEachIndexed { index, resourceName ->
+                    out.writeString(resourceName)
+                    out.writeInt(fileCounts[index])
+                }
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE)
+        } catch (exception: IOException) {
+            deleteRecursively(temporary)
+            throw exception
+        }
+
+        directory
+            .listDirectoryEntries()
+            .filter { it != target && (createdAtOf(it) != null || it.name.startsWith(TEMPORARY_PREFIX)) }
+            .forEach(::deleteRecursively)
+    }
+
+    /**
+     * The most recent snapshot, or `null` if there is none.
+     *
+     * @throws IOException if the manifest of the snapshot can't be read or does not match its
+     *   checksum.
+     */
+    fun latest(): Snapshot? {
+        if (!directory.isDirectory()) return null
+        val path =
+            directory
+                .listDirectoryEntries()
+                .filter { it.isDirectory() }
+                .maxByOrNull { createdAtOf(it) ?: Long.MIN_VALUE }
+                ?.takeIf { createdAtOf(it) != null }
+                ?: return null
+
+        return readFile(path.resolve(MANIFEST)) { buffer ->
+            val createdAt = buffer.getLong()
+            val offsets =
+                (0 until buffer.getInt()).associate {
+                    TopicPartition(buffer.getString(), buffer.getInt()) to buffer.getLong()
+                }
+            val caches = List(buffer.getInt()) { buffer.getString() to buffer.getInt() }
+            Snapshot(path, createdAt, offsets, caches.map { it.first }, caches.map { it.second })
+        }
+    }
+
+    /**
+     * Write [records] into the files of the cache at [index], starting a new file whenever the
+     * next record would take the current one past [maxFileSize].
+     *
+     * @return the number of files written.
+     */
+    private fun writeCache(
+        snapshot: Path,
+        index: Int,
+        records: Stream<Record>,
+    ): Int {
+        var fileCount = 1
+        var file = SnapshotFile(snapshot.resolve(cacheFileName(index, 0)))
+        try {
+            records.forEach { record ->
+                val resourceId = record.resourceId.toByteArray(Charsets.UTF_8)
+                val entrySize = ENTRY_OVERHEAD + resourceId.size + record.json.size
+                if (file.size > HEADER_SIZE && file.size + entrySize + END_SIZE + CHECKSUM_SIZE > maxFileSize) {
+                    file.out.writeByte(END.toInt())
+                    file.close()
+                    file = SnapshotFile(snapshot.resolve(cacheFileName(index, fileCount++)))
+                }
+                file.out.writeByte((if (record.raw) RAW_ENTRY else ENTRY).toInt())
+                file.out.writeByteArray(resourceId)
+                file.out.writeLong(record.timestamp)
+                file.out.writeByteArray(record.json)
+            }
+            file.out.writeByte(END.toInt())
+        } finally {
+            file.close()
+        }
+        return fileCount
+    }
+
+    private fun writeFile(
+        file: Path,
+        body: (DataOutputStream) -> Unit,
+    ) = SnapshotFile(file).use { body(it.out) }
+
+    /**
+     * A file being written, with the header written on opening and the checksum on closing.
+     */
+    private class SnapshotFile(
+        file: Path,
+    ) : Closeable {
+        private val buffered = Files.newOutputStream(file).buffered(BUFFER_SIZE)
+        private val checksum = CRC32()
+        val out = DataOutputStream(CheckedOutputStream(buffered, checksum))
+
+        /** Bytes written so far, without the checksum. */
+        val size: Long
+            get() = out.size().toLong()
+
+        init {
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+        }
+
+        override fun close() {
+            buffered.use {
+                out.flush()
+                DataOutputStream(it).writeLong(checksum.value)
+            }
+        }
+    }
+
+    private fun <R> readFile(
+        file: Path,
+        body: (ByteBuffer) -> R,
+    ): R =
+        FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            val size = channel.size()
+            if (size < HEADER_SIZE + CHECKSUM_SIZE || size > Int.MAX_VALUE) throw corrupt(file)
+
+            val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+            val contentSize = (size - CHECKSUM_SIZE).toInt()
+            val checksum = CRC32().apply { update(buffer.slice(0, contentSize)) }
+            if (checksum.value != buffer.getLong(contentSize)) throw corrupt(file)
+
+            buffer.limit(contentSize)
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) throw corrupt(file)
+            try {
+                body(buffer)
+            } catch (_: BufferUnderflowException) {
+                throw corrupt(file)
+            }
+        }
+
+    private fun createdAtOf(path: Path): Long? =
+        if (path.name.startsWith(SNAPSHOT_PREFIX)) path.name.removePrefix(SNAPSHOT_PREFIX).toLongOrNull() else null
+
+    private fun deleteRecursively(path: Path) {
+        if (!Files.exists(path)) return
+        Files.walk(path).use { paths -> paths.sorted(Comparator.reverseOrder()).forEach(Files::delete) }
+    }
+
+    private fun corrupt(file: Path) = IOException("Snapshot file $file is corrupt")
+
+    private fun ByteBuffer.getString(): String = String(getByteArray(), Charsets.UTF_8)
+
+    private fun ByteBuffer.getByteArray(): ByteArray = ByteArray(getInt()).also { get(it) }
+
+    companion object {
+        private const val MAGIC = 0x46435348 // "FCSH"
+        private const val VERSION = 3
+        private const val HEADER_SIZE = 8
+        private const val CHECKSUM_SIZE = 8
+        private const val END_SIZE = 1
+
+        /** Entry marker, resource id length, timestamp and JSON length. */
+        private const val ENTRY_OVERHEAD = 1 + 4 + 8 + 4
+        private const val MIN_FILE_SIZE = 64L
+        private const val DEFAULT_MAX_FILE_SIZE = 1L shl 30
+        private const val ENTRY: Byte = 1
+        private const val RAW_ENTRY: Byte = 3
+        private const val END: Byte = 0
+        private const val BUFFER_SIZE = 1 shl 16
+        private const val MANIFEST = "manifest"
+        private const val SNAPSHOT_PREFIX = "snapshot-"
+        private const val TEMPORARY_PREFIX = "tmp-"
+
+        private fun cacheFileName(
+            index: Int,
+            part: Int,
+        ) = "cache-$index-$part"
+    }
+}
+
+internal fun DataOutputStream.writeString(value: String) = writeByteArray(value.toByteArray(Charsets.UTF_8))
+
+internal fun DataOutputStream.writeByteArray(value: ByteArray) {
+    writeInt(value.size)
+    write(value)
+}
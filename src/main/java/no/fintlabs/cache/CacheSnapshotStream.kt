@@ -0,0 +1,120 @@
+package no.fintlabs.cache
+
+import org.apache.kafka.common.TopicPartition
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.stream.Stream
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.CheckedOutputStream
+
+/**
+ * Single-stream form of a cache snapshot, sent by a warm pod to a new one that bootstraps from it.
+ *
+ * The stream holds the offsets first and then the records of every cache, and ends with a CRC32
+ * checksum of everything before it. A reader only knows the stream is complete once the checksum
+ * has been read, so it must not publish anything it restored before [read] returns.
+ */
+object CacheSnapshotStream {
+    private const val MAGIC = 0x46435354 // "FCST"
+    private const val VERSION = 2
+    private const val CACHE: Byte = 2
+    private const val ENTRY: Byte = 1
+    private const val RAW_ENTRY: Byte = 3
+    private const val END: Byte = 0
+    private const val BUFFER_SIZE = 1 shl 16
+    private const val MAX_FIELD_SIZE = 1 shl 28
+
+    /**
+     * Write a snapshot of [caches] that reflects every record before [offsets] to [output].
+     */
+    fun write(
+        output: OutputStream,
+        offsets: Map<TopicPartition, Long>,
+        caches: Map<String, Stream<CacheSnapshotStore.Record>>,
+    ) {
+        val buffered = output.buffered(BUFFER_SIZE)
+        val checksum = CRC32()
+        val out = DataOutputStream(CheckedOutputStream(buffered, checksum))
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeInt(offsets.size)
+        offsets.forEach { (partition, offset) ->
+            out.writeString(partition.topic())
+            out.writeInt(partition.partition())
+            out.writeLong(offset)
+        }
+        caches.forEach { (resourceName, records) ->
+            out.writeByte(CACHE.toInt())
+            out.writeString(resourceName)
+            records.use {
+                it.forEach { record ->
+                    out.writeByte((if (record.raw) RAW_ENTRY else ENTRY).toInt())
+                    out.writeString(record.resourceId)
+                    out.writeLong(record.timestamp)
+                    out.writeByteArray(record.json)
+                }
+            }
+            out.writeByte(END.toInt())
+        }
+        out.writeByte(END.toInt())
+        out.flush()
+        DataOutputStream(buffered).writeLong(checksum.value)
+        buffered.flush()
+    }
+
+    /**
+     * Read a snapshot written by [write] from [input], handing every record to [action] together
+     * with the name of the resource it belongs to.
+     *
+     * @return the offsets the snapshot reflects.
+     * @throws IOException if the stream ends early or does not match its checksum.
+     */
+    fun read(
+        input: InputStream,
+        action: (resourceName: String, record: CacheSnapshotStore.Record) -> Unit,
+    ): Map<TopicPartition, Long> {
+        val buffered = input.buffered(BUFFER_SIZE)
+        val checksum = CRC32()
+        val data = DataInputStream(CheckedInputStream(buffered, checksum))
+        try {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) throw IOException("Not a cache snapshot stream")
+            val offsets =
+                (0 until data.readInt()).associate {
+                    TopicPartition(data.readString(), data.readInt()) to data.readLong()
+                }
+            while (data.readByte() == CACHE) {
+                val resourceName = data.readString()
+                while (true) {
+                    val raw =
+                        when (data.readByte()) {
+                            ENTRY -> false
+                            RAW_ENTRY -> true
+                            else -> break
+                        }
+                    action(
+                        resourceName,
+                        CacheSnapshotStore.Record(data.readString(), data.readLong(), data.readByteArray(), raw),
+                    )
+                }
+            }
+            val expected = checksum.value
+            if (DataInputStream(buffered).readLong() != expected) throw IOException("Cache snapshot stream is corrupt")
+            return offsets
+        } catch (exception: EOFException) {
+            throw IOException("Cache snapshot stream ended early", exception)
+        }
+    }
+
+    private fun DataInputStream.readString(): String = String(readByteArray(), Charsets.UTF_8)
+
+    private fun DataInputStream.readByteArray(): ByteArray {
+        val size = readInt()
+        if (size !in 0..MAX_FIELD_SIZE) throw IOException("Cache snapshot stream is corrupt")
+        return ByteArray(size).also { readFully(it) }
+    }
+}
@@ -0,0 +1,13 @@
+package no.fintlabs.cache
+
+/**
+ * Version of a [FintCache] or of one of its entries, for telling clients whether what they read
+ * before is still current.
+ *
+ * [version] only grows while [epoch] stays the same. [epoch] is drawn anew for every cache
+ * instance, so a version seen on another pod or before a restart never matches by accident.
+ */
+data class CacheVersion(
+    val epoch: Long,
+    val version: Long,
+)
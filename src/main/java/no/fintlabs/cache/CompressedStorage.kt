@@ -0,0 +1,34 @@
+package no.fintlabs.cache
+
+import net.jpountz.lz4.LZ4Factory
+import no.novari.fint.model.resource.FintResource
+
+/**
+ * Keeps each entry as LZ4-compressed JSON and decodes it only when the resource is read.
+ *
+ * The JSON itself is restored by decompressing, which is cheap compared to serializing the
+ * resource again, so the storage also serves pre-serialized responses.
+ */
+class CompressedStorage<T : FintResource>(
+    codec: ResourceCodec<T>,
+    hotTierSize: Long,
+) : DecodingStorage<T>(codec, hotTierSize) {
+    override fun hold(json: ByteArray): HeldResource = CompressedResource(compressor.compress(json), json.size)
+
+    private inner class CompressedResource(
+        private val compressed: ByteArray,
+        override val length: Int,
+    ) : HeldResource() {
+        override val storedSize: Long
+            get() = compressed.size.toLong()
+
+        override val json: ByteArray
+            get() = decompressor.decompress(compressed, length)
+    }
+
+    companion object {
+        private val lz4 = LZ4Factory.fastestInstance()
+        private val compressor = lz4.fastCompressor()
+        private val decompressor = lz4.fastDecompressor()
+    }
+}
@@ -0,0 +1,90 @@
+package no.fintlabs.cache
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import no.novari.fint.model.resource.FintResource
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Base for storages that keep each entry as serialized JSON in some form and decode it only
+ * when the resource is read.
+ *
+ * Decoded resources are kept in a bounded hot tier of [hotTierSize] entries, so repeatedly read
+ * resources are not decoded on every request. Subclasses decide how the JSON is held through
+ * [hold].
+ */
+abstract class DecodingStorage<T : FintResource>(
+    private val codec: ResourceCodec<T>,
+    hotTierSize: Long,
+) : EntryStorage<T> {
+    private val hotTier: Cache<HeldResource, T> =
+        Caffeine
+            .newBuilder()
+            .maximumSize(hotTierSize)
+            .build()
+
+    private val serializedByteCount = AtomicLong(0L)
+    private val storedByteCount = AtomicLong(0L)
+    private val decodes = AtomicLong(0L)
+    private val decodeNanos = AtomicLong(0L)
+
+    override val storesSerializedJson: Boolean
+        get() = true
+
+    override val serializedBytes: Long
+        get() = serializedByteCount.get()
+
+    override val storedBytes: Long
+        get() = storedByteCount.get()
+
+    override val decodeCount: Long
+        get() = decodes.get()
+
+    override val decodeTimeNanos: Long
+        get() = decodeNanos.get()
+
+    override fun store(resource: T): StoredResource<T> {
+        val json = codec.serialize(resource)
+        val held = hold(json)
+        serializedByteCount.addAndGet(json.size.toLong())
+        storedByteCount.addAndGet(held.storedSize)
+        // The writer just produced this resource, so it is likely to be read again soon.
+        hotTier.put(held, resource)
+        return held
+    }
+
+    /**
+     * Take over the serialized JSON of a resource that is being stored.
+     */
+    protected abstract fun hold(json: ByteArray): HeldResource
+
+    /**
+     * Serialized resource as held by a subclass. [json] restores the serialized form.
+     */
+    protected abstract inner class HeldResource : StoredResource<T> {
+        /** Bytes held for this entry. */
+        abstract val storedSize: Long
+
+        /** Serialized (uncompressed) size of this entry. */
+        abstract val length: Int
+
+        abstract override val json: ByteArray
+
+        final override val resource: T
+            get() = hotTier.get(this) { decode() }
+
+        override fun release() {
+            serializedByteCount.addAndGet(-length.toLong())
+            storedByteCount.addAndGet(-storedSize)
+            hotTier.invalidate(this)
+        }
+
+        private fun decode(): T {
+            val start = System.nanoTime()
+            return codec.deserialize(json).also {
+                decodeNanos.addAndGet(System.nanoTime() - start)
+                decodes.incrementAndGet()
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package no.fintlabs.cache
+
+import no.novari.fint.model.resource.FintResource
+
+/**
+ * Decides how a [FintCache] holds the resource behind each entry.
+ *
+ * [store] runs once per write, before the shard lock is taken. The returned [StoredResource] is
+ * shared by every snapshot that contains the entry, so it must be safe to read concurrently.
+ */
+interface EntryStorage<T : FintResource> {
+    /** Whether every [StoredResource.json] is available without running the object mapper. */
+    val storesSerializedJson: Boolean
+        get() = false
+
+    /** Serialized (uncompressed) size of the live entries, in bytes. `0` when not tracked. */
+    val serializedBytes: Long
+        get() = 0L
+
+    /** Bytes actually held for the live entries. `0` when not tracked. */
+    val storedBytes: Long
+        get() = 0L
+
+    /** Bytes held outside the Java heap for the live entries. */
+    val offHeapBytes: Long
+        get() = 0L
+
+    /** Number of times a stored entry has been decoded back into a resource. */
+    val decodeCount: Long
+        get() = 0L
+
+    /** Total time spent decoding stored entries, in nanoseconds. */
+    val decodeTimeNanos: Long
+        get() = 0L
+
+    fun store(resource: T): StoredResource<T>
+}
+
+/**
+ * A resource as held by an [EntryStorage].
+ */
+interface StoredResource<T : FintResource> {
+    val resource: T
+
+    /** JSON representation of [resource], or `null` if the storage does not keep it. */
+    val json: ByteArray?
+
+    /**
+     * Called once the entry has been replaced, removed, or rejected, so the storage can update its
+     * accounting. Readers of older snapshots may still access the entry afterwards.
+     */
+    fun release() {}
+}
+
+/**
+ * An entry of a [FintCache] as returned by [FintCache.entries].
+ */
+class StoredEntry<T : FintResource>(
+    val resourceId: String,
+    val timestamp: Long,
+    val stored: StoredResource<T>,
+)
+
+/**
+ * Keeps the resource object as is. Responses serialize it on every request.
+ */
+class ObjectStorage<T : FintResource> : EntryStorage<T> {
+    override fun store(resource: T): StoredResource<T> = ObjectResource(resource, null)
+}
+
+/**
+ * Keeps the resource object together with its JSON, serialized once when the entry is stored.
+ */
+class PreSerializedStorage<T : FintResource>(
+    private val serializer: (T) -> ByteArray,
+) : EntryStorage<T> {
+    override val storesSerializedJson: Boolean
+        get() = true
+
+    override fun store(resource: T): StoredResource<T> = ObjectResource(resource, serializer(resource))
+}
+
+private class ObjectResource<T : FintResource>(
+    override val resource: T,
+    override val json: ByteArray?,
+) : StoredResource<T>
@@ -0,0 +1,91 @@
+package no.fintlabs.cache
+
+import org.pcollections.HashTreePSet
+import org.pcollections.PSet
+import org.pcollections.TreePMap
+
+/**
+ * Value of an [IndexedField] as it is kept in a [FieldIndex].
+ *
+ * Text is compared case-insensitively; whole numbers and dates are kept as [Long]s, so they can be
+ * looked up by range.
+ */
+data class FieldKey(
+    val field: String,
+    val kind: Kind,
+    val value: Comparable<*>,
+) : Comparable<FieldKey> {
+    enum class Kind { TEXT, NUMBER, DATE }
+
+    @Suppress("UNCHECKED_CAST")
+    override fun compareTo(other: FieldKey): Int =
+        compareValuesBy(this, other, { it.field }, { it.kind }).takeIf { it != 0 }
+            ?: (value as Comparable<Any>).compareTo(other.value)
+}
+
+/**
+ * Persistent secondary index from [FieldKey]s to the entries holding that value.
+ *
+ * Like the other indexes of a [FintCache] snapshot, every update returns a new index that shares
+ * its unchanged parts with the old one.
+ */
+class FieldIndex<E> private constructor(
+    private val entries: TreePMap<FieldKey, PSet<E>>,
+) {
+    fun plus(
+        key: FieldKey,
+        entry: E,
+    ): FieldIndex<E> = FieldIndex(entries.plus(key, (entries[key] ?: HashTreePSet.empty()).plus(entry)))
+
+    fun minus(
+        key: FieldKey,
+        entry: E,
+    ): FieldIndex<E> {
+        val remaining = entries[key]?.minus(entry) ?: return this
+        return FieldIndex(if (remaining.isEmpty()) entries.minus(key) else entries.plus(key, remaining))
+    }
+
+    /**
+     * Entries holding [key].
+     */
+    fun get(key: FieldKey): Set<E> = entries[key] ?: emptySet()
+
+    /**
+     * Entries holding a value of [kind] between [lower] and [upper] in [field].
+     */
+    fun range(
+        field: String,
+        kind: FieldKey.Kind,
+        lower: Long,
+        lowerInclusive: Boolean,
+        upper: Long,
+        upperInclusive: Boolean,
+    ): Set<E> {
+        if (lower > upper || (lower == upper && !(lowerInclusive && upperInclusive))) return emptySet()
+
+        return entries
+            .subMap(FieldKey(field, kind, lower), lowerInclusive, FieldKey(field, kind, upper), upperInclusive)
+            .values
+            .flatMapTo(HashSet()) { it }
+    }
+
+    /**
+     * Entries holding any value of [kind] in [field].
+     */
+    fun all(
+        field: String,
+        kind: FieldKey.Kind,
+    ): Set<E> {
+        val first = FieldKey(field, kind, if (kind == FieldKey.Kind.TEXT) "" else Long.MIN_VALUE)
+        return entries
+            .tailMap(first, true)
+            .entries
+            .asSequence()
+            .takeWhile { it.key.field == field && it.key.kind == kind }
+            .flatMapTo(HashSet()) { it.value }
+    }
+
+    companion object {
+        fun <E> empty(): FieldIndex<E> = FieldIndex(TreePMap.empty())
+    }
+}
@@ -0,0 +1,265 @@
+package no.fintlabs.cache
+
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.format.DateTimeParseException
+import java.util.concurrent.TimeUnit
+
+/**
+ * The clauses of an OData filter that can be answered from the [FieldIndex] of a cache.
+ *
+ * Only `eq`, `in` and range comparisons (`gt`, `ge`, `lt`, `le`) on an [IndexedField] that are
+ * joined to the rest of the filter by a top-level `and` are used. A filter with a top-level `or`
+ * or `not` is not planned at all. The plan only narrows the entries the whole filter is then
+ * evaluated on, so every lookup errs on the side of returning too many entries: text is matched
+ * case-insensitively, and dates are matched with a day of slack on either side, since the time
+ * zone the filter library reads dates in is not known here.
+ */
+class FilterPlan private constructor(
+    private val clauses: List<Clause>,
+) {
+    private sealed class Clause(
+        val field: String,
+    )
+
+    private class Equals(
+        field: String,
+        val literals: List<Literal>,
+    ) : Clause(field)
+
+    private class Compare(
+        field: String,
+        val operator: String,
+        val literal: Literal,
+    ) : Clause(field)
+
+    private class Literal(
+        val text: String,
+        val quoted: Boolean,
+    ) {
+        val number: Long? = if (quoted) null else text.toLongOrNull()
+        val epochMillis: Long? = parseDate(text)
+    }
+
+    /**
+     * Entries of [index] that may match the filter, or `null` if none of the clauses narrows
+     * the entries down and the cache has to be scanned.
+     */
+    fun <E> candidates(index: FieldIndex<E>): Set<E>? =
+        clauses
+            .mapNotNull { candidates(index, it) }
+            .sortedBy { it.size }
+            .reduceOrNull { narrowed, next ->
+                if (narrowed.isEmpty()) return emptySet()
+                narrowed.filterTo(HashSet()) { it in next }
+            }
+
+    private fun <E> candidates(
+        index: FieldIndex<E>,
+        clause: Clause,
+    ): Set<E>? {
+        var narrowed = false
+        val candidates = HashSet<E>()
+        for (kind in FieldKey.Kind.entries) {
+            val matches =
+                when (clause) {
+                    is Equals -> equal(index, clause, kind)
+                    is Compare -> compare(index, clause.field, kind, clause.operator, clause.literal)
+                }
+            if (matches != null) narrowed = true
+            // Values of a kind the clause can't be looked up in may still match, so all of them are kept.
+            candidates.addAll(matches ?: index.all(clause.field, kind))
+        }
+        return if (narrowed) candidates else null
+    }
+
+    private fun <E> equal(
+        index: FieldIndex<E>,
+        clause: Equals,
+        kind: FieldKey.Kind,
+    ): Set<E>? {
+        val matches = HashSet<E>()
+        for (literal in clause.literals) matches.addAll(equal(index, clause.field, kind, literal) ?: return null)
+        return matches
+    }
+
+    private fun <E> equal(
+        index: FieldIndex<E>,
+        field: String,
+        kind: FieldKey.Kind,
+        literal: Literal,
+    ): Set<E>? =
+        when (kind) {
+            FieldKey.Kind.TEXT -> {
+                if (literal.quoted) index.get(FieldKey(field, kind, literal.text.lowercase())) else null
+            }
+
+            FieldKey.Kind.NUMBER -> {
+                literal.number?.let { index.get(FieldKey(field, kind, it)) }
+            }
+
+            FieldKey.Kind.DATE -> {
+                literal.epochMillis?.let { index.range(field, kind, it - DAY, true, it + DAY, true) }
+            }
+        }
+
+    private fun <E> compare(
+        index: FieldIndex<E>,
+        field: String,
+        kind: FieldKey.Kind,
+        operator: String,
+        literal: Literal,
+    ): Set<E>? {
+        val (bound, inclusive) =
+            when (kind) {
+                FieldKey.Kind.TEXT -> return null
+                FieldKey.Kind.NUMBER -> Pair(literal.number ?: return null, operator == "ge" || operator == "le")
+                FieldKey.Kind.DATE -> Pair(literal.epochMillis ?: return null, true)
+            }
+        val slack = if (kind == FieldKey.Kind.DATE) DAY else 0L
+        return if (operator.startsWith("g")) {
+            index.range(field, kind, bound - slack, inclusive, Long.MAX_VALUE, true)
+        } else {
+            index.range(field, kind, Long.MIN_VALUE, true, bound + slack, inclusive)
+        }
+    }
+
+    companion object {
+        private val DAY = TimeUnit.DAYS.toMillis(1)
+        private val comparisons = setOf("gt", "ge", "lt", "le")
+
+        /**
+         * Plan [filter] against the [fields] the cache has indexes for.
+         *
+         * @return the plan, or `null` if no clause of the filter can be looked up in an index.
+         */
+        fun of(
+            filter: String,
+            fields: Collection<IndexedField>,
+        ): FilterPlan? {
+            val indexed = fields.filter { it.usable }.mapTo(HashSet()) { it.path }
+            if (indexed.isEmpty()) return null
+
+            val tokens = tokenize(filter) ?: return null
+            val conjuncts = mutableListOf(mutableListOf<Token>())
+            var depth = 0
+            for (token in tokens) {
+                when {
+                    token.isWord("(") -> depth++
+                    token.isWord(")") -> depth--
+                }
+                if (depth == 0 && (token.isWord("or") || token.isWord("not"))) return null
+                if (depth == 0 && token.isWord("and")) conjuncts.add(mutableListOf()) else conjuncts.last().add(token)
+            }
+
+            val clauses = conjuncts.mapNotNull { clauseOf(it) }.filter { it.field in indexed }
+            return if (clauses.isEmpty()) null else FilterPlan(clauses)
+        }
+
+        private fun clauseOf(tokens: List<Token>): Clause? {
+            if (tokens.size < 3 || tokens[0].quoted) return null
+            val field = tokens[0].text.trim('/').lowercase()
+            val operator = tokens[1].text.lowercase()
+            return when {
+                tokens[1].quoted -> {
+                    null
+                }
+
+                operator == "eq" && tokens.size == 3 -> {
+                    Equals(field, listOf(tokens[2].literal()))
+                }
+
+                operator in comparisons && tokens.size == 3 -> {
+                    Compare(field, operator, tokens[2].literal())
+                }
+
+                operator == "in" && tokens[2].isWord("(") && tokens.last().isWord(")") -> {
+                    val values = tokens.subList(3, tokens.size - 1).filterNot { it.isWord(",") }
+                    if (values.isEmpty() || values.any { !it.quoted && it.text in setOf("(", ")") }) {
+                        null
+                    } else {
+                        Equals(field, values.map { it.literal() })
+                    }
+                }
+
+                else -> {
+                    null
+                }
+            }
+        }
+
+        private class Token(
+            val text: String,
+            val quoted: Boolean,
+        ) {
+            fun isWord(word: String) = !quoted && text.equals(word, ignoreCase = true)
+
+            fun literal() = Literal(text, quoted)
+        }
+
+        /**
+         * Split [filter] into words, quoted strings and the punctuation `(`, `)` and `,`.
+         *
+         * @return the tokens, or `null` if a quoted string is not terminated.
+         */
+        private fun tokenize(filter: String): List<Token>? {
+            val tokens = mutableListOf<Token>()
+            var i = 0
+            while (i < filter.length) {
+                val c = filter[i]
+                when {
+                    c.isWhitespace() -> {
+                        i++
+                    }
+
+                    c == '(' || c == ')' || c == ',' -> {
+                        tokens.add(Token(c.toString(), false))
+                        i++
+                    }
+
+                    c == '\'' -> {
+                        val text = StringBuilder()
+                        i++
+                        while (true) {
+                            if (i >= filter.length) return null
+                            if (filter[i] == '\'') {
+                                // '' is an escaped quote inside a string literal.
+                                if (i + 1 < filter.length && filter[i + 1] == '\'') {
+                                    text.append('\'')
+                                    i += 2
+                                    continue
+                                }
+                                i++
+                                break
+                            }
+                            text.append(filter[i++])
+                        }
+                        tokens.add(Token(text.toString(), true))
+                    }
+
+                    else -> {
+                        val start = i
+                        while (i < filter.length && !filter[i].isWhitespace() && filter[i] !in "(),'") i++
+                        tokens.add(Token(filter.substring(start, i), false))
+                    }
+                }
+            }
+            return tokens
+        }
+
+        private fun parseDate(text: String): Long? =
+            try {
+                when {
+                    text.length == 10 -> LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant()
+                    text.endsWith("Z") -> Instant.parse(text)
+                    text.contains('+') || text.lastIndexOf('-') > 9 -> OffsetDateTime.parse(text).toInstant()
+                    else -> LocalDateTime.parse(text).toInstant(ZoneOffset.UTC)
+                }.toEpochMilli()
+            } catch (_: DateTimeParseException) {
+                null
+            }
+    }
+}
@@ -1,15 +1,18 @@
 package no.fintlabs.cache
 
-import no.fint.antlr.odata.ODataFilterService
 import no.novari.fint.model.resource.FintResource
-import org.springframework.http.HttpStatus
-import org.springframework.web.server.ResponseStatusException
-import java.util.TreeMap
+import org.pcollections.HashTreePMap
+import org.pcollections.PMap
+import org.slf4j.LoggerFactory
+import java.util.PriorityQueue
+import java.util.Spliterator
+import java.util.Spliterators
+import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.atomic.AtomicLong
-import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.locks.ReentrantLock
 import java.util.stream.Stream
-import kotlin.concurrent.read
-import kotlin.concurrent.write
+import java.util.stream.StreamSupport
+import kotlin.concurrent.withLock
 import kotlin.math.max
 
 /**
@@ -17,51 +20,180 @@ import kotlin.math.max
  *
  * Entries are iterated in ascending order of `(timestamp, resourceId)`. When multiple
  * partitions produce records concurrently the insertion order is no longer meaningful, so
- * the cache uses a [TreeMap] keyed by [SortKey] for sorted iteration and a [HashMap] for
- * O(1) lookup by resource ID. Using `resourceId` as the tiebreaker gives a stable, unique
- * ordering even when two records share the same timestamp, without requiring access to the
- * concrete resource type.
+ * the cache uses a [TimestampIndex] for sorted iteration and a hash map for O(1) lookup by
+ * resource ID. Using `resourceId` as the tiebreaker gives a stable, unique ordering even when
+ * two records share the same timestamp, without requiring access to the concrete resource type.
  *
- * A secondary index by identifier key/value supports fast [getByIdField] lookups.
+ * A secondary index by identifier key/value supports fast [getByIdField] lookups. Configured
+ * [IndexedField]s get a [FieldIndex] each, which lets filtered reads evaluate the OData filter
+ * on the entries matching its indexed clauses only (see [FilterPlan]).
  * Each entry carries the Kafka record timestamp used for incremental reads
  * ([sinceTimestamp]), expiration ([evictExpired]), and last-update tracking.
+ *
+ * All three structures are persistent (structurally shared) and held together in an
+ * immutable [Snapshot]. Writers are serialized by a write lock, derive a new snapshot from
+ * the current one and publish it with a single volatile write. Readers never take a lock:
+ * they read the current snapshot once and work on that consistent version, so a full-sync
+ * replay hammering [put] does not stall HTTP readers.
+ *
+ * Entries are partitioned by `resourceId` hash into [shardCount] independently locked
+ * [Shard]s, so concurrent writers for different resources do not serialize on one lock.
+ * [getList] merges the sorted views of all shards back into one `(timestamp, resourceId)`
+ * ordered sequence. With a single shard (the default) no merging takes place.
+ *
+ * Every shard also keeps a log of the resources removed from it, so [getChanges] can tell
+ * incremental readers about removals and not only about writes. The log is bounded by
+ * [removalLogSize]; once the oldest removals are dropped, changes since before them can't be
+ * answered anymore and readers have to read the whole cache instead. The same holds for changes
+ * since before [createdAt]: a cache filled by replaying the entity topics doesn't know about
+ * removals whose tombstones were compacted away, nor about earlier evictions.
+ *
+ * How the resource behind each entry is held is decided by [storage]. Storages that keep the
+ * resource's JSON let read endpoints write [getSerializedList] and [getSerializedByIdField]
+ * straight to the response instead of running the object mapper over the same unchanged
+ * resource on every request. The identifier keys of an entry are captured when it is stored,
+ * so replacing or removing an entry never needs to decode the old resource.
  */
-class FintCache<T : FintResource> {
-    private val index: MutableMap<IndexKey, CacheEntry> = mutableMapOf()
-    private val entryStore: HashMap<String, CacheEntry> = HashMap()
-    private val sortedEntries: TreeMap<SortKey, CacheEntry> = TreeMap()
-    private val lastUpdatedTimestamp = AtomicLong(0L)
-    private val lock = ReentrantReadWriteLock()
-    private val oDataFilterService = ODataFilterService()
+class FintCache<T : FintResource>(
+    shardCount: Int = 1,
+    private val storage: EntryStorage<T> = ObjectStorage(),
+    private val filters: ODataFilterCache = ODataFilterCache(),
+    indexedFields: List<String> = emptyList(),
+    removalLogSize: Int = 100_000,
+    /** Time from which the cache knows every removal. */
+    private val createdAt: Long = System.currentTimeMillis(),
+) {
+    private val shards: List<Shard>
+    private val indexedFields = indexedFields.map(::IndexedField)
+    private val removalLogCapacity: Int
+    private val epoch = ThreadLocalRandom.current().nextLong() ushr 1
+    private val entryVersions = AtomicLong(0L)
+
+    init {
+        require(shardCount > 0) { "shardCount must be positive: $shardCount" }
+        require(removalLogSize >= 0) { "removalLogSize must not be negative: $removalLogSize" }
+        shards = List(shardCount) { Shard() }
+        removalLogCapacity = (removalLogSize + shardCount - 1) / shardCount
+    }
+
+    /**
+     * Internal cache value containing the resource and its write timestamp.
+     *
+     * [timestamp] and [resourceId] form the entry's position in [Snapshot.sortedEntries].
+     */
+    private inner class CacheEntry(
+        val stored: StoredResource<T>,
+        override val resourceId: String,
+        /** Timestamp used for change tracking, filtering, and eviction. */
+        override val timestamp: Long,
+        /** Keys under which the entry is registered in [Snapshot.index]. */
+        val indexKeys: List<IndexKey>,
+        /** Keys under which the entry is registered in [Snapshot.fieldIndex]. */
+        val fieldKeys: List<FieldKey>,
+    ) : TimestampIndex.Element {
+        /** Version of the entry, unique within the cache and growing with every write. */
+        val version: Long = entryVersions.incrementAndGet()
+
+        /** Cached resource instance. */
+        val resource: T
+            get() = stored.resource
+
+        /** JSON representation of [resource], present when the storage keeps serialized JSON. */
+        val json: ByteArray?
+            get() = stored.json
+
+        fun release() = stored.release()
+    }
 
     /**
-     * Composite sort key for [sortedEntries].
+     * Immutable, versioned view of the contents of one [Shard].
      *
-     * Primary sort is by [timestamp] ascending. [resourceId] is the tiebreaker so that
-     * two entries with the same timestamp always have a distinct, stable position.
-     */
-    private data class SortKey(
-        val timestamp: Long,
-        val resourceId: String,
-    ) : Comparable<SortKey> {
-        override fun compareTo(other: SortKey): Int {
-            val cmp = timestamp.compareTo(other.timestamp)
-            return if (cmp != 0) cmp else resourceId.compareTo(other.resourceId)
+     * A new snapshot is published for every accepted write; unchanged parts of the maps are
+     * shared with the previous version.
+     */
+    private inner class Snapshot(
+        /** Monotonic version, advanced by one for every published write. */
+        val version: Long,
+        val entryStore: PMap<String, CacheEntry>,
+        val sortedEntries: TimestampIndex<CacheEntry>,
+        val index: PMap<IndexKey, CacheEntry>,
+        val fieldIndex: FieldIndex<CacheEntry>,
+        val lastUpdated: Long,
+        /** Resources removed from the shard, at most [removalLogCapacity] of them. */
+        val removals: TimestampIndex<Removal>,
+        /** Earliest timestamp from which [removals] holds every removal of the shard. */
+        val removalHorizon: Long,
+    ) {
+        fun next(
+            entryStore: PMap<String, CacheEntry>,
+            sortedEntries: TimestampIndex<CacheEntry>,
+            index: PMap<IndexKey, CacheEntry>,
+            fieldIndex: FieldIndex<CacheEntry>,
+            lastUpdated: Long = this.lastUpdated,
+            removed: List<Removal> = emptyList(),
+        ): Snapshot {
+            var removals = removed.fold(this.removals) { acc, removal -> acc.plus(removal) }
+            var removalHorizon = this.removalHorizon
+            // Drops the oldest removals a timestamp at a time, so the log stays complete from the horizon on.
+            while (removals.size > removalLogCapacity) {
+                removalHorizon = removals.first().timestamp + 1
+                removals = removals.minusBefore(removalHorizon)
+            }
+            return Snapshot(
+                version + 1,
+                entryStore,
+                sortedEntries,
+                index,
+                fieldIndex,
+                max(this.lastUpdated, lastUpdated),
+                removals,
+                removalHorizon,
+            )
         }
     }
 
     /**
-     * Internal cache value containing the resource and its write timestamp.
+     * Independently locked partition of the cache holding the currently published [Snapshot].
      */
-    inner class CacheEntry(
-        /** Cached resource instance. */
-        val resource: T,
-        /** Timestamp used for change tracking, filtering, and eviction. */
-        val timestamp: Long,
-    )
+    private inner class Shard {
+        @Volatile
+        var snapshot: Snapshot =
+            Snapshot(
+                0L,
+                HashTreePMap.empty(),
+                TimestampIndex.empty(),
+                HashTreePMap.empty(),
+                FieldIndex.empty(),
+                0L,
+                TimestampIndex.empty(),
+                createdAt,
+            )
+            private set
+        private val writeLock = ReentrantLock()
+        val writeLockWaitNanos = AtomicLong(0L)
+        val writeLockAcquisitions = AtomicLong(0L)
+
+        /**
+         * Run [block] with the write lock held and publish the snapshot it returns. A `null`
+         * return leaves the current snapshot untouched.
+         *
+         * @return `true` if a new snapshot was published.
+         */
+        fun write(block: (Snapshot) -> Snapshot?): Boolean {
+            val waitStart = System.nanoTime()
+            return writeLock.withLock {
+                writeLockWaitNanos.addAndGet(System.nanoTime() - waitStart)
+                writeLockAcquisitions.incrementAndGet()
+
+                val next = block(snapshot) ?: return@withLock false
+                snapshot = next
+                true
+            }
+        }
+    }
 
     /**
-     * Composite key for [index], based on identifier key and identifier value.
+     * Composite key for [Snapshot.index], based on identifier key and identifier value.
      *
      * The identifier key is normalized to lowercase to make lookups case-insensitive.
      */
@@ -83,34 +215,137 @@ class FintCache<T : FintResource> {
     /**
      * Insert or replace a resource in the cache.
      *
-     * When replacing an existing entry the old [SortKey] is removed from [sortedEntries]
+     * When replacing an existing entry its old position is removed from the sorted view
      * before inserting the new one, so the sorted view always reflects the current timestamp.
      * Updates the identifier index and advances [lastUpdated] with the provided timestamp.
      *
      * @return `true` if the write was accepted, `false` if it was rejected because an existing
      *   entry has a newer timestamp. A `false` return is a silent-loss signal callers may surface
      *   via a metric; callers that don't care can ignore it.
+     *
+     * The resource is handed to [storage] here, before the shard lock is taken, and may be
+     * serialized at that point, so callers must be done mutating it (e.g. mapping links)
+     * before calling [put].
      */
     fun put(
         resourceId: String,
         resource: T,
         timestamp: Long,
-    ): Boolean {
-        val entry = CacheEntry(resource, timestamp)
-
-        return lock.write {
-            val existing = entryStore[resourceId]
-            if (existing != null) {
-                if (timestamp < existing.timestamp) return@write false
-                sortedEntries.remove(SortKey(existing.timestamp, resourceId))
-                removeFromIndexes(existing.resource)
+    ): Boolean =
+        putEntry(
+            CacheEntry(storage.store(resource), resourceId, timestamp, indexKeysOf(resource), fieldKeysOf(resource)),
+        )
+
+    /**
+     * Whether the cache takes [LazyResource]s through [putLazy]. Only caches that keep resources
+     * as objects and keep no field indexes do, since the other storages and the field indexes
+     * need the decoded resource when it is written.
+     */
+    val supportsLazyEntries: Boolean
+        get() = storage is ObjectStorage && indexedFields.isEmpty()
+
+    /**
+     * Insert or replace a resource that is only decoded when it is first read, as [put] would.
+     * The entry is indexed under [LazyResource.identifiers], so writing it decodes nothing.
+     *
+     * @throws IllegalStateException if the cache does not [supportsLazyEntries].
+     */
+    fun putLazy(
+        resourceId: String,
+        resource: LazyResource<T>,
+        timestamp: Long,
+    ): Boolean = putEntry(lazyEntryOf(resourceId, resource, timestamp))
+
+    private fun putEntry(entry: CacheEntry): Boolean {
+        val resourceId = entry.resourceId
+        val timestamp = entry.timestamp
+        val accepted =
+            shardFor(resourceId).write { current ->
+                var sortedEntries = current.sortedEntries
+                var index = current.index
+                var fieldIndex = current.fieldIndex
+                val existing = current.entryStore[resourceId]
+                if (existing != null) {
+                    if (timestamp < existing.timestamp) return@write null
+                    sortedEntries = sortedEntries.minus(existing.timestamp, resourceId)
+                    index = removeFromIndexes(index, existing)
+                    fieldIndex = removeFromFieldIndex(fieldIndex, existing)
+                    existing.release()
+                }
+                current.next(
+                    entryStore = current.entryStore.plus(resourceId, entry),
+                    sortedEntries = sortedEntries.plus(entry),
+                    index = updateIndexes(index, entry),
+                    fieldIndex = updateFieldIndex(fieldIndex, entry),
+                    lastUpdated = timestamp,
+                )
+            }
+        if (!accepted) entry.release()
+        return accepted
+    }
+
+    /**
+     * Insert or replace a batch of resources, taking the write lock of every shard once for the
+     * whole batch instead of once per resource.
+     *
+     * Every write is accepted or rejected as [put] would in the order of [puts], and the writes
+     * of one shard are published together as one snapshot. As with [put], the resources are
+     * handed to [storage] before any lock is taken.
+     *
+     * @return the ids of the resources with at least one accepted write.
+     */
+    fun putAll(puts: Collection<CachePut<T>>): Set<String> {
+        val entries =
+            puts.map {
+                val lazyResource = it.lazyResource
+                if (lazyResource != null) {
+                    lazyEntryOf(it.resourceId, lazyResource, it.timestamp)
+                } else {
+                    CacheEntry(
+                        storage.store(it.resource),
+                        it.resourceId,
+                        it.timestamp,
+                        indexKeysOf(it.resource),
+                        fieldKeysOf(it.resource),
+                    )
+                }
+            }
+        val accepted = HashSet<String>()
+        val rejected = ArrayList<CacheEntry>()
+
+        entries.groupBy { shardFor(it.resourceId) }.forEach { (shard, shardEntries) ->
+            shard.write { current ->
+                var entryStore = current.entryStore
+                var sortedEntries = current.sortedEntries
+                var index = current.index
+                var fieldIndex = current.fieldIndex
+                var lastUpdated = current.lastUpdated
+                var written = false
+                for (entry in shardEntries) {
+                    val existing = entryStore[entry.resourceId]
+                    if (existing != null) {
+                        if (entry.timestamp < existing.timestamp) {
+                            rejected.add(entry)
+                            continue
+                        }
+                        sortedEntries = sortedEntries.minus(existing.timestamp, existing.resourceId)
+                        index = removeFromIndexes(index, existing)
+                        fieldIndex = removeFromFieldIndex(fieldIndex, existing)
+                        existing.release()
+                    }
+                    entryStore = entryStore.plus(entry.resourceId, entry)
+                    sortedEntries = sortedEntries.plus(entry)
+                    index = updateIndexes(index, entry)
+                    fieldIndex = updateFieldIndex(fieldIndex, entry)
+                    lastUpdated = max(lastUpdated, entry.timestamp)
+                    accepted.add(entry.resourceId)
+                    written = true
+                }
+                if (written) current.next(entryStore, sortedEntries, index, fieldIndex, lastUpdated) else null
             }
-            entryStore[resourceId] = entry
-            sortedEntries[SortKey(timestamp, resourceId)] = entry
-            updateIndexes(entry)
-            lastUpdated = timestamp
-            true
         }
+        rejected.forEach { it.release() }
+        return accepted
     }
 
     /**
@@ -118,10 +353,7 @@ class FintCache<T : FintResource> {
      *
      * @return the cached resource, or `null` if not present.
      */
-    fun get(resourceId: String): T? =
-        lock.read {
-            entryStore[resourceId]?.resource
-        }
+    fun get(resourceId: String): T? = shardFor(resourceId).snapshot.entryStore[resourceId]?.let(::resourceOf)
 
     /**
      * Get the write timestamp for a cached resource.
@@ -129,112 +361,409 @@ class FintCache<T : FintResource> {
      * @return timestamp of the cached resource, or `null` if not present.
      */
     fun lastUpdatedByResourceId(resourceId: String): Long? =
-        lock.read {
-            entryStore[resourceId]?.timestamp
-        }
+        shardFor(resourceId).snapshot.entryStore[resourceId]?.timestamp
 
     /**
      * Get a cached resource by identifier field and value.
      *
-     * Identifier field matching is case-insensitive.
+     * Identifier field matching is case-insensitive. The identifier does not tell which shard
+     * owns the resource, so every shard's index is probed.
      */
     fun getByIdField(
         field: String,
         value: Any,
-    ): T? =
-        lock.read {
-            index[IndexKey(field, value)]?.resource
+    ): T? = findByIdField(field, value)?.let(::resourceOf)
+
+    /**
+     * Get the stored JSON of a cached resource by identifier field and value.
+     *
+     * @return the JSON bytes, or `null` if the resource is not present or the cache does not
+     *   store serialized JSON.
+     */
+    fun getSerializedByIdField(
+        field: String,
+        value: Any,
+    ): ByteArray? = findByIdField(field, value)?.json
+
+    /**
+     * Get the cached resources with the given identifier values, all read from the same shard
+     * snapshots, so a batch never sees a write half-applied across its values.
+     *
+     * @return the found resources by identifier value, in the order of [values]. Values of
+     *   resources that are not present are left out.
+     */
+    fun getAllByIdField(
+        field: String,
+        values: Collection<String>,
+    ): Map<String, T> {
+        val found = LinkedHashMap<String, T>()
+        findAllByIdField(field, values).forEach { (value, entry) -> resourceOf(entry)?.let { found[value] = it } }
+        return found
+    }
+
+    /**
+     * Same as [getAllByIdField], but returns the stored JSON of each resource.
+     *
+     * @throws IllegalStateException if the cache does not store serialized JSON.
+     */
+    fun getAllSerializedByIdField(
+        field: String,
+        values: Collection<String>,
+    ): Map<String, ByteArray> {
+        check(storage.storesSerializedJson) { "Cache does not store serialized JSON" }
+
+        return findAllByIdField(field, values).mapValuesTo(LinkedHashMap()) { requireNotNull(it.value.json) }
+    }
+
+    /**
+     * Version of the resource with the given identifier, without reading the resource itself.
+     *
+     * @return the version, or `null` if the resource is not present.
+     */
+    fun versionByIdField(
+        field: String,
+        value: Any,
+    ): CacheVersion? = findByIdField(field, value)?.let { CacheVersion(epoch, it.version) }
+
+    /**
+     * Version of the whole cache, advancing with every accepted write, removal and eviction.
+     */
+    fun currentVersion(): CacheVersion = CacheVersion(epoch, version)
+
+    private fun findByIdField(
+        field: String,
+        value: Any,
+    ): CacheEntry? {
+        val indexKey = IndexKey(field, value)
+        return shards.firstNotNullOfOrNull { it.snapshot.index[indexKey] }
+    }
+
+    private fun findAllByIdField(
+        field: String,
+        values: Collection<String>,
+    ): Map<String, CacheEntry> {
+        val indexes = shards.map { it.snapshot.index }
+        val found = LinkedHashMap<String, CacheEntry>()
+        values.forEach { value ->
+            val indexKey = IndexKey(field, value)
+            indexes.firstNotNullOfOrNull { it[indexKey] }?.let { found[value] = it }
         }
+        return found
+    }
 
     /**
      * Get a paged, timestamp-sorted list of cached resources, optionally filtered by
      * timestamp and OData filter.
      *
      * Results are always returned in ascending `(timestamp, resourceId)` order. When
-     * [sinceTimestamp] is greater than `0`, a [TreeMap.tailMap] is used to efficiently
-     * skip entries older than that timestamp. When [size] is greater than `0`, pagination
+     * [sinceTimestamp] is greater than `0`, iteration seeks directly to the first entry at
+     * that timestamp instead of skipping older entries one by one. When [size] is greater than `0`, pagination
      * is applied using [offset] and [size].
+     *
+     * Each shard is read from one snapshot, so concurrent writes never show up half-applied
+     * in the result.
      */
     fun getList(
         size: Long,
         offset: Long,
         sinceTimestamp: Long,
         filter: String?,
-    ): List<T> =
-        lock.read {
-            val entriesView: Collection<CacheEntry> =
-                if (sinceTimestamp > 0L) {
-                    // tailMap includes all keys >= SortKey(sinceTimestamp, "").
-                    // Since "" precedes every real resource ID, all entries whose timestamp
-                    // equals sinceTimestamp are included.
-                    sortedEntries.tailMap(SortKey(sinceTimestamp, "")).values
-                } else {
-                    sortedEntries.values
-                }
+    ): List<T> = page(select(sinceTimestamp, filter, null), size, offset).resources().toList()
 
-            var resources: Stream<T> = entriesView.stream().map { it.resource }
-            if (filter != null && !filter.isBlank()) {
-                // Only include entries matching OData $filter
-                resources = applyODataFilter(resources, filter)
-            }
+    /**
+     * Same selection and ordering as [getList], but starting right after [cursor] when one is
+     * given, and returning the cursor of the following page together with the number of entries
+     * matching the read on all pages.
+     *
+     * Resuming from a cursor seeks to its position, so reading a collection page by page costs
+     * the same per page no matter how far in the page is, unlike an [offset] that has to be
+     * skipped one entry at a time.
+     */
+    fun getPage(
+        size: Long,
+        offset: Long,
+        sinceTimestamp: Long,
+        filter: String?,
+        cursor: PageCursor?,
+    ): CachePage<T> = readPage(size, offset, sinceTimestamp, filter, cursor).mapNotNull(::resourceOf)
 
-            if (size > 0) {
-                // Only include entries for requested page
-                if (offset > 0) {
-                    resources = resources.skip(offset)
-                }
-                resources = resources.limit(size)
-            }
+    /**
+     * Same selection and ordering as [getList], but returns the stored JSON of each resource.
+     *
+     * @throws IllegalStateException if the cache does not store serialized JSON.
+     */
+    fun getSerializedList(
+        size: Long,
+        offset: Long,
+        sinceTimestamp: Long,
+        filter: String?,
+    ): List<ByteArray> {
+        check(storage.storesSerializedJson) { "Cache does not store serialized JSON" }
+
+        return page(select(sinceTimestamp, filter, null), size, offset).map { requireNotNull(it.json) }.toList()
+    }
+
+    /**
+     * Same selection and ordering as [getPage], but returns the stored JSON of each resource.
+     *
+     * @throws IllegalStateException if the cache does not store serialized JSON.
+     */
+    fun getSerializedPage(
+        size: Long,
+        offset: Long,
+        sinceTimestamp: Long,
+        filter: String?,
+        cursor: PageCursor?,
+    ): CachePage<ByteArray> {
+        check(storage.storesSerializedJson) { "Cache does not store serialized JSON" }
+
+        return readPage(size, offset, sinceTimestamp, filter, cursor).map { requireNotNull(it.json) }
+    }
 
-            resources.toList()
+    /**
+     * Lazily read every resource matching [sinceTimestamp] and [filter], in the order of [getList].
+     *
+     * Resources are taken from the shard snapshots one at a time as the stream is consumed, so
+     * exporting a whole collection holds no more than the resource being written, however large
+     * the cache is, with or without a [filter]. Each entry is decoded once, and a filtered
+     * export tests the decoded resource itself. The stream keeps reading the snapshots it started
+     * on, so writes published while an export is running are not part of it.
+     */
+    fun stream(
+        sinceTimestamp: Long,
+        filter: String?,
+    ): Stream<T> {
+        if (filter == null || filter.isBlank()) return mergeSorted(sinceTimestamp, null).resources()
+
+        filters.validate(filter)
+        return candidates(sinceTimestamp, filter, null).resources().filter { filters.matches(it, filter) }
+    }
+
+    /**
+     * Same as [stream], but returns the stored JSON of each resource.
+     *
+     * @throws IllegalStateException if the cache does not store serialized JSON.
+     */
+    fun streamSerialized(
+        sinceTimestamp: Long,
+        filter: String?,
+    ): Stream<ByteArray> {
+        check(storage.storesSerializedJson) { "Cache does not store serialized JSON" }
+
+        return select(sinceTimestamp, filter, null).map { requireNotNull(it.json) }
+    }
+
+    /**
+     * Lazily read every entry with the timestamp it was written with, in the order of [getList].
+     * Like [stream], the entries are taken from the snapshots current when this is called.
+     */
+    fun entries(): Stream<StoredEntry<T>> =
+        mergeSorted(0L, null).map { StoredEntry(it.resourceId, it.timestamp, it.stored) }
+
+    /**
+     * Whether the cache keeps the serialized JSON of its resources next to the resources.
+     */
+    val storesSerializedJson: Boolean
+        get() = storage.storesSerializedJson
+
+    /**
+     * Entries matching [sinceTimestamp], [cursor] and [filter], in `(timestamp, resourceId)` order.
+     *
+     * When clauses of the filter can be looked up in the indexes on [indexedFields], only the
+     * entries those lookups return are handed to the filter instead of the whole cache.
+     *
+     * The OData filter works on resource objects, so a filtered read decodes every entry and tests
+     * its resource on its own. Nothing is kept between entries, so a filter matching few or none
+     * of them holds no more in memory than one matching all.
+     */
+    private fun select(
+        sinceTimestamp: Long,
+        filter: String?,
+        cursor: PageCursor?,
+    ): Stream<CacheEntry> {
+        if (filter == null || filter.isBlank()) return mergeSorted(sinceTimestamp, cursor)
+
+        filters.validate(filter)
+        return candidates(sinceTimestamp, filter, cursor).filter { entry ->
+            resourceOf(entry)?.let { filters.matches(it, filter) } ?: false
         }
+    }
 
-    private fun applyODataFilter(
-        resources: Stream<T>,
+    /** The entries [filter] has to be tested on: those its index lookups return, or else all. */
+    private fun candidates(
+        sinceTimestamp: Long,
         filter: String,
-    ): Stream<T> {
-        if (!oDataFilterService.validate(filter)) {
-            throw ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid OData filter")
+        cursor: PageCursor?,
+    ): Stream<CacheEntry> =
+        FilterPlan.of(filter, indexedFields)?.let { lookup(it, sinceTimestamp, cursor) }
+            ?: mergeSorted(sinceTimestamp, cursor)
+
+    /**
+     * Reads one page and counts every entry of the selection, including those on other pages.
+     *
+     * Without a filter the count comes straight from the sorted views. With a filter every
+     * remaining entry has to go through it, so the matches are counted in the same pass that
+     * collects the page, without keeping the ones outside the page. Matches before a [cursor] are
+     * not read again; the cursor carries how many there were.
+     */
+    private fun readPage(
+        size: Long,
+        offset: Long,
+        sinceTimestamp: Long,
+        filter: String?,
+        cursor: PageCursor?,
+    ): CachePage<CacheEntry> {
+        val skipped = if (size > 0) max(offset, 0L) else 0L
+        val resumesFromCursor = cursor != null && !startOf(sinceTimestamp, cursor).third
+        val preceding = if (resumesFromCursor) cursor.position else 0L
+
+        val items: List<CacheEntry>
+        val total: Long
+        val hasMore: Boolean
+        if (filter == null || filter.isBlank()) {
+            val sortedViews = shards.map { it.snapshot.sortedEntries }
+            val from = if (sinceTimestamp > 0L) sinceTimestamp else Long.MIN_VALUE
+            total = sortedViews.sumOf { it.countFrom(from, "", inclusive = true) }.toLong()
+
+            // Reading one entry past the page tells whether another page follows.
+            val windowSize = if (size > 0) size + 1 else size
+            val window = page(mergeSorted(sinceTimestamp, cursor, sortedViews), windowSize, offset).toList()
+            hasMore = size > 0 && window.size > size
+            items = if (hasMore) window.subList(0, size.toInt()) else window
+        } else {
+            val collected = ArrayList<CacheEntry>()
+            var matches = 0L
+            select(sinceTimestamp, filter, cursor).forEach { entry ->
+                if (matches >= skipped && (size <= 0 || collected.size < size)) collected.add(entry)
+                matches++
+            }
+            items = collected
+            total = preceding + matches
+            hasMore = matches > skipped + collected.size
         }
 
-        return oDataFilterService.from(resources, filter)
+        val nextCursor =
+            if (hasMore) {
+                items.last().let { PageCursor(it.timestamp, it.resourceId, preceding + skipped + items.size) }
+            } else {
+                null
+            }
+        return CachePage(items, nextCursor, total)
+    }
+
+    private fun <E> page(
+        stream: Stream<E>,
+        size: Long,
+        offset: Long,
+    ): Stream<E> {
+        if (size <= 0) return stream
+
+        // Only include entries for requested page
+        return if (offset > 0) stream.skip(offset).limit(size) else stream.limit(size)
     }
 
     /**
      * Highest timestamp seen by the cache from write/remove operations.
      */
-    var lastUpdated: Long
-        get() =
-            lock.read {
-                return lastUpdatedTimestamp.get()
-            }
-        private set(value) =
-            lock.write {
-                lastUpdatedTimestamp.accumulateAndGet(value) { existing, new -> max(existing, new) }
-            }
+    val lastUpdated: Long
+        get() = shards.maxOf { it.snapshot.lastUpdated }
 
     /**
      * Current number of cached resources.
      */
     val size: Int
-        get() = lock.read { entryStore.size }
+        get() = shards.sumOf { it.snapshot.entryStore.size }
+
+    /**
+     * Version of the currently published snapshots. Advances by one for every accepted write.
+     */
+    val version: Long
+        get() = shards.sumOf { it.snapshot.version }
+
+    /**
+     * Number of independently locked shards the cache is partitioned into.
+     */
+    val shardCount: Int
+        get() = shards.size
+
+    /**
+     * Total time writers have spent waiting for a shard write lock, in nanoseconds.
+     */
+    val writeLockWaitTimeNanos: Long
+        get() = shards.sumOf { it.writeLockWaitNanos.get() }
+
+    /**
+     * Number of times a shard write lock has been acquired.
+     */
+    val writeLockAcquisitionCount: Long
+        get() = shards.sumOf { it.writeLockAcquisitions.get() }
+
+    /**
+     * Ratio between the serialized size of the cached resources and the bytes actually held
+     * for them, or `NaN` when the storage does not track sizes.
+     */
+    val compressionRatio: Double
+        get() = storage.storedBytes.let { if (it > 0) storage.serializedBytes.toDouble() / it else Double.NaN }
+
+    /**
+     * Bytes held outside the Java heap for the cached resources.
+     */
+    val offHeapBytes: Long
+        get() = storage.offHeapBytes
+
+    /**
+     * Number of times a stored entry has been decoded back into a resource.
+     */
+    val decodeCount: Long
+        get() = storage.decodeCount
+
+    /**
+     * Total time spent decoding stored entries, in nanoseconds.
+     */
+    val decodeTimeNanos: Long
+        get() = storage.decodeTimeNanos
+
+    /**
+     * Share of OData filter lookups answered without parsing the filter again.
+     */
+    val filterHitRatio: Double
+        get() = filters.hitRatio
+
+    /**
+     * Number of OData filters parsed because they were not cached.
+     */
+    val filterCompileCount: Long
+        get() = filters.compileCount
+
+    /**
+     * Total time spent parsing OData filters that were not cached, in nanoseconds.
+     */
+    val filterCompileTimeNanos: Long
+        get() = filters.compileTimeNanos
 
     /**
      * Remove a resource by ID.
      *
-     * If the resource exists, its [SortKey] is removed from [sortedEntries], its index
+     * If the resource exists, it is removed from the sorted view, its index
      * entries are removed, and [lastUpdated] is advanced with the provided timestamp.
      */
     fun remove(
         resourceId: String,
         timestamp: Long,
-    ) = lock.write {
-        val entry = entryStore[resourceId]
+    ) = shardFor(resourceId).write { current ->
+        val entry = current.entryStore[resourceId]
         if (entry != null && timestamp > entry.timestamp) {
-            entryStore.remove(resourceId)
-            sortedEntries.remove(SortKey(entry.timestamp, resourceId))
-            removeFromIndexes(entry.resource)
-            lastUpdated = timestamp
+            entry.release()
+            current.next(
+                entryStore = current.entryStore.minus(resourceId),
+                sortedEntries = current.sortedEntries.minus(entry.timestamp, resourceId),
+                index = removeFromIndexes(current.index, entry),
+                fieldIndex = removeFromFieldIndex(current.fieldIndex, entry),
+                lastUpdated = timestamp,
+                removed = listOf(removalOf(entry, timestamp)),
+            )
+        } else {
+            null
         }
     }
 
@@ -242,44 +771,271 @@ class FintCache<T : FintResource> {
      * Evict expired cache entries. A cached entry is considered expired if it has a timestamp
      * older than the earliest timestamp of a full-sync.
      *
-     * Uses [TreeMap.headMap] to efficiently find all entries with
-     * `timestamp < evictionTimestamp` without scanning the entire cache.
+     * Expired entries form a prefix of each shard's sorted view, so they are found without
+     * scanning the entire cache, and [TimestampIndex.minusBefore] drops them in one pass.
      *
      * @param timestamp earliest timestamp of a full-sync.
-     * @return evicted resources
-     */
-    fun evictExpired(timestamp: Long): Set<Pair<String, T>> =
-        lock.write {
-            // headMap is exclusive of the toKey. SortKey(timestamp, "") is less than any
-            // real entry at that timestamp (since "" < any non-empty resourceId), so this
-            // gives exactly the entries where entry.timestamp < timestamp.
-            val expired = sortedEntries.headMap(SortKey(timestamp, "")).entries.toList()
-            val removedResources = mutableSetOf<Pair<String, T>>()
-
-            for ((sortKey, entry) in expired) {
-                val resourceId = sortKey.resourceId
-                removedResources.add(Pair(resourceId, entry.resource))
-                entryStore.remove(resourceId)
-                sortedEntries.remove(sortKey)
-                removeFromIndexes(entry.resource)
+     * @param readResources whether the evicted resources are read and returned. Reading them
+     *   decodes entries a storage keeps serialized, so callers that don't need them pass `false`.
+     * @return evicted resources, or none when not [readResources].
+     */
+    fun evictExpired(
+        timestamp: Long,
+        readResources: Boolean = true,
+    ): Set<Pair<String, T>> {
+        val removedEntries = ArrayList<CacheEntry>()
+        // Expired entries carry their old write timestamps, so the removals are logged as of now.
+        val evictedAt = lastUpdated
+
+        shards.forEach { shard ->
+            shard.write { current ->
+                val expired = current.sortedEntries.headBefore(timestamp)
+                if (expired.isEmpty()) return@write null
+
+                var entryStore = current.entryStore
+                var index = current.index
+                var fieldIndex = current.fieldIndex
+                val removed = ArrayList<Removal>(expired.size)
+                for (entry in expired) {
+                    removedEntries.add(entry)
+                    removed.add(removalOf(entry, evictedAt))
+                    entryStore = entryStore.minus(entry.resourceId)
+                    index = removeFromIndexes(index, entry)
+                    fieldIndex = removeFromFieldIndex(fieldIndex, entry)
+                }
+
+                current.next(
+                    entryStore = entryStore,
+                    sortedEntries = current.sortedEntries.minusBefore(timestamp),
+                    index = index,
+                    fieldIndex = fieldIndex,
+                    removed = removed,
+                )
             }
+        }
 
-            removedResources
+        // Read outside the shard locks, as reading may decode, and before the entries are released,
+        // as reading a released entry would put it back into the hot tier of a decoding storage.
+        val evicted = LinkedHashSet<Pair<String, T>>()
+        if (readResources) {
+            removedEntries.forEach { entry -> resourceOf(entry)?.let { evicted.add(Pair(entry.resourceId, it)) } }
         }
+        removedEntries.forEach { it.release() }
+        return evicted
+    }
 
-    private fun updateIndexes(entry: CacheEntry) {
-        entry.resource.identifikators
-            .filter { entry -> entry.value?.identifikatorverdi != null }
-            .forEach { (key, value) ->
-                index[IndexKey(key, value.identifikatorverdi)] = entry
+    /**
+     * Resources written and removed at or after [sinceTimestamp], read from one snapshot per
+     * shard. A resource removed and written again since then is only part of
+     * [CacheChanges.updated].
+     *
+     * @return the changes, or `null` if removals at [sinceTimestamp] may have been dropped from
+     *   the removal log already, in which case the caller has to read the whole cache instead.
+     */
+    fun getChanges(sinceTimestamp: Long): CacheChanges<T>? = readChanges(sinceTimestamp)?.mapNotNull(::resourceOf)
+
+    /**
+     * Same as [getChanges], but returns the stored JSON of each written resource.
+     *
+     * @throws IllegalStateException if the cache does not store serialized JSON.
+     */
+    fun getSerializedChanges(sinceTimestamp: Long): CacheChanges<ByteArray>? {
+        check(storage.storesSerializedJson) { "Cache does not store serialized JSON" }
+
+        return readChanges(sinceTimestamp)?.map { requireNotNull(it.json) }
+    }
+
+    /**
+     * Same as [getChanges], but returns every written resource as an entry carrying the timestamp
+     * it was written with. Lazily decoded entries are decoded, so the ones that can't be are left
+     * out like they are of [getChanges].
+     */
+    fun getChangedEntries(sinceTimestamp: Long): CacheChanges<StoredEntry<T>>? =
+        readChanges(sinceTimestamp)?.mapNotNull { entry ->
+            if (entry.stored is LazyResource && resourceOf(entry) == null) return@mapNotNull null
+            StoredEntry(entry.resourceId, entry.timestamp, entry.stored)
+        }
+
+    private fun readChanges(sinceTimestamp: Long): CacheChanges<CacheEntry>? {
+        val snapshots = shards.map { it.snapshot }
+        if (snapshots.any { sinceTimestamp < it.removalHorizon }) return null
+
+        val updated = mergeSorted(sinceTimestamp, null, snapshots.map { it.sortedEntries }).toList()
+        val removed =
+            snapshots
+                .flatMap { snapshot ->
+                    snapshot.removals
+                        .iteratorFrom(startOf(sinceTimestamp, null).first, "", inclusive = true)
+                        .asSequence()
+                        .filter { it.resourceId !in snapshot.entryStore }
+                        // Keeps the latest removal of a resource removed more than once.
+                        .associateBy { it.resourceId }
+                        .values
+                }.sortedWith(compareBy<Removal> { it.timestamp }.thenBy { it.resourceId })
+        return CacheChanges(snapshots.maxOf { it.lastUpdated }, updated, removed)
+    }
+
+    /**
+     * The resource of [entry], or `null` if it is a [LazyResource] whose JSON doesn't fit the
+     * resource class. Such an entry is dropped from the cache, logged as a removal in case the
+     * resource it replaced has been read, so it fails no more than the reads already holding it.
+     */
+    private fun resourceOf(entry: CacheEntry): T? {
+        try {
+            return entry.resource
+        } catch (exception: UndecodableResourceException) {
+            logger.warn("Dropping cached resource {} that can't be decoded", entry.resourceId, exception)
+            shardFor(entry.resourceId).write { current ->
+                if (current.entryStore[entry.resourceId] !== entry) return@write null
+                current.next(
+                    entryStore = current.entryStore.minus(entry.resourceId),
+                    sortedEntries = current.sortedEntries.minus(entry.timestamp, entry.resourceId),
+                    index = removeFromIndexes(current.index, entry),
+                    fieldIndex = removeFromFieldIndex(current.fieldIndex, entry),
+                    removed = listOf(removalOf(entry, current.lastUpdated)),
+                )
+            }
+            return null
+        }
+    }
+
+    private fun Stream<CacheEntry>.resources(): Stream<T> = flatMap { Stream.ofNullable(resourceOf(it)) }
+
+    private fun removalOf(
+        entry: CacheEntry,
+        timestamp: Long,
+    ) = Removal(entry.resourceId, timestamp, entry.indexKeys.associate { it.idKey to it.idValue })
+
+    private fun shardFor(resourceId: String): Shard =
+        if (shards.size == 1) shards[0] else shards[Math.floorMod(resourceId.hashCode(), shards.size)]
+
+    /**
+     * K-way merge of the sorted views of all shards into one stream in ascending
+     * `(timestamp, resourceId)` order, starting at the first entry at [sinceTimestamp] when it is
+     * greater than `0`, or right after [cursor] when that lies further ahead. The merge is lazy,
+     * so `skip`/`limit` only advance the shard iterators as far as needed.
+     */
+    private fun mergeSorted(
+        sinceTimestamp: Long,
+        cursor: PageCursor?,
+        sortedViews: List<TimestampIndex<CacheEntry>> = shards.map { it.snapshot.sortedEntries },
+    ): Stream<CacheEntry> {
+        val (from, fromId, inclusive) = startOf(sinceTimestamp, cursor)
+        val sources = sortedViews.map { it.iteratorFrom(from, fromId, inclusive) }
+
+        val iterator =
+            if (sources.size == 1) {
+                sources[0]
+            } else {
+                object : Iterator<CacheEntry> {
+                    private val heads =
+                        PriorityQueue<Pair<CacheEntry, Iterator<CacheEntry>>>(
+                            sources.size,
+                            compareBy<Pair<CacheEntry, Iterator<CacheEntry>>> { it.first.timestamp }
+                                .thenBy { it.first.resourceId },
+                        ).apply {
+                            sources
+                                .filter { it.hasNext() }
+                                .forEach { add(Pair(it.next(), it)) }
+                        }
+
+                    override fun hasNext(): Boolean = heads.isNotEmpty()
+
+                    override fun next(): CacheEntry {
+                        val (head, source) = heads.poll() ?: throw NoSuchElementException()
+                        if (source.hasNext()) heads.add(Pair(source.next(), source))
+                        return head
+                    }
+                }
             }
+
+        return StreamSupport.stream(
+            Spliterators.spliterator(
+                iterator,
+                sortedViews.sumOf { it.countFrom(from, fromId, inclusive) }.toLong(),
+                Spliterator.ORDERED or Spliterator.NONNULL or Spliterator.SIZED,
+            ),
+            false,
+        )
+    }
+
+    /**
+     * Entries the index lookups of [plan] return from every shard, restricted to those at or
+     * after the start position and sorted like [mergeSorted], or `null` if the lookups don't
+     * narrow the entries down.
+     */
+    private fun lookup(
+        plan: FilterPlan,
+        sinceTimestamp: Long,
+        cursor: PageCursor?,
+    ): Stream<CacheEntry>? {
+        val (from, fromId, inclusive) = startOf(sinceTimestamp, cursor)
+        val candidates = mutableListOf<CacheEntry>()
+        for (shard in shards) {
+            plan
+                .candidates(shard.snapshot.fieldIndex)
+                ?.filterTo(candidates) { entry ->
+                    val cmp = entry.timestamp.compareTo(from).takeIf { it != 0 } ?: entry.resourceId.compareTo(fromId)
+                    if (inclusive) cmp >= 0 else cmp > 0
+                }
+                ?: return null
+        }
+        return candidates.sortedWith(compareBy<CacheEntry> { it.timestamp }.thenBy { it.resourceId }).stream()
     }
 
-    private fun removeFromIndexes(resource: T) {
+    /**
+     * First `(timestamp, resourceId)` position a read starts at, and whether an entry at exactly
+     * that position is included.
+     */
+    private fun startOf(
+        sinceTimestamp: Long,
+        cursor: PageCursor?,
+    ): Triple<Long, String, Boolean> =
+        if (cursor != null && cursor.timestamp >= sinceTimestamp) {
+            Triple(cursor.timestamp, cursor.resourceId, false)
+        } else {
+            // "" precedes every real resource ID, so all entries at sinceTimestamp are included.
+            Triple(if (sinceTimestamp > 0L) sinceTimestamp else Long.MIN_VALUE, "", true)
+        }
+
+    private fun indexKeysOf(resource: T): List<IndexKey> =
         resource.identifikators
             .filter { entry -> entry.value?.identifikatorverdi != null }
-            .forEach { (key, value) ->
-                index.remove(IndexKey(key, value.identifikatorverdi))
-            }
+            .map { (key, value) -> IndexKey(key, value.identifikatorverdi) }
+
+    private fun lazyEntryOf(
+        resourceId: String,
+        resource: LazyResource<T>,
+        timestamp: Long,
+    ): CacheEntry {
+        check(supportsLazyEntries) { "Cache does not take lazily decoded resources" }
+        val indexKeys = resource.identifiers.map { (key, value) -> IndexKey(key, value) }
+        return CacheEntry(resource, resourceId, timestamp, indexKeys, emptyList())
+    }
+
+    private fun updateIndexes(
+        index: PMap<IndexKey, CacheEntry>,
+        entry: CacheEntry,
+    ): PMap<IndexKey, CacheEntry> = entry.indexKeys.fold(index) { acc, key -> acc.plus(key, entry) }
+
+    private fun removeFromIndexes(
+        index: PMap<IndexKey, CacheEntry>,
+        entry: CacheEntry,
+    ): PMap<IndexKey, CacheEntry> = entry.indexKeys.fold(index) { acc, key -> acc.minus(key) }
+
+    private fun fieldKeysOf(resource: T): List<FieldKey> = indexedFields.flatMap { it.keysOf(resource) }
+
+    private fun updateFieldIndex(
+        fieldIndex: FieldIndex<CacheEntry>,
+        entry: CacheEntry,
+    ): FieldIndex<CacheEntry> = entry.fieldKeys.fold(fieldIndex) { acc, key -> acc.plus(key, entry) }
+
+    private fun removeFromFieldIndex(
+        fieldIndex: FieldIndex<CacheEntry>,
+        entry: CacheEntry,
+    ): FieldIndex<CacheEntry> = entry.fieldKeys.fold(fieldIndex) { acc, key -> acc.minus(key, entry) }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(FintCache::class.java)
     }
 }
@@ -0,0 +1,78 @@
+package no.fintlabs.cache
+
+import org.slf4j.LoggerFactory
+import java.lang.reflect.Method
+import java.util.Date
+import java.util.Optional
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A resource field the cache keeps a [FieldIndex] on, addressed by the slash-separated path
+ * OData filters use, e.g. `elevnummer/identifikatorverdi` or `periode/start`.
+ *
+ * Values are read through the resource's getters; collections along the path contribute every
+ * element. Text, whole numbers and dates can be indexed. If a resource holds a value of any other
+ * type in the field, the field stops being used for lookups, because the index would no longer
+ * know every entry the filter might match.
+ */
+class IndexedField(
+    path: String,
+) {
+    /** Normalized path, matched case-insensitively against the paths in a filter. */
+    val path: String = path.trim().trim('/').lowercase()
+
+    private val segments = this.path.split('/')
+    private val getters = ConcurrentHashMap<Pair<Class<*>, String>, Optional<Method>>()
+
+    /**
+     * Whether the index of this field holds every value of every entry, and may answer lookups.
+     */
+    @Volatile
+    var usable: Boolean = true
+        private set
+
+    /**
+     * Keys under which [resource] is indexed for this field.
+     */
+    fun keysOf(resource: Any): List<FieldKey> =
+        segments
+            .fold(listOf(resource)) { targets, segment -> targets.flatMap { read(it, segment) } }
+            .mapNotNull { value ->
+                keyOf(value) ?: null.also { disable(value) }
+            }
+
+    private fun keyOf(value: Any): FieldKey? =
+        when (value) {
+            is String -> FieldKey(path, FieldKey.Kind.TEXT, value.lowercase())
+            is Long, is Int, is Short, is Byte -> FieldKey(path, FieldKey.Kind.NUMBER, (value as Number).toLong())
+            is Date -> FieldKey(path, FieldKey.Kind.DATE, value.time)
+            else -> null
+        }
+
+    private fun read(
+        target: Any,
+        segment: String,
+    ): List<Any> {
+        val getter = getters.computeIfAbsent(Pair(target.javaClass, segment)) { (type, name) -> getterOf(type, name) }
+        val value = getter.orElse(null)?.invoke(target) ?: return emptyList()
+        return if (value is Collection<*>) value.filterNotNull() else listOf(value)
+    }
+
+    private fun getterOf(
+        type: Class<*>,
+        name: String,
+    ): Optional<Method> =
+        Optional.ofNullable(
+            type.methods.firstOrNull { it.parameterCount == 0 && it.name.lowercase() in setOf("get$name", "is$name") },
+        )
+
+    private fun disable(value: Any) {
+        if (!usable) return
+        usable = false
+        logger.warn("Index on {} disabled, values of type {} can not be indexed", path, value.javaClass.name)
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(IndexedField::class.java)
+    }
+}
@@ -0,0 +1,131 @@
+package no.fintlabs.cache
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import no.novari.fint.model.resource.FintResource
+import java.io.IOException
+
+/**
+ * A resource kept as the raw JSON it was received as, and only decoded when it is first read.
+ *
+ * The identifiers the cache indexes the entry under are read from the JSON up front, see
+ * [LazyResourceReader.read]. The decoded resource is kept from the first read on and the JSON is
+ * dropped, so every later read returns the same instance. JSON that doesn't fit the resource
+ * class fails every read with an [UndecodableResourceException].
+ */
+class LazyResource<T : FintResource> internal constructor(
+    json: ByteArray,
+    /** Identifier values of the resource by identifier field name. */
+    val identifiers: Map<String, String>,
+    private val reader: LazyResourceReader<T>,
+) : StoredResource<T> {
+    @Volatile
+    private var raw: ByteArray? = json
+
+    @Volatile
+    private var materialized: T? = null
+
+    /** Whether the resource has been decoded already. */
+    val isMaterialized: Boolean
+        get() = materialized != null
+
+    /** The JSON the resource was received as, or `null` once it has been decoded. */
+    val rawJson: ByteArray?
+        get() = raw
+
+    /**
+     * @throws UndecodableResourceException if the JSON doesn't fit the resource class.
+     */
+    override val resource: T
+        get() =
+            materialized ?: synchronized(this) {
+                materialized ?: reader.materialize(requireNotNull(raw)).also {
+                    materialized = it
+                    raw = null
+                }
+            }
+
+    /** Always `null`, as the raw JSON still has to be prepared before it can be served. */
+    override val json: ByteArray?
+        get() = null
+}
+
+/**
+ * Reads raw JSON of one resource class into [LazyResource]s.
+ *
+ * [prepare] runs on every resource as it is decoded, before it is handed to any reader, so it is
+ * the place to finish resources the way they would have been before an eager [FintCache.put],
+ * such as mapping their links.
+ */
+class LazyResourceReader<T : FintResource>(
+    private val codec: ResourceCodec<T>,
+    private val jsonFactory: JsonFactory,
+    idFieldNames: Set<String>,
+    private val prepare: (T) -> Unit,
+) {
+    private val idFieldNames = idFieldNames.map { it.lowercase() }.toSet()
+
+    /**
+     * [json] as a [LazyResource]. Only the identifier fields are read, the rest of the JSON is
+     * skipped over without building any objects.
+     */
+    fun read(json: ByteArray): LazyResource<T> = LazyResource(json, identifiersOf(json), this)
+
+    /** [json] decoded right away, without [prepare]. */
+    fun decode(json: ByteArray): T = codec.deserialize(json)
+
+    /**
+     * [json] decoded and prepared right away, as a [LazyResource] is on its first read.
+     *
+     * @throws UndecodableResourceException if [json] doesn't fit the resource class.
+     */
+    fun materialize(json: ByteArray): T {
+        val resource =
+            try {
+                decode(json)
+            } catch (exception: IOException) {
+                throw UndecodableResourceException(exception)
+            }
+        return resource.also(prepare)
+    }
+
+    private fun identifiersOf(json: ByteArray): Map<String, String> {
+        val identifiers = HashMap<String, String>()
+        jsonFactory.createParser(json).use { parser ->
+            if (parser.nextToken() != JsonToken.START_OBJECT) return identifiers
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val field = parser.currentName()
+                val token = parser.nextToken()
+                if (token == JsonToken.START_OBJECT && field.lowercase() in idFieldNames) {
+                    identifierValueOf(parser)?.let { identifiers[field] = it }
+                } else {
+                    parser.skipChildren()
+                }
+            }
+        }
+        return identifiers
+    }
+
+    /** The `identifikatorverdi` of the identifier object the parser is at the start of. */
+    private fun identifierValueOf(parser: JsonParser): String? {
+        var value: String? = null
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.currentName()
+            val token = parser.nextToken()
+            if (field == "identifikatorverdi" && token == JsonToken.VALUE_STRING) {
+                value = parser.text
+            } else {
+                parser.skipChildren()
+            }
+        }
+        return value
+    }
+}
+
+/**
+ * Thrown when the JSON of a [LazyResource] turns out not to fit its resource class on first read.
+ */
+class UndecodableResourceException(
+    cause: IOException,
+) : RuntimeException("Resource JSON does not fit its resource class", cause)
@@ -0,0 +1,95 @@
+package no.fintlabs.cache
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import no.fint.antlr.odata.ODataFilterService
+import org.springframework.http.HttpStatus
+import org.springframework.web.server.ResponseStatusException
+import java.util.concurrent.atomic.AtomicLong
+import java.util.stream.Stream
+
+/**
+ * Remembers which OData `$filter` expressions have already been parsed, so clients polling with
+ * the same filter over and over do not pay for parsing it again on every request.
+ *
+ * The filter library only exposes validation and filtering of a stream, not the parsed
+ * expression, so what is kept per filter text is the outcome of parsing it. Invalid filters are
+ * remembered as well and rejected without being parsed again. At most [maximumSize] filters are
+ * kept, the ones least likely to be used again are dropped first.
+ */
+class ODataFilterCache(
+    maximumSize: Long = DEFAULT_MAXIMUM_SIZE,
+) {
+    private val oDataFilterService = ODataFilterService()
+    private val validFilters: Cache<String, Boolean> =
+        Caffeine
+            .newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build()
+    private val compilations = AtomicLong(0L)
+    private val compilationNanos = AtomicLong(0L)
+
+    /**
+     * Only include [resources] matching [filter].
+     *
+     * @throws ResponseStatusException with `400 Bad Request` if [filter] is not a valid OData filter.
+     */
+    fun <T> apply(
+        resources: Stream<T>,
+        filter: String,
+    ): Stream<T> {
+        validate(filter)
+        return oDataFilterService.from(resources, filter)
+    }
+
+    /**
+     * Whether [resource] matches [filter]. Each resource is tested on its own, so nothing is held
+     * on to between resources, unlike a [apply] of a stream the filter may buffer.
+     *
+     * @throws ResponseStatusException with `400 Bad Request` if [filter] is not a valid OData filter.
+     */
+    fun <T> matches(
+        resource: T,
+        filter: String,
+    ): Boolean = apply(Stream.of(resource), filter).findAny().isPresent
+
+    /**
+     * @throws ResponseStatusException with `400 Bad Request` if [filter] is not a valid OData filter.
+     */
+    fun validate(filter: String) {
+        if (!validFilters.get(filter, ::compile)) {
+            throw ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid OData filter")
+        }
+    }
+
+    private fun compile(filter: String): Boolean {
+        val start = System.nanoTime()
+        return oDataFilterService.validate(filter).also {
+            compilationNanos.addAndGet(System.nanoTime() - start)
+            compilations.incrementAndGet()
+        }
+    }
+
+    /**
+     * Share of filter lookups answered without parsing the filter, or `1.0` before the first lookup.
+     */
+    val hitRatio: Double
+        get() = validFilters.stats().hitRate()
+
+    /**
+     * Number of times a filter has been parsed because it was not cached.
+     */
+    val compileCount: Long
+        get() = compilations.get()
+
+    /**
+     * Total time spent parsing filters that were not cached, in nanoseconds.
+     */
+    val compileTimeNanos: Long
+        get() = compilationNanos.get()
+
+    companion object {
+        const val DEFAULT_MAXIMUM_SIZE = 1_000L
+    }
+}
@@ -0,0 +1,73 @@
+package no.fintlabs.cache
+
+import no.novari.fint.model.resource.FintResource
+import java.lang.foreign.Arena
+import java.lang.foreign.MemorySegment
+import java.lang.foreign.ValueLayout
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps the serialized JSON of each entry outside the Java heap and decodes it only when the
+ * resource is read. Only the small per-entry handle, the indexes, and the hot tier stay on heap,
+ * so the live set the garbage collector has to trace no longer grows with the resource data.
+ *
+ * Every entry gets its own segment from an automatic [Arena]. The memory is released by the
+ * garbage collector once the last snapshot referencing the entry is gone, so readers of older
+ * snapshots never see freed memory. At most [budgetBytes] are held off-heap. Entries that would
+ * exceed the budget are kept as on-heap byte arrays instead.
+ */
+class OffHeapStorage<T : FintResource>(
+    codec: ResourceCodec<T>,
+    hotTierSize: Long,
+    private val budgetBytes: Long,
+) : DecodingStorage<T>(codec, hotTierSize) {
+    private val offHeapByteCount = AtomicLong(0L)
+
+    override val offHeapBytes: Long
+        get() = offHeapByteCount.get()
+
+    override fun hold(json: ByteArray): HeldResource =
+        if (reserve(json.size.toLong())) {
+            val segment = Arena.ofAuto().allocate(json.size.toLong())
+            MemorySegment.copy(json, 0, segment, ValueLayout.JAVA_BYTE, 0L, json.size)
+            OffHeapResource(segment)
+        } else {
+            HeapResource(json)
+        }
+
+    private fun reserve(size: Long): Boolean {
+        while (true) {
+            val used = offHeapByteCount.get()
+            if (used + size > budgetBytes) return false
+            if (offHeapByteCount.compareAndSet(used, used + size)) return true
+        }
+    }
+
+    private inner class OffHeapResource(
+        private val segment: MemorySegment,
+    ) : HeldResource() {
+        override val storedSize: Long
+            get() = segment.byteSize()
+
+        override val length: Int
+            get() = segment.byteSize().toInt()
+
+        override val json: ByteArray
+            get() = segment.toArray(ValueLayout.JAVA_BYTE)
+
+        override fun release() {
+            super.release()
+            offHeapByteCount.addAndGet(-segment.byteSize())
+        }
+    }
+
+    private inner class HeapResource(
+        override val json: ByteArray,
+    ) : HeldResource() {
+        override val storedSize: Long
+            get() = json.size.toLong()
+
+        override val length: Int
+            get() = json.size
+    }
+}
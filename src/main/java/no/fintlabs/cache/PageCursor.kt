@@ -0,0 +1,49 @@
+package no.fintlabs.cache
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.server.ResponseStatusException
+import java.util.Base64
+
+/**
+ * Position in the `(timestamp, resourceId)` order of a [FintCache], pointing at the last entry
+ * of a page. The next page starts right after it, so reading it costs a seek instead of skipping
+ * every entry of the pages before it. The cursor also counts the matches up to that point, so
+ * the next page can report the total number of matches without counting the earlier ones again.
+ *
+ * Clients only see the [encode]d form and pass it back unchanged.
+ */
+data class PageCursor(
+    val timestamp: Long,
+    val resourceId: String,
+    /** Number of entries matching the read up to and including the one the cursor points at. */
+    val position: Long = 0L,
+) {
+    fun encode(): String = encoder.encodeToString("$timestamp:$position:$resourceId".toByteArray(Charsets.UTF_8))
+
+    companion object {
+        private val encoder = Base64.getUrlEncoder().withoutPadding()
+        private val decoder = Base64.getUrlDecoder()
+
+        /**
+         * @throws ResponseStatusException with `400 Bad Request` if [value] is not a cursor
+         *   produced by [encode].
+         */
+        fun decode(value: String): PageCursor {
+            val decoded =
+                try {
+                    String(decoder.decode(value), Charsets.UTF_8)
+                } catch (_: IllegalArgumentException) {
+                    throw invalidCursor()
+                }
+
+            val parts = decoded.split(':', limit = 3)
+            val timestamp = parts[0].toLongOrNull()
+            val position = parts.getOrNull(1)?.toLongOrNull()
+            if (parts.size < 3 || timestamp == null || position == null || position < 0) throw invalidCursor()
+
+            return PageCursor(timestamp, parts[2], position)
+        }
+
+        private fun invalidCursor() = ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor")
+    }
+}
@@ -0,0 +1,16 @@
+package no.fintlabs.cache
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import no.novari.fint.model.resource.FintResource
+
+/**
+ * JSON round trip used by storage modes that keep resources as bytes.
+ */
+class ResourceCodec<T : FintResource>(
+    private val objectMapper: ObjectMapper,
+    private val resourceClass: Class<out T>,
+) {
+    fun serialize(resource: T): ByteArray = objectMapper.writeValueAsBytes(resource)
+
+    fun deserialize(json: ByteArray): T = objectMapper.readValue(json, resourceClass)
+}
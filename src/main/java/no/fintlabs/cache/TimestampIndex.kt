@@ -0,0 +1,491 @@
+package no.fintlabs.cache
+
+/**
+ * Persistent ordered index of elements by `(timestamp, resourceId)`.
+ *
+ * A copy-on-write B+tree: leaves hold up to [MAX_NODE_SIZE] timestamps in a primitive
+ * [LongArray] next to the elements themselves, and inner nodes hold up to [MAX_NODE_SIZE]
+ * children together with their subtree sizes. Every update copies only the path from the root
+ * to the affected leaf and shares everything else with the previous version, so a published
+ * index never changes and can be read without locking. Compared to a persistent red-black tree
+ * keyed by a composite key object, this avoids a key object and a tree node per element.
+ *
+ * The resource ID is only consulted to order elements with equal timestamps, and is read from
+ * the element itself rather than stored a second time.
+ */
+class TimestampIndex<E : TimestampIndex.Element> private constructor(
+    private val root: Node,
+) : Iterable<E> {
+    /**
+     * Element stored in the index, exposing its sort key.
+     */
+    interface Element {
+        val timestamp: Long
+        val resourceId: String
+    }
+
+    val size: Int
+        get() = root.size
+
+    fun isEmpty(): Boolean = root.size == 0
+
+    /**
+     * Returns an index containing [element], replacing an element with the same
+     * `(timestamp, resourceId)` if present.
+     */
+    fun plus(element: E): TimestampIndex<E> {
+        val result = insert(root, element)
+        return TimestampIndex(if (result.size == 1) result[0] else inner(result))
+    }
+
+    /**
+     * Returns an index without the element stored under `(timestamp, resourceId)`.
+     */
+    fun minus(
+        timestamp: Long,
+        resourceId: String,
+    ): TimestampIndex<E> {
+        val result = remove(root, timestamp, resourceId)
+        return when {
+            result === root -> this
+            result == null -> empty()
+            else -> TimestampIndex(collapse(result))
+        }
+    }
+
+    /**
+     * Returns an index without the elements whose timestamp is less than [timestamp]. Subtrees
+     * lying entirely below the bound are dropped without being visited.
+     */
+    fun minusBefore(timestamp: Long): TimestampIndex<E> {
+        val result = removeBefore(root, timestamp)
+        return when {
+            result === root -> this
+            result == null -> empty()
+            else -> TimestampIndex(collapse(result))
+        }
+    }
+
+    /**
+     * Elements with a timestamp less than [timestamp], in ascending order.
+     */
+    fun headBefore(timestamp: Long): List<E> = iterator().asSequence().takeWhile { it.timestamp < timestamp }.toList()
+
+    override fun iterator(): Iterator<E> = iteratorFrom(Long.MIN_VALUE, "", inclusive = true)
+
+    /**
+     * Ascending iterator starting at the first element at or after `(timestamp, resourceId)`,
+     * or strictly after it when [inclusive] is `false`.
+     */
+    fun iteratorFrom(
+        timestamp: Long,
+        resourceId: String,
+        inclusive: Boolean,
+    ): Iterator<E> = Cursor(timestamp, resourceId, inclusive)
+
+    /**
+     * Number of elements at or after `(timestamp, resourceId)`, or strictly after it when
+     * [inclusive] is `false`. Runs in logarithmic time using the subtree sizes.
+     */
+    fun countFrom(
+        timestamp: Long,
+        resourceId: String,
+        inclusive: Boolean,
+    ): Int {
+        var node = root
+        var count = 0
+        while (node is Inner) {
+            val index = childIndexFor(node, timestamp, resourceId)
+            for (i in index + 1 until node.children.size) count += node.children[i].size
+            node = node.children[index]
+        }
+        val leaf = node as Leaf
+        return count + leaf.size - lowerBound(leaf, timestamp, resourceId, inclusive)
+    }
+
+    private abstract class Node {
+        abstract val size: Int
+        abstract val firstTimestamp: Long
+        abstract val firstResourceId: String
+    }
+
+    private class Leaf(
+        val timestamps: LongArray,
+        val elements: Array<Element>,
+    ) : Node() {
+        override val size: Int
+            get() = timestamps.size
+        override val firstTimestamp: Long
+            get() = timestamps[0]
+        override val firstResourceId: String
+            get() = elements[0].resourceId
+    }
+
+    private class Inner(
+        val children: Array<Node>,
+    ) : Node() {
+        override val size: Int = children.sumOf { it.size }
+        override val firstTimestamp: Long = children[0].firstTimestamp
+        override val firstResourceId: String = children[0].firstResourceId
+    }
+
+    private inner class Cursor(
+        timestamp: Long,
+        resourceId: String,
+        inclusive: Boolean,
+    ) : Iterator<E> {
+        // Path of inner nodes and the child index taken in each, root first.
+        private val path = ArrayList<Inner>()
+        private val pathIndexes = ArrayList<Int>()
+        private var leaf: Leaf
+        private var position: Int
+
+        init {
+            var node = root
+            while (node is Inner) {
+                val index = childIndexFor(node, timestamp, resourceId)
+                path.add(node)
+                pathIndexes.add(index)
+                node = node.children[index]
+            }
+            leaf = node as Leaf
+            position = lowerBound(leaf, timestamp, resourceId, inclusive)
+        }
+
+        override fun hasNext(): Boolean {
+            while (position >= leaf.size) {
+                if (!advanceLeaf()) return false
+            }
+            return true
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        override fun next(): E {
+            if (!hasNext()) throw NoSuchElementException()
+            return leaf.elements[position++] as E
+        }
+
+        private fun advanceLeaf(): Boolean {
+            var depth = path.size - 1
+            while (depth >= 0 && pathIndexes[depth] + 1 >= path[depth].children.size) depth--
+            if (depth < 0) return false
+
+            pathIndexes[depth] = pathIndexes[depth] + 1
+            var node = path[depth].children[pathIndexes[depth]]
+            while (path.size > depth + 1) {
+                path.removeAt(path.size - 1)
+                pathIndexes.removeAt(pathIndexes.size - 1)
+            }
+            while (node is Inner) {
+                path.add(node)
+                pathIndexes.add(0)
+                node = node.children[0]
+            }
+            leaf = node as Leaf
+            position = 0
+            return true
+        }
+    }
+
+    companion object {
+        /** Maximum number of elements in a leaf and of children in an inner node. */
+        const val MAX_NODE_SIZE = 64
+
+        /** Nodes below this size are merged with a neighbour when one of them shrinks. */
+        private const val MIN_NODE_SIZE = MAX_NODE_SIZE / 4
+
+        private val EMPTY = TimestampIndex<Element>(Leaf(LongArray(0), emptyArray()))
+
+        @Suppress("UNCHECKED_CAST")
+        fun <E : Element> empty(): TimestampIndex<E> = EMPTY as TimestampIndex<E>
+
+        private fun compare(
+            timestamp: Long,
+            resourceId: String,
+            otherTimestamp: Long,
+            otherResourceId: String,
+        ): Int {
+            val cmp = timestamp.compareTo(otherTimestamp)
+            return if (cmp != 0) cmp else resourceId.compareTo(otherResourceId)
+        }
+
+        /** Index of the last child whose first key is at or before the key, or `0`. */
+        private fun childIndexFor(
+            node: Inner,
+            timestamp: Long,
+            resourceId: String,
+        ): Int {
+            var low = 1
+            var high = node.children.size - 1
+            var result = 0
+            while (low <= high) {
+                val mid = (low + high) ushr 1
+                val child = node.children[mid]
+                if (compare(child.firstTimestamp, child.firstResourceId, timestamp, resourceId) <= 0) {
+                    result = mid
+                    low = mid + 1
+                } else {
+                    high = mid - 1
+                }
+            }
+            return result
+        }
+
+        /** Position of the key in the leaf, or `-(insertion point) - 1` if absent. */
+        private fun search(
+            leaf: Leaf,
+            timestamp: Long,
+            resourceId: String,
+        ): Int {
+            var low = 0
+            var high = leaf.size - 1
+            while (low <= high) {
+                val mid = (low + high) ushr 1
+                val cmp = compare(leaf.timestamps[mid], leaf.elements[mid].resourceId, timestamp, resourceId)
+                when {
+                    cmp < 0 -> low = mid + 1
+                    cmp > 0 -> high = mid - 1
+                    else -> return mid
+                }
+            }
+            return -(low + 1)
+        }
+
+        private fun lowerBound(
+            leaf: Leaf,
+            timestamp: Long,
+            resourceId: String,
+            inclusive: Boolean,
+        ): Int {
+            val position = search(leaf, timestamp, resourceId)
+            return when {
+                position < 0 -> -(position + 1)
+                inclusive -> position
+                else -> position + 1
+            }
+        }
+
+        private fun inner(children: Array<Node>): Node = Inner(children)
+
+        /** Replace a root with a single child by that child. */
+        private fun collapse(node: Node): Node {
+            var current = node
+            while (current is Inner && current.children.size == 1) current = current.children[0]
+            return current
+        }
+
+        private fun insert(
+            node: Node,
+            element: Element,
+        ): Array<Node> =
+            when (node) {
+                is Leaf -> insertIntoLeaf(node, element)
+                is Inner -> insertIntoInner(node, element)
+                else -> error("Unknown node type")
+            }
+
+        private fun insertIntoLeaf(
+            leaf: Leaf,
+            element: Element,
+        ): Array<Node> {
+            val position = search(leaf, element.timestamp, element.resourceId)
+            if (position >= 0) {
+                val elements = leaf.elements.copyOf()
+                elements[position] = element
+                return arrayOf(Leaf(leaf.timestamps, elements))
+            }
+
+            val insertAt = -(position + 1)
+            val size = leaf.size + 1
+            val timestamps = LongArray(size)
+            val elements = arrayOfNulls<Element>(size)
+            leaf.timestamps.copyInto(timestamps, 0, 0, insertAt)
+            leaf.elements.copyInto(elements, 0, 0, insertAt)
+            timestamps[insertAt] = element.timestamp
+            elements[insertAt] = element
+            leaf.timestamps.copyInto(timestamps, insertAt + 1, insertAt)
+            leaf.elements.copyInto(elements, insertAt + 1, insertAt)
+
+            @Suppress("UNCHECKED_CAST")
+            val filled = elements as Array<Element>
+            if (size <= MAX_NODE_SIZE) return arrayOf(Leaf(timestamps, filled))
+
+            val half = size / 2
+            return arrayOf(
+                Leaf(timestamps.copyOfRange(0, half), filled.copyOfRange(0, half)),
+                Leaf(timestamps.copyOfRange(half, size), filled.copyOfRange(half, size)),
+            )
+        }
+
+        private fun insertIntoInner(
+            node: Inner,
+            element: Element,
+        ): Array<Node> {
+            val index = childIndexFor(node, element.timestamp, element.resourceId)
+            val result = insert(node.children[index], element)
+            val children = replaceChild(node.children, index, result)
+            if (children.size <= MAX_NODE_SIZE) return arrayOf(Inner(children))
+
+            val half = children.size / 2
+            return arrayOf(
+                Inner(children.copyOfRange(0, half)),
+                Inner(children.copyOfRange(half, children.size)),
+            )
+        }
+
+        private fun remove(
+            node: Node,
+            timestamp: Long,
+            resourceId: String,
+        ): Node? =
+            when (node) {
+                is Leaf -> {
+                    val position = search(node, timestamp, resourceId)
+                    when {
+                        position < 0 -> node
+                        node.size == 1 -> null
+                        else -> Leaf(node.timestamps.without(position), node.elements.without(position))
+                    }
+                }
+
+                is Inner -> {
+                    val index = childIndexFor(node, timestamp, resourceId)
+                    val child = node.children[index]
+                    val result = remove(child, timestamp, resourceId)
+                    when {
+                        result === child -> node
+                        result == null && node.children.size == 1 -> null
+                        result == null -> Inner(node.children.without(index))
+                        else -> Inner(mergeIfUnderfull(replaceChild(node.children, index, arrayOf(result)), index))
+                    }
+                }
+
+                else -> {
+                    error("Unknown node type")
+                }
+            }
+
+        private fun removeBefore(
+            node: Node,
+            timestamp: Long,
+        ): Node? =
+            when (node) {
+                is Leaf -> {
+                    var keepFrom = 0
+                    while (keepFrom < node.size && node.timestamps[keepFrom] < timestamp) keepFrom++
+                    when (keepFrom) {
+                        0 -> {
+                            node
+                        }
+
+                        node.size -> {
+                            null
+                        }
+
+                        else -> {
+                            Leaf(
+                                node.timestamps.copyOfRange(keepFrom, node.size),
+                                node.elements.copyOfRange(keepFrom, node.size),
+                            )
+                        }
+                    }
+                }
+
+                is Inner -> {
+                    // Every key in child i is below the first key of child i + 1, so children
+                    // followed by a sibling starting before the bound lie entirely below it.
+                    var boundary = 0
+                    while (boundary + 1 < node.children.size &&
+                        node.children[boundary + 1].firstTimestamp < timestamp
+                    ) {
+                        boundary++
+                    }
+                    val child = node.children[boundary]
+                    val result = removeBefore(child, timestamp)
+                    if (boundary == 0 && result === child) {
+                        node
+                    } else {
+                        val kept = node.children.copyOfRange(boundary + 1, node.children.size)
+                        val children = if (result == null) kept else arrayOf(result) + kept
+                        if (children.isEmpty()) null else Inner(mergeIfUnderfull(children, 0))
+                    }
+                }
+
+                else -> {
+                    error("Unknown node type")
+                }
+            }
+
+        private fun replaceChild(
+            children: Array<Node>,
+            index: Int,
+            replacement: Array<Node>,
+        ): Array<Node> {
+            if (replacement.size == 1) {
+                return children.copyOf().also { it[index] = replacement[0] }
+            }
+            val result = arrayOfNulls<Node>(children.size + replacement.size - 1)
+            children.copyInto(result, 0, 0, index)
+            replacement.copyInto(result, index)
+            children.copyInto(result, index + replacement.size, index + 1)
+            @Suppress("UNCHECKED_CAST")
+            return result as Array<Node>
+        }
+
+        /**
+         * Merge the child at [index] with a neighbour of the same kind when it has shrunk below
+         * [MIN_NODE_SIZE] and the two fit in one node.
+         */
+        private fun mergeIfUnderfull(
+            children: Array<Node>,
+            index: Int,
+        ): Array<Node> {
+            val child = children[index]
+            if (nodeWidth(child) >= MIN_NODE_SIZE || children.size == 1) return children
+
+            val left = if (index > 0) index - 1 else index
+            val merged = merge(children[left], children[left + 1]) ?: return children
+            return replaceChild(children.without(left + 1), left, arrayOf(merged))
+        }
+
+        private fun merge(
+            first: Node,
+            second: Node,
+        ): Node? {
+            if (nodeWidth(first) + nodeWidth(second) > MAX_NODE_SIZE) return null
+            return when {
+                first is Leaf && second is Leaf -> {
+                    Leaf(
+                        first.timestamps + second.timestamps,
+                        first.elements + second.elements,
+                    )
+                }
+
+                first is Inner && second is Inner -> {
+                    Inner(first.children + second.children)
+                }
+
+                else -> {
+                    null
+                }
+            }
+        }
+
+        private fun nodeWidth(node: Node): Int = if (node is Inner) node.children.size else node.size
+
+        private fun LongArray.without(index: Int): LongArray {
+            val result = LongArray(size - 1)
+            copyInto(result, 0, 0, index)
+            copyInto(result, index, index + 1)
+            return result
+        }
+
+        private inline fun <reified T> Array<T>.without(index: Int): Array<T> {
+            val result = arrayOfNulls<T>(size - 1)
+            copyInto(result, 0, 0, index)
+            copyInto(result, index, index + 1)
+            @Suppress("UNCHECKED_CAST")
+            return result as Array<T>
+        }
+    }
+}
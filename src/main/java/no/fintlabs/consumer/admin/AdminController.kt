@@ -1,8 +1,14 @@
 package no.fintlabs.consumer.admin
 
 import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.CacheSnapshotService
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.config.EndpointsConstants
+import org.springframework.core.io.buffer.DataBuffer
+import org.springframework.core.io.buffer.DataBufferUtils
+import org.springframework.core.io.buffer.DefaultDataBufferFactory
+import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
@@ -10,12 +16,14 @@ import org.springframework.web.bind.annotation.PostMapping
 import org.springframework.web.bind.annotation.RequestHeader
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RestController
+import reactor.core.publisher.Flux
 import java.util.Date
 
 @RestController
 @RequestMapping(EndpointsConstants.ADMIN)
 class AdminController(
     private val cacheService: CacheService,
+    private val cacheSnapshotService: CacheSnapshotService,
     private val configuration: ConsumerConfiguration,
 ) {
     @GetMapping("/health")
@@ -53,6 +61,27 @@ class AdminController(
             CacheEntry(Date(cache.lastUpdated), cache.size)
         }
 
+    /**
+     * Stream a binary snapshot of all caches and the Kafka offsets it reflects, for a new pod to
+     * bootstrap its caches from (see `fint.consumer.cache.snapshot.peer-url`). Only served to
+     * pods sending the `fint.consumer.cache.snapshot.peer-token`.
+     */
+    @GetMapping(EndpointsConstants.CACHE_SNAPSHOT, produces = [MediaType.APPLICATION_OCTET_STREAM_VALUE])
+    fun cacheSnapshot(
+        @RequestHeader(name = CacheSnapshotService.PEER_TOKEN_HEADER, required = false) token: String?,
+    ): ResponseEntity<Flux<DataBuffer>> {
+        if (!cacheSnapshotService.servesPeers) return ResponseEntity.notFound().build()
+        if (!cacheSnapshotService.isPeer(token)) return ResponseEntity.status(HttpStatus.FORBIDDEN).build()
+        if (!cacheSnapshotService.hasSnapshot) return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build()
+
+        val snapshot =
+            DataBufferUtils.outputStreamPublisher(
+                cacheSnapshotService::writeTo,
+                DefaultDataBufferFactory.sharedInstance,
+            ) { task -> Thread.ofVirtual().name("cache-snapshot-peer").start(task) }
+        return ResponseEntity.ok(Flux.from(snapshot))
+    }
+
     @PostMapping("/cache/rebuild", "/cache/rebuild/{model}")
     fun rebuildCache(
         @RequestHeader(name = "x-client") client: String?,
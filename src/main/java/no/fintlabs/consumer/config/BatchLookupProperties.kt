@@ -0,0 +1,12 @@
+package no.fintlabs.consumer.config
+
+import org.springframework.boot.context.properties.ConfigurationProperties
+
+@ConfigurationProperties(prefix = "fint.consumer.batch-lookup")
+data class BatchLookupProperties(
+    /**
+     * Maximum number of identifier values one batch lookup may ask for. Larger batches are
+     * rejected with `400 Bad Request`. Default: 1 000.
+     */
+    val maxIds: Int = 1_000,
+)
@@ -0,0 +1,155 @@
+package no.fintlabs.consumer.config
+
+import org.springframework.boot.context.properties.ConfigurationProperties
+import org.springframework.util.unit.DataSize
+import java.time.Duration
+
+@ConfigurationProperties(prefix = "fint.consumer.cache")
+data class CacheProperties(
+    /** Fallback settings used when no resource-specific config is present. */
+    val defaults: ResourceCache = ResourceCache(),
+    /** Specific settings per resource (key: resource name). */
+    val resources: Map<String, ResourceCache> = emptyMap(),
+    /** Local disk snapshots of all caches, used to skip most of the replay on restart. */
+    val snapshot: Snapshot = Snapshot(),
+    /** Serialized collection pages kept for clients polling the same page. */
+    val responseCache: ResponseCache = ResponseCache(),
+) {
+    fun getResourceCacheConfig(resourceName: String): ResourceCache = resources[resourceName.lowercase()] ?: defaults
+
+    data class ResourceCache(
+        /**
+         * Number of independently locked shards the resource cache is partitioned into.
+         * Raise above 1 together with `fint.consumer.kafka.entity-concurrency` for resources
+         * with heavy write traffic. Default: 1.
+         */
+        val shards: Int = 1,
+        /**
+         * How cached resources are held in memory. See [StorageMode]. Default: [StorageMode.OBJECT].
+         */
+        val storage: StorageMode = StorageMode.OBJECT,
+        /**
+         * Maximum number of decoded resources kept in memory when [storage] is
+         * [StorageMode.COMPRESSED] or [StorageMode.OFF_HEAP]. Default: 10 000.
+         */
+        val hotTierSize: Long = 10_000,
+        /**
+         * Maximum amount of off-heap memory used when [storage] is [StorageMode.OFF_HEAP].
+         * Entries beyond the budget are kept on heap. Default: 1GB.
+         */
+        val offHeapBudget: DataSize = DataSize.ofGigabytes(1),
+        /**
+         * Maximum number of distinct OData filters whose parse result is kept for reuse.
+         * Default: 1 000.
+         */
+        val filterCacheSize: Long = 1_000,
+        /**
+         * Resource fields to keep secondary indexes on, as OData paths such as
+         * `elevnummer/identifikatorverdi` or `periode/start`. Equality, `in` and range clauses on
+         * these fields narrow filtered reads down to the matching entries instead of scanning
+         * the whole cache. Default: none.
+         */
+        val indexedFields: List<String> = emptyList(),
+        /**
+         * Maximum number of removed resources remembered for change reads. Changes since before
+         * the oldest remembered removal are answered with `410 Gone`, and clients have to read
+         * the whole collection instead. Default: 100 000.
+         */
+        val removalLogSize: Int = 100_000,
+        /**
+         * Whether entity records are kept as their raw JSON, with only the identifiers read on
+         * ingestion, and decoded and link-mapped when the resource is first read. Cuts ingestion
+         * CPU and heap for resources that are written far more often than read. Only applies
+         * with [storage] [StorageMode.OBJECT], no [indexedFields] and autorelation disabled, as
+         * those need the decoded resource on ingestion. Values that don't fit the resource class
+         * are dropped and logged when first read instead of being skipped on ingestion.
+         * Default: false.
+         */
+        val lazyDecode: Boolean = false,
+    )
+
+    data class Snapshot(
+        /**
+         * Whether all caches are written to [directory] periodically and on shutdown, and
+         * restored from there on startup. Entity topics are then only replayed from the offsets
+         * the snapshot was taken at. Default: false.
+         */
+        val enabled: Boolean = false,
+        /**
+         * Directory the snapshots are kept in. Must be on a volume that outlives the pod for
+         * restarts to be warm. Default: `/tmp/fint-core-consumer/snapshots`.
+         */
+        val directory: String = "/tmp/fint-core-consumer/snapshots",
+        /** Time between two snapshots. Default: 5 minutes. */
+        val interval: Duration = Duration.ofMinutes(5),
+        /**
+         * Snapshots older than this are not restored, and the entity topics are replayed from the
+         * beginning instead. Default: 24 hours.
+         */
+        val maxAge: Duration = Duration.ofHours(24),
+        /**
+         * Base URL of the same component on a warm pod, including the WebFlux base path, e.g.
+         * `http://fint-core-consumer-utdanning-vurdering:8080/utdanning/vurdering`. A pod without
+         * a snapshot of its own loads the caches from there on startup instead of replaying the
+         * entity topics from the beginning. Works with [enabled] off. Default: none.
+         */
+        val peerUrl: String? = null,
+        /**
+         * Shared secret of all pods of the component. The snapshot endpoint only answers requests
+         * carrying it, and a pod bootstrapping from [peerUrl] sends it along. Without it the
+         * endpoint answers `404 Not Found`. Pods call each other without a bearer token, so the
+         * endpoint also has to be listed in `fint.security.exposed-endpoints`. Default: none.
+         */
+        val peerToken: String? = null,
+        /** Time allowed for connecting to [peerUrl]. Default: 5 seconds. */
+        val peerConnectTimeout: Duration = Duration.ofSeconds(5),
+        /**
+         * Time allowed between two reads of the snapshot streamed from [peerUrl] before the
+         * bootstrap is given up. Default: 30 seconds.
+         */
+        val peerReadTimeout: Duration = Duration.ofSeconds(30),
+    )
+
+    data class ResponseCache(
+        /**
+         * Whether serialized collection pages are kept and served again until the resource cache
+         * changes. Default: false.
+         */
+        val enabled: Boolean = false,
+        /** Maximum size of all kept pages together. Default: 64MB. */
+        val maxSize: DataSize = DataSize.ofMegabytes(64),
+        /**
+         * Whether a gzip-compressed copy of every page is kept too, and sent to clients accepting
+         * gzip. Default: true.
+         */
+        val gzip: Boolean = true,
+    )
+
+    enum class StorageMode {
+        /** Resources are kept as objects and serialized for every response. */
+        OBJECT,
+
+        /**
+         * Resources are serialized to JSON once on ingestion and the bytes are kept next to the
+         * object, so collection and by-id responses are written without re-serializing. Costs
+         * roughly the JSON size of the resource in extra heap per entry. Responses subject to
+         * OPA field filtering still go through regular serialization.
+         */
+        PRE_SERIALIZED,
+
+        /**
+         * Resources are kept as LZ4-compressed JSON and decoded on read, with the most recently
+         * used decoded resources kept in a bounded hot tier (see [ResourceCache.hotTierSize]).
+         * Trades CPU on reads of cold entries for a much smaller heap. Collection and by-id
+         * responses are written from the decompressed JSON, like [PRE_SERIALIZED].
+         */
+        COMPRESSED,
+
+        /**
+         * Resources are kept as JSON outside the Java heap and decoded on read, with a hot tier
+         * like [COMPRESSED]. Keeps large resources out of the heap the garbage collector has to
+         * trace. Bounded by [ResourceCache.offHeapBudget].
+         */
+        OFF_HEAP,
+    }
+}
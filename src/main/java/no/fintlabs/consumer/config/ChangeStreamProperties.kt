@@ -0,0 +1,19 @@
+package no.fintlabs.consumer.config
+
+import org.springframework.boot.context.properties.ConfigurationProperties
+
+@ConfigurationProperties(prefix = "fint.consumer.change-stream")
+data class ChangeStreamProperties(
+    /**
+     * Maximum number of changes waiting to be sent to one change stream subscriber. A subscriber
+     * falling further behind has its stream closed and resumes from its last received change
+     * when it reconnects. Default: 1 000.
+     */
+    val bufferSize: Int = 1_000,
+    /**
+     * Number of the most recent changes of every streamed resource kept for subscribers resuming
+     * with `Last-Event-ID`. A subscriber that has missed more gets a `resync` event instead.
+     * Default: 10 000.
+     */
+    val retainedChanges: Int = 10_000,
+)
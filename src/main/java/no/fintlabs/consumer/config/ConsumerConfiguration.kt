@@ -48,6 +48,15 @@ data class KafkaConfiguration(
     // Entity consumption in EntityConsumer & AutoRelationEntityConsumer
     val consumeLegacyResourceTopics: Boolean = false,
     val entityConcurrency: Int = 1,
+    // When true, EntityConsumer takes a whole poll at once and applies its newest records with grouped cache writes
+    val entityBatchListener: Boolean = false,
+    // Lanes EntityConsumer applies records on in parallel, in order per key. 1 applies them on the consumer thread.
+    // Ignored, with a warning on startup, when entityBatchListener is true
+    val entityProcessingConcurrency: Int = 1,
+    // Records waiting in or applied by the lanes at once before the consumer thread waits for them
+    val entityProcessingMaxInFlight: Int = 1000,
+    // When true, AutoRelationEntityConsumer hands its partitions over to EntityConsumer once caught up with it
+    val sharedEntityRead: Boolean = false,
     val relationEntitySeekToBeginning: Boolean = false,
     val fetchMinBytes: Int = 65536,
     val fetchMaxWaitMs: Int = 500,
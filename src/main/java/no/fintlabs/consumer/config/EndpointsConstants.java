@@ -6,6 +6,9 @@ public class EndpointsConstants {
     public static final String LAST_UPDATED = "/last-updated";
     public static final String CACHE_SIZE = "/cache/size";
     public static final String BY_ID = "/{idField}/{idValue}";
+    public static final String BY_IDS = "/{idField}/$batch";
     public static final String STATUS_ID = "/status/{corrId}";
+    public static final String CACHE_SNAPSHOT = "/cache/snapshot";
+    public static final String CHANGES = "/changes";
 
 }
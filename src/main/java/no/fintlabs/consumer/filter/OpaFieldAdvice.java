@@ -1,18 +1,28 @@
 package no.fintlabs.consumer.filter;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.databind.ser.PropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
 import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import no.fintlabs.consumer.resource.dto.SerializedResource;
 import no.fintlabs.resource.server.config.OpaProperties;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.http.converter.json.MappingJacksonValue;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.HandlerResult;
 import org.springframework.web.reactive.accept.RequestedContentTypeResolver;
 import org.springframework.web.reactive.result.method.annotation.ResponseBodyResultHandler;
 import org.springframework.web.server.ServerWebExchange;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.Collections;
@@ -29,24 +39,35 @@ public class OpaFieldAdvice extends ResponseBodyResultHandler {
     private static final Set<String> EMPTY = Collections.emptySet();
 
     private final OpaProperties opaProperties;
+    private final ObjectMapper objectMapper;
 
     public OpaFieldAdvice(ServerCodecConfigurer codecs,
                           RequestedContentTypeResolver resolver,
-                          OpaProperties opaProperties) {
+                          OpaProperties opaProperties,
+                          ObjectMapper objectMapper) {
         super(codecs.getWriters(), resolver);
         this.opaProperties = opaProperties;
+        this.objectMapper = objectMapper;
     }
 
     @NotNull
     @Override
     public Mono<Void> handleResult(@NotNull ServerWebExchange exchange,
                                    @NotNull HandlerResult result) {
+        // A 304 has no body, so there is nothing to prune or write.
+        if (exchange.isNotModified()) {
+            return exchange.getResponse().setComplete();
+        }
+
         Object body;
+        OpaFieldSelection selection = selectionOf(exchange);
+        Set<String> select = selectOf(exchange);
 
-        if (opaProperties.getEnabled()) {
-            Set<String> fields = extractSet(exchange, FIELDS_KEY);
-            Set<String> rels = extractSet(exchange, RELS_KEY);
-            body = applyPruning(result.getReturnValue(), fields, rels);
+        if (selection != null || select != null) {
+            FilterProvider filters = filterProvider(selection, select);
+            body = result.getReturnValue() instanceof Flux<?> elements
+                    ? applyPruning(elements, filters)
+                    : applyPruning(result.getReturnValue(), filters);
         } else {
             body = result.getReturnValue();
         }
@@ -57,6 +78,36 @@ public class OpaFieldAdvice extends ResponseBodyResultHandler {
         );
     }
 
+    /**
+     * The OPA field selection the response body of {@code exchange} is pruned with, or {@code null}
+     * if OPA field filtering is disabled.
+     */
+    @Nullable
+    public OpaFieldSelection selectionOf(ServerWebExchange exchange) {
+        return opaProperties.getEnabled()
+                ? new OpaFieldSelection(extractSet(exchange, FIELDS_KEY), extractSet(exchange, RELS_KEY))
+                : null;
+    }
+
+    /**
+     * The properties the {@code $select} parameter of {@code exchange} projects resources to, or
+     * {@code null} if it selects nothing.
+     */
+    @Nullable
+    public Set<String> selectOf(ServerWebExchange exchange) {
+        return SelectFilter.parse(exchange.getRequest().getQueryParams().getFirst(SelectFilter.SELECT_PARAM));
+    }
+
+    /**
+     * Writer that serializes a body the way this handler does for a request with {@code selection}
+     * and {@code select}.
+     */
+    public ObjectWriter writerFor(@Nullable OpaFieldSelection selection, @Nullable Set<String> select) {
+        return selection == null && select == null
+                ? objectMapper.writer()
+                : objectMapper.writer(filterProvider(selection, select));
+    }
+
     private Set<String> extractSet(ServerWebExchange exchange, String key) {
         Object attr = exchange.getAttribute(key);
         if (attr instanceof Set<?> raw) {
@@ -72,13 +123,50 @@ public class OpaFieldAdvice extends ResponseBodyResultHandler {
         return EMPTY;
     }
 
-    private MappingJacksonValue applyPruning(Object value, Set<String> fields, Set<String> rels) {
-        FilterProvider fp = new SimpleFilterProvider()
-                .addFilter("opaFilter", new OpaFilter(fields, rels))
-                .setFailOnUnknownId(false);
-
+    private MappingJacksonValue applyPruning(Object value, FilterProvider filters) {
         MappingJacksonValue mappingJacksonValue = new MappingJacksonValue(value);
-        mappingJacksonValue.setFilters(fp);
+        mappingJacksonValue.setFilters(filters);
         return mappingJacksonValue;
     }
+
+    /**
+     * Streaming encoders write every element with one shared writer and ignore per-element
+     * {@link MappingJacksonValue} filters, so streamed elements are serialized with the filters here.
+     * Server-sent events keep their fields and only have their data serialized.
+     */
+    private Flux<Object> applyPruning(Flux<?> elements, FilterProvider filters) {
+        ObjectWriter writer = objectMapper.writer(filters);
+        return elements.map(element -> element instanceof ServerSentEvent<?> event
+                ? applyPruning(event, writer)
+                : serialize(element, writer));
+    }
+
+    private ServerSentEvent<Object> applyPruning(ServerSentEvent<?> event, ObjectWriter writer) {
+        ServerSentEvent.Builder<Object> builder = ServerSentEvent.builder()
+                .id(event.id())
+                .event(event.event())
+                .retry(event.retry())
+                .comment(event.comment());
+        if (event.data() != null) {
+            builder.data(serialize(event.data(), writer));
+        }
+        return builder.build();
+    }
+
+    private SerializedResource serialize(Object value, ObjectWriter writer) {
+        try {
+            return new SerializedResource(writer.writeValueAsBytes(value));
+        } catch (JsonProcessingException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private FilterProvider filterProvider(@Nullable OpaFieldSelection selection, @Nullable Set<String> select) {
+        PropertyFilter filter = selection == null
+                ? SimpleBeanPropertyFilter.serializeAll()
+                : new OpaFilter(selection.fields(), selection.relations());
+        return new SimpleFilterProvider()
+                .addFilter("opaFilter", select == null ? filter : new SelectFilter(select, filter))
+                .setFailOnUnknownId(false);
+    }
 }
@@ -0,0 +1,9 @@
+package no.fintlabs.consumer.filter;
+
+import java.util.Set;
+
+/**
+ * The fields and relations OPA allows a request to see, which decide how its response body is pruned.
+ */
+public record OpaFieldSelection(Set<String> fields, Set<String> relations) {
+}
@@ -0,0 +1,75 @@
+package no.fintlabs.consumer.filter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.PropertyFilter;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import no.novari.fint.model.resource.FintResource;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.converter.json.MappingJacksonValue;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Projection of resources to the properties named by the {@code $select} query parameter.
+ * <p>
+ * Only the top-level properties of resources are projected; a selected property is written with
+ * everything nested in it, and {@code _links} is only written when selected. Properties of other
+ * objects are handed to {@code next}, so a projection runs on top of the OPA filter in the same
+ * serialization pass.
+ */
+public class SelectFilter extends SimpleBeanPropertyFilter {
+
+    public static final String SELECT_PARAM = "$select";
+
+    private final Set<String> selectedFields;
+    private final PropertyFilter next;
+
+    public SelectFilter(Set<String> selectedFields, PropertyFilter next) {
+        this.selectedFields = selectedFields;
+        this.next = next;
+    }
+
+    /**
+     * The lowercase property names in a {@code $select} value, or {@code null} if nothing is selected.
+     */
+    @Nullable
+    public static Set<String> parse(@Nullable String select) {
+        if (select == null || select.isBlank()) {
+            return null;
+        }
+
+        return Arrays.stream(select.split(","))
+                .map(String::trim)
+                .filter(field -> !field.isEmpty())
+                .map(String::toLowerCase)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * {@code body} wrapped so the Jackson encoder writes only the {@code selectedFields} of its resources.
+     */
+    public static MappingJacksonValue project(Object body, Set<String> selectedFields) {
+        MappingJacksonValue mappingJacksonValue = new MappingJacksonValue(body);
+        mappingJacksonValue.setFilters(new SimpleFilterProvider()
+                .addFilter("opaFilter", new SelectFilter(selectedFields, SimpleBeanPropertyFilter.serializeAll()))
+                .setFailOnUnknownId(false));
+        return mappingJacksonValue;
+    }
+
+    @Override
+    public void serializeAsField(Object pojo, JsonGenerator generator, SerializerProvider provider, PropertyWriter writer) throws Exception {
+        if (pojo instanceof FintResource && !selectedFields.contains(writer.getName().toLowerCase())) {
+            if (!generator.canOmitFields()) {
+                writer.serializeAsOmittedField(pojo, generator, provider);
+            }
+            return;
+        }
+
+        next.serializeAsField(pojo, generator, provider, writer);
+    }
+}
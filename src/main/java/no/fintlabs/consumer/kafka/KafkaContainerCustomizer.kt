@@ -1,6 +1,9 @@
 package no.fintlabs.consumer.kafka
 
+import com.fasterxml.jackson.databind.ObjectMapper
 import no.fintlabs.consumer.config.KafkaConfiguration
+import no.fintlabs.consumer.kafka.entity.EntityValueDeserializer
+import no.fintlabs.consumer.resource.context.ResourceContext
 import org.apache.kafka.clients.consumer.ConsumerConfig
 import org.springframework.kafka.listener.ConcurrentMessageListenerContainer
 
@@ -24,3 +27,20 @@ fun <VALUE> ConcurrentMessageListenerContainer<String, VALUE>.applyStartupJitter
         isAutoStartup = false
     }
 }
+
+/**
+ * Have the container's consumers read entity values with [EntityValueDeserializer], keeping the
+ * values of the resources [lazyDecode] holds for as raw bytes.
+ */
+fun <VALUE> ConcurrentMessageListenerContainer<String, VALUE>.applyEntityValueDeserializer(
+    objectMapper: ObjectMapper,
+    resourceContext: ResourceContext,
+    lazyDecode: (String) -> Boolean = { false },
+) {
+    containerProperties.kafkaConsumerProperties.apply {
+        put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, EntityValueDeserializer::class.java)
+        put(EntityValueDeserializer.OBJECT_MAPPER_CONFIG, objectMapper)
+        put(EntityValueDeserializer.RESOURCE_CONTEXT_CONFIG, resourceContext)
+        put(EntityValueDeserializer.LAZY_DECODE_CONFIG, lazyDecode)
+    }
+}
@@ -1,12 +1,18 @@
 package no.fintlabs.consumer.kafka.entity
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import no.fintlabs.autorelation.kafka.AutoRelationHandover
+import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.CacheSnapshotService
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.kafka.KafkaConstants.RESOURCE_NAME
 import no.fintlabs.consumer.kafka.KafkaConsumerErrorHandling
 import no.fintlabs.consumer.kafka.applyConsumerFetchSettings
+import no.fintlabs.consumer.kafka.applyEntityValueDeserializer
 import no.fintlabs.consumer.kafka.applyStartupJitter
 import no.fintlabs.consumer.kafka.stringValue
 import no.fintlabs.consumer.resource.ResourceConverter
+import no.fintlabs.consumer.resource.context.ResourceContext
 import no.novari.kafka.consuming.ErrorHandlerFactory
 import no.novari.kafka.consuming.ListenerConfiguration
 import no.novari.kafka.consuming.ParameterizedListenerContainerFactoryService
@@ -14,10 +20,13 @@ import no.novari.kafka.topic.name.EntityTopicNamePatternParameters
 import no.novari.kafka.topic.name.TopicNamePatternParameterPattern
 import no.novari.kafka.topic.name.TopicNamePatternPrefixParameters
 import no.novari.metamodel.MetamodelService
+import org.apache.kafka.clients.consumer.Consumer
 import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.common.TopicPartition
 import org.slf4j.LoggerFactory
 import org.springframework.context.annotation.Bean
 import org.springframework.kafka.listener.ConcurrentMessageListenerContainer
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener
 import org.springframework.stereotype.Service
 
 @Service
@@ -26,65 +35,196 @@ class EntityConsumer(
     private val consumerConfig: ConsumerConfiguration,
     private val resourceConverter: ResourceConverter,
     private val metamodelService: MetamodelService,
+    private val cacheSnapshotService: CacheSnapshotService,
+    private val keyOrderedEntityProcessor: KeyOrderedEntityProcessor,
+    private val objectMapper: ObjectMapper,
+    private val resourceContext: ResourceContext,
+    private val autoRelationHandover: AutoRelationHandover,
+    private val cacheService: CacheService,
 ) {
     companion object {
         private val logger = LoggerFactory.getLogger(EntityConsumer::class.java)
         private const val CONSUMER_NAME = "entity"
     }
 
+    /**
+     * Where every assigned partition starts is decided by [resumeFromProcessedOffsets] once the
+     * partitions are assigned, since the cache snapshot is only restored after the container has
+     * been created, see [CacheSnapshotService].
+     */
     @Bean
     fun resourceEntityConsumerFactory(
         parameterizedListenerContainerFactoryService: ParameterizedListenerContainerFactoryService,
         errorHandlerFactory: ErrorHandlerFactory,
-    ): ConcurrentMessageListenerContainer<String, in Any> =
-        parameterizedListenerContainerFactoryService
-            .createRecordListenerContainerFactory(
-                Any::class.java,
-                this::consumeRecord,
-                ListenerConfiguration
-                    .stepBuilder()
-                    .groupIdApplicationDefaultWithUniqueSuffix()
-                    .maxPollRecordsKafkaDefault()
-                    .maxPollIntervalKafkaDefault()
-                    .seekToBeginningOnAssignment()
-                    .build(),
-                errorHandlerFactory.createErrorHandler(
-                    KafkaConsumerErrorHandling.createLoggingErrorHandlerConfiguration<Any>(
-                        logger,
-                        CONSUMER_NAME,
-                    ),
+    ): ConcurrentMessageListenerContainer<String, in Any> {
+        val listenerConfiguration =
+            ListenerConfiguration
+                .stepBuilder()
+                .groupIdApplicationDefaultWithUniqueSuffix()
+                .maxPollRecordsKafkaDefault()
+                .maxPollIntervalKafkaDefault()
+                .continueFromPreviousOffsetOnAssignment()
+                .build()
+        val errorHandler =
+            errorHandlerFactory.createErrorHandler(
+                KafkaConsumerErrorHandling.createLoggingErrorHandlerConfiguration<Any>(
+                    logger,
+                    CONSUMER_NAME,
                 ),
-                { container ->
-                    container.concurrency = consumerConfig.kafka.entityConcurrency
-                    container.containerProperties.idleBetweenPolls = consumerConfig.kafka.idleBetweenPolls
-                    container.applyConsumerFetchSettings(consumerConfig.kafka)
-                    container.applyStartupJitter(consumerConfig.kafka)
-                },
-            ).createContainer(
-                EntityTopicNamePatternParameters
-                    .builder()
-                    .topicNamePatternPrefixParameters(
-                        TopicNamePatternPrefixParameters
-                            .stepBuilder()
-                            .orgId(TopicNamePatternParameterPattern.exactly(consumerConfig.orgId.asTopicSegment))
-                            .domainContextApplicationDefault()
-                            .build(),
-                    ).resource(TopicNamePatternParameterPattern.anyOf(componentTopic(), *legacyResourceTopics()))
-                    .build(),
             )
+        val containerCustomizer = { container: ConcurrentMessageListenerContainer<String, Any> ->
+            container.concurrency = consumerConfig.kafka.entityConcurrency
+            container.containerProperties.idleBetweenPolls = consumerConfig.kafka.idleBetweenPolls
+            container.applyConsumerFetchSettings(consumerConfig.kafka)
+            container.applyEntityValueDeserializer(objectMapper, resourceContext, ::decodesLazily)
+            container.applyStartupJitter(consumerConfig.kafka)
+            container.containerProperties.setConsumerRebalanceListener(resumeFromProcessedOffsets())
+        }
+
+        val factory =
+            if (consumerConfig.kafka.entityBatchListener) {
+                parameterizedListenerContainerFactoryService.createBatchListenerContainerFactory(
+                    Any::class.java,
+                    this::consumeBatch,
+                    listenerConfiguration,
+                    errorHandler,
+                    containerCustomizer,
+                )
+            } else {
+                parameterizedListenerContainerFactoryService.createRecordListenerContainerFactory(
+                    Any::class.java,
+                    this::consumeRecord,
+                    listenerConfiguration,
+                    errorHandler,
+                    containerCustomizer,
+                )
+            }
 
-    fun consumeRecord(consumerRecord: ConsumerRecord<String, Any?>) =
-        createEntityConsumerRecord(consumerRecord)
-            .let { entityProcessingService.processEntityConsumerRecord(it) }
-
-    private fun createEntityConsumerRecord(consumerRecord: ConsumerRecord<String, Any?>) =
-        consumerRecord.getResourceName().let { resourceName ->
-            consumerRecord
-                .value()
-                ?.let { resourceConverter.convert(resourceName, it) }
-                ?.let { EntityConsumerRecord(resourceName, it, consumerRecord) }
-                ?: EntityConsumerRecord(resourceName, null, consumerRecord)
+        return factory.createContainer(
+            EntityTopicNamePatternParameters
+                .builder()
+                .topicNamePatternPrefixParameters(
+                    TopicNamePatternPrefixParameters
+                        .stepBuilder()
+                        .orgId(TopicNamePatternParameterPattern.exactly(consumerConfig.orgId.asTopicSegment))
+                        .domainContextApplicationDefault()
+                        .build(),
+                ).resource(TopicNamePatternParameterPattern.anyOf(componentTopic(), *legacyResourceTopics()))
+                .build(),
+        )
+    }
+
+    fun consumeRecord(consumerRecord: ConsumerRecord<String, Any?>) {
+        val partition = TopicPartition(consumerRecord.topic(), consumerRecord.partition())
+        val record = createEntityConsumerRecord(consumerRecord, claimRelations(partition, consumerRecord.offset()))
+        if (keyOrderedEntityProcessor.enabled) {
+            keyOrderedEntityProcessor.submit(partition, consumerRecord.offset(), record)
+        } else {
+            entityProcessingService.processEntityConsumerRecord(record)
+            cacheSnapshotService.recordProcessed(partition, consumerRecord.offset())
+        }
+    }
+
+    /**
+     * Batch listener counterpart of [consumeRecord], used with
+     * [no.fintlabs.consumer.config.KafkaConfiguration.entityBatchListener]. Records that can't
+     * be read are logged and skipped, as the error handler does for single records, so they
+     * don't fail the rest of the poll.
+     */
+    fun consumeBatch(consumerRecords: List<ConsumerRecord<String, Any?>>) {
+        val records =
+            consumerRecords.mapNotNull { consumerRecord ->
+                try {
+                    val partition = TopicPartition(consumerRecord.topic(), consumerRecord.partition())
+                    createEntityConsumerRecord(consumerRecord, claimRelations(partition, consumerRecord.offset()))
+                } catch (exception: RuntimeException) {
+                    logger.error(
+                        "Kafka consumer {} failed topic={} partition={} offset={} key={}",
+                        CONSUMER_NAME,
+                        consumerRecord.topic(),
+                        consumerRecord.partition(),
+                        consumerRecord.offset(),
+                        consumerRecord.key(),
+                        exception,
+                    )
+                    null
+                }
+            }
+        entityProcessingService.processEntityConsumerRecords(records)
+        consumerRecords.forEach { consumerRecord ->
+            cacheSnapshotService.recordProcessed(
+                TopicPartition(consumerRecord.topic(), consumerRecord.partition()),
+                consumerRecord.offset(),
+            )
         }
+    }
+
+    /**
+     * Seeks every assigned partition to the record after the last one applied to the caches, so
+     * only records newer than the restored cache snapshot, or than the records already applied
+     * before a rebalance, are replayed. Partitions nothing has been applied from yet, or whose
+     * records before that offset have been deleted, are replayed from the beginning.
+     */
+    private fun resumeFromProcessedOffsets() =
+        object : ConsumerAwareRebalanceListener {
+            override fun onPartitionsAssigned(
+                consumer: Consumer<*, *>,
+                partitions: Collection<TopicPartition>,
+            ) {
+                val beginningOffsets = consumer.beginningOffsets(partitions)
+                partitions.forEach { partition ->
+                    val offset = cacheSnapshotService.resumeOffset(partition)
+                    if (offset != null && offset >= (beginningOffsets[partition] ?: 0L)) {
+                        consumer.seek(partition, offset)
+                    } else {
+                        if (offset != null) {
+                            logger.warn(
+                                "Records of {} before offset {} are gone, replaying from the beginning",
+                                partition,
+                                offset,
+                            )
+                        }
+                        consumer.seekToBeginning(listOf(partition))
+                    }
+                }
+            }
+        }
+
+    /**
+     * Whether the relations of the record at [offset] of [partition] are published along with
+     * applying it, because [AutoRelationHandover] has handed its partition over.
+     */
+    private fun claimRelations(
+        partition: TopicPartition,
+        offset: Long,
+    ) = consumerConfig.kafka.sharedEntityRead && autoRelationHandover.claim(partition, offset)
+
+    /**
+     * Whether the values of [resourceName] are kept undecoded until they are read. Autorelation
+     * reconciles the links of every resource on ingestion, so it rules lazy decoding out.
+     */
+    private fun decodesLazily(resourceName: String) =
+        !consumerConfig.autorelation.enabled && cacheService.decodesLazily(resourceName)
+
+    private fun createEntityConsumerRecord(
+        consumerRecord: ConsumerRecord<String, Any?>,
+        publishRelations: Boolean,
+    ) = consumerRecord.getResourceName().let { resourceName ->
+        when (val value = consumerRecord.value()) {
+            null -> {
+                EntityConsumerRecord(resourceName, null, consumerRecord)
+            }
+
+            is ByteArray -> {
+                EntityConsumerRecord(resourceName, null, consumerRecord, publishRelations, rawValue = value)
+            }
+
+            else -> {
+                val resource = resourceConverter.convert(resourceName, value)
+                EntityConsumerRecord(resourceName, resource, consumerRecord, publishRelations)
+            }
+        }
+    }
 
     private fun ConsumerRecord<String, Any?>.getResourceName(): String =
         if (consumerConfig.kafka.consumeLegacyResourceTopics) {
@@ -10,6 +10,7 @@ import no.fintlabs.consumer.kafka.longValue
 import no.fintlabs.consumer.kafka.stringValue
 import no.novari.fint.model.resource.FintResource
 import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.common.TopicPartition
 
 /**
  * Represents a FINT entity consumer record.
@@ -18,15 +19,27 @@ import org.apache.kafka.clients.consumer.ConsumerRecord
  * resource payload, and optional sync metadata) so they can be handled as one
  * cohesive object instead of spreading raw Kafka details throughout the codebase.
  *
- * - `resource` is nullable: a `null` value indicates the entity is being deleted.
+ * - `resource` is nullable: a `null` value, without a `rawValue`, indicates the entity is being
+ *   deleted.
+ * - `rawValue` holds the undecoded JSON in place of `resource` for resources that are decoded
+ *   lazily, see [no.fintlabs.consumer.config.CacheProperties.ResourceCache.lazyDecode].
  * - `type` is nullable: not all entities participate in sync operations.
+ * - `publishRelations` is set when the relations of the resource are published along with
+ *   applying it, see [no.fintlabs.autorelation.kafka.AutoRelationHandover].
  */
 class EntityConsumerRecord(
     val resourceName: String,
     val resource: FintResource?,
     record: ConsumerRecord<String, Any?>,
+    val publishRelations: Boolean = false,
+    val rawValue: ByteArray? = null,
 ) {
+    val isRemoval: Boolean
+        get() = resource == null && rawValue == null
+
     val key: String = record.extractIdentifier()
+    val partition = TopicPartition(record.topic(), record.partition())
+    val offset = record.offset()
     val timestamp =
         record.headers().longValue(LAST_MODIFIED)
             ?: throw NullPointerException("Required '$LAST_MODIFIED' header is missing")
@@ -5,11 +5,19 @@ import io.micrometer.core.instrument.Timer
 import no.fintlabs.autorelation.AutoRelationService
 import no.fintlabs.autorelation.MetricService
 import no.fintlabs.autorelation.RelationEventService
+import no.fintlabs.autorelation.kafka.AutoRelationEntityConsumer
+import no.fintlabs.autorelation.kafka.AutoRelationHandover
+import no.fintlabs.cache.CachePut
 import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.FintCache
+import no.fintlabs.cache.LazyResource
+import no.fintlabs.cache.LazyResourceReader
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.kafka.sync.SyncTrackerService
 import no.fintlabs.consumer.links.LinkService
+import no.fintlabs.consumer.resource.ResourceChangeService
 import no.fintlabs.consumer.resource.ResourceLockService
+import no.novari.fint.model.resource.FintResource
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
 import java.time.Duration
@@ -25,20 +33,13 @@ class EntityProcessingService(
     private val meterRegistry: MeterRegistry,
     private val resourceLockService: ResourceLockService,
     private val metricService: MetricService,
+    private val resourceChangeService: ResourceChangeService,
 ) {
     fun processEntityConsumerRecord(record: EntityConsumerRecord) {
         val resourceName = record.resourceName
         timed(resourceName, "record.process.total") {
             resourceLockService.withLock(resourceName, record.key) {
-                if (record.resource == null) {
-                    timed(resourceName, "record.deletePath") {
-                        deleteEntity(record)
-                    }
-                } else {
-                    timed(resourceName, "record.addPath") {
-                        addToCache(record)
-                    }
-                }
+                applyRecord(record)
 
                 if (record.type != null) {
                     timed(resourceName, "sync.processRecordMetadata") {
@@ -49,15 +50,234 @@ class EntityProcessingService(
         }
     }
 
+    /**
+     * Process a whole poll of entity records, as handed over by the batch listener of [EntityConsumer].
+     *
+     * Per resource only the newest record of every key is applied, since the records it supersedes
+     * would be overwritten right away. The resources written are put into the cache together
+     * through [FintCache.putAll] with the locks of all their keys held. If that fails, the
+     * records of the resource are applied one at a time instead, so one bad record doesn't take
+     * the rest of the batch with it. Records that were prepared or applied before the failure
+     * are not prepared or applied again, so their relations are published and their links
+     * mapped only once.
+     *
+     * Every record of the batch counts towards its sync, superseded ones included, and
+     * [SyncTrackerService] is updated once per correlation id.
+     */
+    fun processEntityConsumerRecords(records: List<EntityConsumerRecord>) {
+        val failed = HashSet<EntityConsumerRecord>()
+        records.groupBy { it.resourceName }.forEach { (resourceName, resourceRecords) ->
+            val newest = newestByKey(resourceRecords)
+            val progress = BatchProgress()
+            try {
+                timed(resourceName, "batch.process.total") {
+                    resourceLockService.withLocks(resourceName, newest.map { it.key }) {
+                        applyBatch(resourceName, newest, progress)
+                    }
+                }
+            } catch (exception: RuntimeException) {
+                logger.warn(
+                    "Batch of {} records failed, applying them one at a time: resource={}, org={}",
+                    newest.size,
+                    safeResourceName(resourceName),
+                    consumerConfiguration.orgId.value,
+                    exception,
+                )
+                newest.filter { it !in progress.applied }.forEach { record ->
+                    try {
+                        timed(resourceName, "record.process.total") {
+                            resourceLockService.withLock(resourceName, record.key) {
+                                val put = progress.prepared[record]
+                                if (put != null) {
+                                    writeToCache(resourceName, put, cacheService.getCache(resourceName))
+                                } else {
+                                    applyRecord(record)
+                                }
+                            }
+                        }
+                    } catch (recordException: RuntimeException) {
+                        failed.add(record)
+                        logger.error(
+                            "Skipping entity record: resource={}, key={}, org={}",
+                            safeResourceName(resourceName),
+                            record.key,
+                            consumerConfiguration.orgId.value,
+                            recordException,
+                        )
+                    }
+                }
+            }
+        }
+
+        val syncRecords = records.filter { it.type != null && it !in failed }
+        if (syncRecords.isNotEmpty()) {
+            syncTrackerService.processRecordMetadata(syncRecords)
+        }
+    }
+
+    private fun applyRecord(record: EntityConsumerRecord) {
+        if (record.isRemoval) {
+            timed(record.resourceName, "record.deletePath") {
+                deleteEntity(record)
+            }
+        } else {
+            timed(record.resourceName, "record.addPath") {
+                addToCache(record)
+            }
+        }
+    }
+
+    /**
+     * The record of every key that survives the batch. A later record replaces an earlier one
+     * unless it is older, and at equal timestamps a removal doesn't replace a write, since the
+     * cache would reject that removal.
+     */
+    private fun newestByKey(records: List<EntityConsumerRecord>): Collection<EntityConsumerRecord> {
+        val newest = LinkedHashMap<String, EntityConsumerRecord>()
+        records.forEach { record ->
+            newest.merge(record.key, record) { kept, next ->
+                val replaces =
+                    next.timestamp > kept.timestamp || (next.timestamp == kept.timestamp && !next.isRemoval)
+                if (replaces) next else kept
+            }
+        }
+        return newest.values
+    }
+
+    /**
+     * How far [applyBatch] got, so that a batch applied one record at a time after a failure
+     * picks up where it left off.
+     */
+    private class BatchProgress {
+        /** Cache writes prepared for the records of the batch. */
+        val prepared = HashMap<EntityConsumerRecord, CachePut<FintResource>>()
+
+        /** Records applied to the cache. */
+        val applied = HashSet<EntityConsumerRecord>()
+    }
+
+    private fun applyBatch(
+        resourceName: String,
+        records: Collection<EntityConsumerRecord>,
+        progress: BatchProgress,
+    ) {
+        val (removals, writes) = records.partition { it.isRemoval }
+        removals.forEach { record ->
+            deleteEntity(record)
+            progress.applied.add(record)
+        }
+        if (writes.isEmpty()) return
+
+        val cache = cacheService.getCache(resourceName)
+        val puts = writes.map { record -> prepare(record, cache).also { progress.prepared[record] = it } }
+        val accepted = timed(resourceName, "cache.putAll") { cache.putAll(puts) }
+        progress.applied.addAll(writes)
+        puts.forEach { put ->
+            if (put.resourceId in accepted) {
+                publishUpdate(resourceName, put, cache)
+            } else {
+                metricService.incrementCachePutRejectedOlderTimestamp(resourceName)
+            }
+        }
+    }
+
+    /**
+     * The cache write for [record]. Records kept raw are written as a [LazyResource] when nothing
+     * needs them decoded on ingestion: the cache [FintCache.supportsLazyEntries], and no relations
+     * are published or reconciled. Their links are mapped when they are first read instead.
+     * Everything else is decoded if need be, its relations published and links reconciled and
+     * mapped, before it is written.
+     */
+    private fun prepare(
+        record: EntityConsumerRecord,
+        cache: FintCache<FintResource>,
+    ): CachePut<FintResource> {
+        val rawValue = record.rawValue
+        if (rawValue != null && isLazy(record, cache)) {
+            val lazyResource =
+                timed(record.resourceName, "lazy.read") {
+                    lazyResourceReader(record.resourceName).read(rawValue)
+                }
+            return CachePut(record.key, lazyResource, record.timestamp)
+        }
+
+        val resource =
+            record.resource
+                ?: timed(record.resourceName, "record.decode") {
+                    lazyResourceReader(record.resourceName).decode(requireNotNull(rawValue))
+                }
+
+        publishRelations(record, resource)
+
+        if (consumerConfiguration.autorelation.enabled) {
+            timed(record.resourceName, "autorelation.reconcileLinks") {
+                autoRelationService.reconcileLinks(record.resourceName, record.key, resource)
+            }
+        }
+
+        timed(record.resourceName, "links.map") {
+            linkService.mapLinks(record.resourceName, resource)
+        }
+        return CachePut(record.key, resource, record.timestamp)
+    }
+
+    private fun isLazy(
+        record: EntityConsumerRecord,
+        cache: FintCache<FintResource>,
+    ) = !record.publishRelations && !consumerConfiguration.autorelation.enabled && cache.supportsLazyEntries
+
+    private fun lazyResourceReader(resourceName: String): LazyResourceReader<FintResource> =
+        requireNotNull(cacheService.lazyResourceReader(resourceName)) { "No resource class known for $resourceName" }
+
+    /**
+     * Send a written resource to the change stream. A [LazyResource] is only decoded for that when
+     * somebody subscribes to the changes of [resourceName], and is read through [cache] so that
+     * one that can't be decoded is dropped instead of failing the record.
+     */
+    private fun publishUpdate(
+        resourceName: String,
+        put: CachePut<FintResource>,
+        cache: FintCache<FintResource>,
+    ) {
+        if (put.lazyResource == null) {
+            resourceChangeService.publishUpdate(resourceName, put.resource, put.timestamp)
+        } else if (resourceChangeService.hasSubscribers(resourceName)) {
+            cache.get(put.resourceId)?.let { resourceChangeService.publishUpdate(resourceName, it, put.timestamp) }
+        }
+    }
+
+    /**
+     * Publish the relations of a record handed over by [AutoRelationHandover], before its links
+     * are reconciled and mapped, as [AutoRelationEntityConsumer] publishes them from the record.
+     */
+    private fun publishRelations(
+        record: EntityConsumerRecord,
+        resource: FintResource,
+    ) {
+        if (!record.publishRelations) return
+        timed(record.resourceName, "autorelation.addRelations") {
+            relationEventService.addRelations(record.resourceName, record.key, resource)
+        }
+    }
+
     private fun deleteEntity(record: EntityConsumerRecord) {
         val cache =
             timed(record.resourceName, "cache.getCache") {
                 cacheService.getCache(record.resourceName)
             }
 
-        timed(record.resourceName, "cache.get") {
-            cache.get(record.key)
-        }?.let {
+        // Reading a lazy entry decodes it, so it is only read when somebody needs the resource.
+        val existing =
+            if (consumerConfiguration.autorelation.enabled ||
+                resourceChangeService.hasSubscribers(record.resourceName)
+            ) {
+                timed(record.resourceName, "cache.get") {
+                    cache.get(record.key)
+                }
+            } else {
+                null
+            }
+        existing?.let {
             if (consumerConfiguration.autorelation.enabled) {
                 timed(record.resourceName, "relation.removeRelations") {
                     relationEventService.removeRelations(record.resourceName, record.key, it)
@@ -65,33 +285,42 @@ class EntityProcessingService(
             }
         }
 
-        timed(record.resourceName, "cache.remove") {
-            cache.remove(record.key, record.timestamp)
+        val removed =
+            timed(record.resourceName, "cache.remove") {
+                cache.remove(record.key, record.timestamp)
+            }
+        if (removed && existing != null) {
+            resourceChangeService.publishRemoval(record.resourceName, record.key, existing, record.timestamp)
         }
     }
 
     private fun addToCache(record: EntityConsumerRecord) {
-        val resource = requireNotNull(record.resource)
         val cache =
             timed(record.resourceName, "cache.getCache") {
                 cacheService.getCache(record.resourceName)
             }
 
-        if (consumerConfiguration.autorelation.enabled) {
-            timed(record.resourceName, "autorelation.reconcileLinks") {
-                autoRelationService.reconcileLinks(record.resourceName, record.key, resource)
-            }
-        }
+        writeToCache(record.resourceName, prepare(record, cache), cache)
+    }
 
-        timed(record.resourceName, "links.map") {
-            linkService.mapLinks(record.resourceName, resource)
-        }
+    private fun writeToCache(
+        resourceName: String,
+        put: CachePut<FintResource>,
+        cache: FintCache<FintResource>,
+    ) {
+        val lazyResource = put.lazyResource
         val accepted =
-            timed(record.resourceName, "cache.put") {
-                cache.put(record.key, resource, record.timestamp)
+            timed(resourceName, "cache.put") {
+                if (lazyResource != null) {
+                    cache.putLazy(put.resourceId, lazyResource, put.timestamp)
+                } else {
+                    cache.put(put.resourceId, put.resource, put.timestamp)
+                }
             }
-        if (!accepted) {
-            metricService.incrementCachePutRejectedOlderTimestamp(record.resourceName)
+        if (accepted) {
+            publishUpdate(resourceName, put, cache)
+        } else {
+            metricService.incrementCachePutRejectedOlderTimestamp(resourceName)
         }
     }
 
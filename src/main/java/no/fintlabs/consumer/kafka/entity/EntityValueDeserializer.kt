@@ -0,0 +1,96 @@
+package no.fintlabs.consumer.kafka.entity
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectReader
+import no.fintlabs.consumer.kafka.KafkaConstants.RESOURCE_NAME
+import no.fintlabs.consumer.kafka.stringValue
+import no.fintlabs.consumer.resource.ResourceConverter
+import no.fintlabs.consumer.resource.context.ResourceContext
+import org.apache.kafka.common.errors.SerializationException
+import org.apache.kafka.common.header.Headers
+import org.apache.kafka.common.serialization.Deserializer
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Kafka value deserializer for entity records that reads each value straight into the resource
+ * class named by its [RESOURCE_NAME] header, instead of into a map that [ResourceConverter]
+ * converts to that class afterwards.
+ *
+ * Values without a known resource name, as on legacy resource topics, and values that don't
+ * fit their resource class are read into a map as before, so [ResourceConverter] converts them
+ * or fails on them in the listener where failures are handled.
+ *
+ * Values of resources for which [lazyDecode] holds are not read at all, but returned as the raw
+ * [ByteArray], so they can be kept undecoded until they are first read from the cache.
+ *
+ * Kafka creates value deserializers itself, so the [ObjectMapper], [ResourceContext] and
+ * [lazyDecode] to use are handed over in the consumer configs under [OBJECT_MAPPER_CONFIG],
+ * [RESOURCE_CONTEXT_CONFIG] and [LAZY_DECODE_CONFIG].
+ */
+class EntityValueDeserializer() : Deserializer<Any?> {
+    companion object {
+        const val OBJECT_MAPPER_CONFIG = "fint.entity.value.object-mapper"
+        const val RESOURCE_CONTEXT_CONFIG = "fint.entity.value.resource-context"
+        const val LAZY_DECODE_CONFIG = "fint.entity.value.lazy-decode"
+
+        private val logger = LoggerFactory.getLogger(EntityValueDeserializer::class.java)
+    }
+
+    private lateinit var objectMapper: ObjectMapper
+    private lateinit var resourceContext: ResourceContext
+    private var lazyDecode: (String) -> Boolean = { false }
+    private val readers = ConcurrentHashMap<Class<*>, ObjectReader>()
+
+    constructor(
+        objectMapper: ObjectMapper,
+        resourceContext: ResourceContext,
+        lazyDecode: (String) -> Boolean = { false },
+    ) : this() {
+        this.objectMapper = objectMapper
+        this.resourceContext = resourceContext
+        this.lazyDecode = lazyDecode
+    }
+
+    override fun configure(
+        configs: Map<String, *>,
+        isKey: Boolean,
+    ) {
+        objectMapper = configs[OBJECT_MAPPER_CONFIG] as ObjectMapper
+        resourceContext = configs[RESOURCE_CONTEXT_CONFIG] as ResourceContext
+        @Suppress("UNCHECKED_CAST")
+        (configs[LAZY_DECODE_CONFIG] as? (String) -> Boolean)?.let { lazyDecode = it }
+    }
+
+    override fun deserialize(
+        topic: String,
+        data: ByteArray?,
+    ): Any? = deserialize(topic, null, data)
+
+    override fun deserialize(
+        topic: String,
+        headers: Headers?,
+        data: ByteArray?,
+    ): Any? {
+        if (data == null) return null
+
+        val resourceName = headers?.stringValue(RESOURCE_NAME)
+        if (resourceName != null && lazyDecode(resourceName)) return data
+
+        val resourceClass = resourceName?.let { resourceContext.getResource(it)?.clazz }
+        if (resourceClass != null) {
+            try {
+                return readers.computeIfAbsent(resourceClass, objectMapper::readerFor).readValue<Any>(data)
+            } catch (exception: IOException) {
+                logger.debug("Value on {} is no {}, reading it untyped", topic, resourceClass.simpleName, exception)
+            }
+        }
+
+        try {
+            return objectMapper.readValue(data, Any::class.java)
+        } catch (exception: IOException) {
+            throw SerializationException("Failed to deserialize entity record value on $topic", exception)
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package no.fintlabs.consumer.kafka.entity
+
+import jakarta.annotation.PreDestroy
+import no.fintlabs.cache.CacheSnapshotService
+import no.fintlabs.consumer.config.ConsumerConfiguration
+import org.apache.kafka.common.TopicPartition
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import java.util.TreeSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+
+/**
+ * Applies entity records on virtual threads, in parallel across keys but in order per key, so a
+ * full sync landing on a single partition isn't applied one record at a time.
+ *
+ * Records are spread over [no.fintlabs.consumer.config.KafkaConfiguration.entityProcessingConcurrency]
+ * lanes by the hash of their key, and every lane applies its records one at a time in the order
+ * they were submitted. At most
+ * [no.fintlabs.consumer.config.KafkaConfiguration.entityProcessingMaxInFlight] records are
+ * waiting or being applied at once; [submit] blocks the consumer thread beyond that.
+ *
+ * A record is only reported to [CacheSnapshotService] once it and every record before it on its
+ * partition have been applied, so a snapshot never resumes past a record that is still waiting
+ * in a lane. A record that fails to apply is logged and holds the reported offset of its
+ * partition back for good, so a restart resumes from it instead of leaving it out of the caches.
+ * Records read again after a rebalance that were already submitted are left to their lane.
+ *
+ * The lanes only apply records read one at a time; with
+ * [no.fintlabs.consumer.config.KafkaConfiguration.entityBatchListener] the batches are applied on
+ * the consumer thread and the concurrency is ignored.
+ */
+@Service
+class KeyOrderedEntityProcessor(
+    private val entityProcessingService: EntityProcessingService,
+    private val cacheSnapshotService: CacheSnapshotService,
+    consumerConfig: ConsumerConfiguration,
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(KeyOrderedEntityProcessor::class.java)
+    }
+
+    private val concurrency =
+        if (consumerConfig.kafka.entityBatchListener) 1 else consumerConfig.kafka.entityProcessingConcurrency
+    private val inFlight = Semaphore(consumerConfig.kafka.entityProcessingMaxInFlight)
+    private val progress = ConcurrentHashMap<TopicPartition, PartitionProgress>()
+    private val lanes: List<ExecutorService> =
+        List(if (concurrency > 1) concurrency else 0) { lane ->
+            Executors.newSingleThreadExecutor(Thread.ofVirtual().name("entity-processing-$lane").factory())
+        }
+
+    init {
+        if (consumerConfig.kafka.entityBatchListener && consumerConfig.kafka.entityProcessingConcurrency > 1) {
+            logger.warn(
+                "entityProcessingConcurrency={} is ignored, entityBatchListener applies batches on the consumer thread",
+                consumerConfig.kafka.entityProcessingConcurrency,
+            )
+        }
+    }
+
+    /**
+     * Whether records are applied in parallel. If not, [EntityConsumer] applies them on the
+     * consumer thread as before.
+     */
+    val enabled: Boolean
+        get() = lanes.isNotEmpty()
+
+    /**
+     * Apply [record], read at [offset] of [partition], after every record with the same key
+     * submitted before it.
+     */
+    fun submit(
+        partition: TopicPartition,
+        offset: Long,
+        record: EntityConsumerRecord,
+    ) {
+        val partitionProgress = progress.computeIfAbsent(partition) { PartitionProgress() }
+        if (!partitionProgress.started(offset)) return
+        inFlight.acquire()
+        lanes[Math.floorMod(record.key.hashCode(), lanes.size)].execute {
+            var applied = false
+            try {
+                entityProcessingService.processEntityConsumerRecord(record)
+                applied = true
+            } catch (exception: Exception) {
+                logger.error(
+                    "Failed to apply entity record partition={} offset={} resource={} key={}",
+                    partition,
+                    offset,
+                    record.resourceName,
+                    record.key,
+                    exception,
+                )
+            } finally {
+                partitionProgress.finished(offset, applied)?.let { cacheSnapshotService.recordProcessed(partition, it) }
+                inFlight.release()
+            }
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() = lanes.forEach(ExecutorService::close)
+
+    /**
+     * Offsets of the records of one partition that have been submitted but not applied yet.
+     */
+    private class PartitionProgress {
+        private val pending = TreeSet<Long>()
+        private var lastStarted = -1L
+        private var lastReported = -1L
+
+        /**
+         * Mark the record at [offset] as submitted, returning `false` if it already was, as
+         * records are read again after a rebalance from the offset last reported.
+         */
+        @Synchronized
+        fun started(offset: Long): Boolean {
+            if (offset <= lastStarted) return false
+            pending.add(offset)
+            lastStarted = offset
+            return true
+        }
+
+        /**
+         * Mark the record at [offset] as done, returning the offset every record up to has been
+         * applied now, or `null` if that hasn't moved. A record that wasn't [applied] stays
+         * pending, so the offset never moves past it.
+         */
+        @Synchronized
+        fun finished(
+            offset: Long,
+            applied: Boolean,
+        ): Long? {
+            if (applied) pending.remove(offset)
+            val appliedUpTo = if (pending.isEmpty()) lastStarted else pending.first() - 1
+            if (appliedUpTo <= lastReported) return null
+            lastReported = appliedUpTo
+            return appliedUpTo
+        }
+    }
+}
@@ -8,6 +8,7 @@ import io.micrometer.core.instrument.MeterRegistry
 import io.micrometer.core.instrument.Timer
 import no.fintlabs.adapter.models.sync.SyncType
 import no.fintlabs.cache.CacheEvictionService
+import no.fintlabs.cache.CacheSnapshotService
 import no.fintlabs.consumer.config.CaffeineCacheProperties
 import no.fintlabs.consumer.kafka.entity.EntityConsumerRecord
 import no.fintlabs.consumer.kafka.sync.SyncState.Completed
@@ -34,6 +35,8 @@ import kotlin.concurrent.withLock
  * Concurrent FULL syncs -> All of them shall be tracked as failed and not trigger full sync.
  * Changes in resource name or total size for a correlation ID -> Mark and report sync as failed.
  *
+ * The records of every full sync are reported to [CacheSnapshotService] too, so a cache snapshot
+ * taken while it is in progress resumes from its start and the sync completes after a restore.
  */
 @Service
 class SyncTrackerService(
@@ -42,6 +45,7 @@ class SyncTrackerService(
     private val meterRegistry: MeterRegistry,
     private val fullSyncCache: LastCompletedFullSyncCache,
     caffeineCacheProperties: CaffeineCacheProperties,
+    private val cacheSnapshotService: CacheSnapshotService,
 ) {
     private val logger = LoggerFactory.getLogger(javaClass)
     private val resourceLocks = Striped.lazyWeakLock(32)
@@ -54,6 +58,7 @@ class SyncTrackerService(
             .removalListener { correlationId: String?, state: SyncState?, cause: RemovalCause ->
                 if (correlationId != null && state != null) {
                     if (cause == RemovalCause.EXPIRED) {
+                        cacheSnapshotService.fullSyncAbandoned(correlationId)
                         syncStatusProducer.publish(SyncStatus(correlationId, state.syncType, "Expired"))
                         logger.debug("Expired sync state {} with correlationId {} from cache", state, correlationId)
                     } else {
@@ -83,31 +88,89 @@ class SyncTrackerService(
     fun processRecordMetadata(consumerRecord: EntityConsumerRecord) {
         val resourceName = consumerRecord.resourceName
         val syncType = consumerRecord.type ?: throw IllegalStateException("No sync-type provided")
+        val correlationId = consumerRecord.corrId ?: throw IllegalStateException("No correlation id provided")
         timed(resourceName, syncType, "sync.processRecordMetadata") {
             resourceLocks.get(resourceName).withLock {
-                processRecordMetadataLocked(consumerRecord, resourceName, syncType)
+                processRecordMetadataLocked(listOf(consumerRecord), correlationId, resourceName, syncType)
             }
         }
     }
 
+    /**
+     * Same as [processRecordMetadata] for a batch of records, applied in order. The records of
+     * each correlation id are applied under one lock acquisition and the sync state is loaded
+     * and stored once for them.
+     */
+    fun processRecordMetadata(consumerRecords: List<EntityConsumerRecord>) {
+        consumerRecords
+            .groupBy { it.corrId ?: throw IllegalStateException("No correlation id provided") }
+            .forEach { (correlationId, records) ->
+                val resourceName = records.first().resourceName
+                val syncType = records.first().type ?: throw IllegalStateException("No sync-type provided")
+                timed(resourceName, syncType, "sync.processRecordMetadata") {
+                    resourceLocks.get(resourceName).withLock {
+                        processRecordMetadataLocked(records, correlationId, resourceName, syncType)
+                    }
+                }
+            }
+    }
+
     private fun processRecordMetadataLocked(
-        consumerRecord: EntityConsumerRecord,
+        consumerRecords: List<EntityConsumerRecord>,
+        correlationId: String,
         resourceName: String,
         syncType: SyncType,
     ) {
-        val correlationId = consumerRecord.corrId ?: throw IllegalStateException("No correlation id provided")
-        val totalSize = consumerRecord.totalSize ?: throw IllegalStateException("No total size provided")
-
-        val timestamp = consumerRecord.timestamp
-        val previousSyncState =
+        val firstTotalSize =
+            consumerRecords.first().totalSize ?: throw IllegalStateException("No total size provided")
+        var syncState =
             timed(resourceName, syncType, "sync.state.load") {
-                syncCache.get(correlationId) { Init(resourceName, totalSize, syncType) }
+                syncCache.get(correlationId) { Init(resourceName, firstTotalSize, syncType) }
             }
+        consumerRecords.forEach { consumerRecord ->
+            val totalSize = consumerRecord.totalSize ?: throw IllegalStateException("No total size provided")
+            // A completed sync is no longer tracked, so a record after it starts tracking anew.
+            val previousSyncState =
+                if (syncState is Completed) Init(consumerRecord.resourceName, totalSize, syncType) else syncState
+            syncState =
+                applyRecordMetadata(
+                    consumerRecord,
+                    correlationId,
+                    consumerRecord.resourceName,
+                    syncType,
+                    previousSyncState,
+                )
+        }
+
+        if (syncState is Completed) {
+            timed(resourceName, syncType, "sync.state.invalidate") {
+                syncCache.invalidate(correlationId)
+            }
+        } else {
+            timed(resourceName, syncType, "sync.state.store") {
+                syncCache.put(correlationId, syncState)
+            }
+        }
+    }
+
+    private fun applyRecordMetadata(
+        consumerRecord: EntityConsumerRecord,
+        correlationId: String,
+        resourceName: String,
+        syncType: SyncType,
+        previousSyncState: SyncState,
+    ): SyncState {
+        val totalSize = consumerRecord.totalSize ?: throw IllegalStateException("No total size provided")
+        val timestamp = consumerRecord.timestamp
         val newSyncState =
             timed(resourceName, syncType, "sync.state.transition") {
                 previousSyncState.transition(resourceName, timestamp, totalSize)
             }
 
+        if (syncType == SyncType.FULL) {
+            cacheSnapshotService.fullSyncRecordProcessed(correlationId, consumerRecord.partition, consumerRecord.offset)
+        }
+
         if (syncType == SyncType.FULL && newSyncState !is Failed) {
             timed(resourceName, syncType, "sync.full.updateTracking") {
                 val existingFullSync = fullSyncPerResourceName.put(resourceName, Pair(correlationId, newSyncState))
@@ -142,9 +205,6 @@ class SyncTrackerService(
         }
 
         if (newSyncState is Completed) {
-            timed(resourceName, syncType, "sync.state.invalidate") {
-                syncCache.invalidate(correlationId)
-            }
             logger.debug(
                 "Completed {} sync with correlation ID {} and {} resources",
                 newSyncState.syncType,
@@ -161,6 +221,7 @@ class SyncTrackerService(
                 timed(resourceName, syncType, "sync.full.evictExpired") {
                     evictionService.evictExpired(resourceName, newSyncState.timestamp)
                 }
+                cacheSnapshotService.fullSyncCompleted(correlationId, consumerRecord.partition, consumerRecord.offset)
                 timed(resourceName, syncType, "sync.full.removeTracking") {
                     fullSyncPerResourceName.remove(resourceName)
                 }
@@ -170,9 +231,6 @@ class SyncTrackerService(
                 fullSyncCache.registerTimestamp(resourceName, newSyncState.timestamp)
             }
         } else {
-            timed(resourceName, syncType, "sync.state.store") {
-                syncCache.put(correlationId, newSyncState)
-            }
             if (newSyncState is ResourceNameChanged) {
                 logger.warn(
                     "Sync state validation failed: correlationId={}, resource={}, reason={}",
@@ -199,6 +257,7 @@ class SyncTrackerService(
                 }
             }
         }
+        return newSyncState
     }
 
     private fun <T> timed(
@@ -13,35 +13,71 @@ public class LinkPaginator {
 
     private final ConsumerConfiguration configuration;
 
-    public void addPagination(String resourceName, FintResources resources, int offset, int size, int totalItems) {
+    /**
+     * Adds pagination links for a page read by keyset. The {@code next} link carries
+     * {@code nextCursor} instead of an offset, so following it resumes right after the last
+     * resource of this page. Keyset pages can only be walked forward, so no {@code prev} link is added.
+     * Every link carries {@code sinceTimeStamp} and {@code filter}, so it reads the same selection of
+     * the collection as the page did.
+     *
+     * @param sinceTimeStamp the {@code sinceTimeStamp} the page was read with, or 0 for none
+     * @param filter         the OData filter the page was read with, or {@code null} for none
+     * @param cursor         the cursor the page was read from, or {@code null} for the first page
+     * @param nextCursor     the cursor of the following page, or {@code null} if this is the last page
+     */
+    public void addCursorPagination(String resourceName, FintResources resources, int offset, int size, int totalItems,
+                                    long sinceTimeStamp, String filter, String cursor, String nextCursor) {
         String selfUrl = selfUrl(resourceName);
         UriComponentsBuilder baseBuilder = UriComponentsBuilder.fromUriString(selfUrl);
+        if (sinceTimeStamp > 0) {
+            baseBuilder.queryParam("sinceTimeStamp", sinceTimeStamp);
+        }
+        if (filter != null && !filter.isBlank()) {
+            baseBuilder.queryParam("$filter", filter);
+        }
 
         if (size > 0) {
-            addLink(resources, "self", baseBuilder, offset, size);
+            if (cursor != null) {
+                addLink(resources, "self", baseBuilder, cursor, size);
+            } else {
+                addLink(resources, "self", baseBuilder, offset, size);
 
-            if (offset > 0) {
-                int prevOffset = Math.max(0, offset - size);
-                addLink(resources, "prev", baseBuilder, prevOffset, size);
+                if (offset > 0) {
+                    int prevOffset = Math.max(0, offset - size);
+                    addLink(resources, "prev", baseBuilder, prevOffset, size);
+                }
             }
 
-            if (offset + size < totalItems) {
-                int nextOffset = offset + size;
-                addLink(resources, "next", baseBuilder, nextOffset, size);
+            if (nextCursor != null) {
+                addLink(resources, "next", baseBuilder, nextCursor, size);
             }
         } else {
-            resources.addSelf(Link.with(selfUrl));
+            resources.addSelf(Link.with(baseBuilder.toUriString()));
         }
 
         resources.setOffset(offset);
         resources.setTotalItems(totalItems);
     }
 
+    private void addLink(FintResources resources, String rel, UriComponentsBuilder builder, String cursor, int size) {
+        String uri = builder.cloneBuilder()
+                .replaceQueryParam("offset")
+                .replaceQueryParam("cursor", cursor)
+                .replaceQueryParam("size", size)
+                .toUriString();
+
+        addLink(resources, rel, uri);
+    }
+
     private void addLink(FintResources resources, String rel, UriComponentsBuilder builder, int offset, int size) {
         String uri = builder.replaceQueryParam("offset", offset)
                 .replaceQueryParam("size", size)
                 .toUriString();
 
+        addLink(resources, rel, uri);
+    }
+
+    private void addLink(FintResources resources, String rel, String uri) {
         switch (rel) {
             case "self":
                 resources.addSelf(Link.with(uri));
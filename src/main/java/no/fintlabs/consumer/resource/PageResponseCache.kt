@@ -0,0 +1,171 @@
+package no.fintlabs.consumer.resource
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import no.fintlabs.cache.CacheVersion
+import no.fintlabs.consumer.config.CacheProperties
+import no.fintlabs.consumer.config.ConsumerConfiguration
+import no.fintlabs.consumer.filter.OpaFieldAdvice
+import no.fintlabs.consumer.filter.OpaFieldSelection
+import no.fintlabs.consumer.filter.SelectFilter
+import no.fintlabs.model.resource.FintResources
+import org.springframework.http.HttpHeaders
+import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
+import org.springframework.stereotype.Component
+import org.springframework.web.server.ServerWebExchange
+import reactor.core.publisher.Mono
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Serialized response bodies of collection pages, so clients polling the same page over and over
+ * get the bytes written for the first of them instead of having the page read, filtered and
+ * serialized again.
+ *
+ * Pages are kept per request parameters and OPA field selection, together with the version of the
+ * resource cache they were read at. A page is only served while the resource cache is still at
+ * that version, so any write, removal or eviction invalidates every page of the resource. At most
+ * [CacheProperties.ResponseCache.maxSize] bytes of pages are kept.
+ *
+ * Every collection page is serialized here, kept or not, through
+ * [ResourceService.getEncodedResources], so concurrent requests for a page that isn't kept share
+ * its one read and serialization without waiting on their own thread.
+ */
+@Component
+class PageResponseCache(
+    cacheProperties: CacheProperties,
+    private val opaFieldAdvice: OpaFieldAdvice,
+    private val meterRegistry: MeterRegistry,
+    private val configuration: ConsumerConfiguration,
+    private val resourceService: ResourceService,
+) {
+    private val config = cacheProperties.responseCache
+    private val pages: Cache<Pair<PageKey, OpaFieldSelection?>, Page> =
+        Caffeine
+            .newBuilder()
+            .maximumWeight(config.maxSize.toBytes())
+            .weigher<Pair<PageKey, OpaFieldSelection?>, Page> { _, page -> page.weight }
+            .build()
+
+    val enabled: Boolean
+        get() = config.enabled
+
+    /**
+     * Request parameters a collection page is read with.
+     */
+    data class PageKey(
+        val resourceName: String,
+        val size: Int,
+        val offset: Int,
+        val sinceTimeStamp: Long,
+        val filter: String?,
+        val cursor: String?,
+        val select: String? = null,
+    )
+
+    private class Page(
+        val version: CacheVersion,
+        val json: ByteArray,
+        val gzip: ByteArray?,
+    ) {
+        val weight: Int
+            get() = json.size + (gzip?.size ?: 0)
+    }
+
+    /**
+     * The serialized page [key] for the resource cache at [version]. A page kept for that version
+     * is served as is, otherwise the page is read, serialized and, if [enabled], kept.
+     */
+    fun getPage(
+        exchange: ServerWebExchange,
+        key: PageKey,
+        version: CacheVersion,
+    ): Mono<ResponseEntity<ByteArray>> {
+        val selection = opaFieldAdvice.selectionOf(exchange)
+        val pageKey = Pair(key, selection)
+        val kept = if (enabled) pages.getIfPresent(pageKey) else null
+        if (kept != null && kept.version.epoch == version.epoch && kept.version.version == version.version) {
+            requests(key.resourceName, "hit").increment()
+            savedBytes(key.resourceName).increment(kept.json.size.toDouble())
+            return Mono.just(response(exchange, kept))
+        }
+
+        if (enabled) requests(key.resourceName, "miss").increment()
+        return resourceService
+            .getEncodedResources(
+                key.resourceName,
+                key.size,
+                key.offset,
+                key.sinceTimeStamp,
+                key.filter,
+                key.cursor,
+                key.select,
+                selection,
+            ) { serialize(it, key, selection, version).also { page -> if (enabled) pages.put(pageKey, page) } }
+            .map { response(exchange, it) }
+    }
+
+    private fun response(
+        exchange: ServerWebExchange,
+        page: Page,
+    ): ResponseEntity<ByteArray> {
+        val acceptsGzip =
+            exchange.request.headers
+                .getOrEmpty(HttpHeaders.ACCEPT_ENCODING)
+                .any { it.contains("gzip", ignoreCase = true) }
+        val response =
+            ResponseEntity
+                .ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .varyBy(HttpHeaders.ACCEPT_ENCODING)
+        return if (page.gzip != null && acceptsGzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(page.gzip)
+        } else {
+            response.body(page.json)
+        }
+    }
+
+    private fun serialize(
+        resources: FintResources,
+        key: PageKey,
+        selection: OpaFieldSelection?,
+        version: CacheVersion,
+    ): Page {
+        val json =
+            opaFieldAdvice
+                .writerFor(
+                    selection,
+                    SelectFilter.parse(key.select),
+                ).writeValueAsBytes(resources)
+        return Page(version, json, if (enabled && config.gzip) gzip(json) else null)
+    }
+
+    private fun gzip(json: ByteArray): ByteArray {
+        val bytes = ByteArrayOutputStream(json.size / 4)
+        GZIPOutputStream(bytes).use { it.write(json) }
+        return bytes.toByteArray()
+    }
+
+    private fun requests(
+        resourceName: String,
+        result: String,
+    ): Counter =
+        Counter
+            .builder("core.response.cache.requests")
+            .description("Collection page requests answered from a kept page (hit) or read again (miss)")
+            .tag("org", configuration.orgId.value)
+            .tag("resource", resourceName)
+            .tag("result", result)
+            .register(meterRegistry)
+
+    private fun savedBytes(resourceName: String): Counter =
+        Counter
+            .builder("core.response.cache.saved.bytes")
+            .description("Bytes of collection pages served without serializing them again")
+            .tag("org", configuration.orgId.value)
+            .tag("resource", resourceName)
+            .register(meterRegistry)
+}
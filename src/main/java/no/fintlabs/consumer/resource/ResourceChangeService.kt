@@ -0,0 +1,336 @@
+package no.fintlabs.consumer.resource
+
+import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.ODataFilterCache
+import no.fintlabs.consumer.config.ChangeStreamProperties
+import no.fintlabs.consumer.resource.dto.LastUpdatedResponse
+import no.fintlabs.consumer.resource.dto.RemovedResource
+import no.novari.fint.model.resource.FintResource
+import org.springframework.http.codec.ServerSentEvent
+import org.springframework.stereotype.Service
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Sinks
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArraySet
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.Stream
+
+/**
+ * Pushes the changes applied to the resource caches to change stream subscribers as server-sent
+ * events, so clients don't have to poll for them.
+ *
+ * A written resource is sent as an `updated` event holding the resource, a removed one as a
+ * `removed` event. Changes are numbered per resource in the order they are sent, and every live
+ * event carries that number as its id. Kafka timestamps can't serve as ids, since changes aren't
+ * applied in timestamp order. The last [ChangeStreamProperties.retainedChanges] changes of every
+ * streamed resource are kept, so a subscriber reconnecting with the id of the last event it got as
+ * `Last-Event-ID` is sent exactly the changes it missed. If those are no longer kept, or the id is
+ * from another instance, it gets a `resync` event instead and has to read the whole collection.
+ *
+ * A subscriber may instead pass `sinceTimeStamp` to first get the changes since then from the
+ * cache. Only the last of those carries an id, the number of the last change sent before the cache
+ * was read, so a stream that breaks off during the catch-up resumes where it started.
+ *
+ * Every subscriber has its own buffer of at most [ChangeStreamProperties.bufferSize] changes. A
+ * subscriber that falls further behind is not waited for: its stream is closed, and it resumes
+ * from the kept changes when it reconnects.
+ *
+ * A change of a resource nobody is subscribed to may not be published at all, see
+ * [hasSubscribers], so a subscriber reconnecting from before such a change is told to resync.
+ */
+@Service
+class ResourceChangeService(
+    private val cacheService: CacheService,
+    private val properties: ChangeStreamProperties,
+) {
+    private val changeLogs = ConcurrentHashMap<String, ChangeLog>()
+    private val filters = ODataFilterCache()
+
+    /** Tells the ids of this instance from those handed out by another, or before a restart. */
+    private val epoch = ThreadLocalRandom.current().nextLong() ushr 1
+
+    private class Change(
+        val sequence: Long,
+        val resource: FintResource,
+        val event: ServerSentEvent<Any>,
+    )
+
+    /**
+     * The subscribers of one resource and the changes kept for them. Changes are numbered and
+     * kept under the lock of the log, and then offered to the subscribers outside it by one thread
+     * at a time, so the filters of the subscribers don't hold up the consumer threads publishing
+     * and every subscriber still gets the changes in number order.
+     */
+    private inner class ChangeLog {
+        val subscribers = CopyOnWriteArraySet<Subscriber>()
+        private val retained = ArrayDeque<Change>()
+        private val undelivered = ConcurrentLinkedQueue<Change>()
+        private val deliveries = AtomicInteger()
+        private var sequence = 0L
+
+        fun publish(
+            resource: FintResource,
+            event: (String) -> ServerSentEvent<Any>,
+        ) {
+            synchronized(this) {
+                sequence++
+                val change = Change(sequence, resource, event(idOf(sequence)))
+                retained.addLast(change)
+                if (retained.size > properties.retainedChanges) retained.removeFirst()
+                undelivered.add(change)
+            }
+            deliver()
+        }
+
+        /**
+         * Whether anybody is subscribed. If not, the change asked about may not be published, so
+         * it is numbered without being kept, and nobody resumes from before it.
+         */
+        @Synchronized
+        fun isStreamed(): Boolean {
+            if (subscribers.isNotEmpty()) return true
+            sequence++
+            retained.clear()
+            return false
+        }
+
+        /** Registers [subscriber] and returns the number of the last change it won't be offered. */
+        @Synchronized
+        fun register(subscriber: Subscriber): Long {
+            subscriber.registeredAt = sequence
+            subscribers.add(subscriber)
+            return sequence
+        }
+
+        /**
+         * Registers [subscriber] and returns the kept changes after [after], or `null` if some of
+         * those are no longer kept or [after] is not known at all.
+         */
+        @Synchronized
+        fun resume(
+            subscriber: Subscriber,
+            after: Long?,
+        ): List<Change>? {
+            subscriber.registeredAt = sequence
+            subscribers.add(subscriber)
+            val oldest = retained.firstOrNull()?.sequence ?: (sequence + 1)
+            if (after == null || after > sequence || after < oldest - 1) return null
+            return retained.filter { it.sequence > after }
+        }
+
+        /**
+         * Offers the published changes to the subscribers. A thread finding another one at it
+         * leaves its change to that one, which keeps going until none are left.
+         */
+        private fun deliver() {
+            if (deliveries.getAndIncrement() != 0) return
+            var pending = 1
+            while (pending != 0) {
+                while (true) {
+                    val change = undelivered.poll() ?: break
+                    subscribers.forEach { it.offer(change) }
+                }
+                pending = deliveries.addAndGet(-pending)
+            }
+        }
+    }
+
+    private inner class Subscriber(
+        val resourceName: String,
+        val filter: String?,
+    ) {
+        val sink: Sinks.Many<ServerSentEvent<Any>> =
+            Sinks.many().unicast().onBackpressureBuffer(ArrayBlockingQueue(properties.bufferSize))
+
+        /** Number of the last change this subscriber got by other means than [offer]. */
+        @Volatile
+        var registeredAt = Long.MAX_VALUE
+
+        fun offer(change: Change) {
+            if (change.sequence <= registeredAt || !matches(change.resource, filter)) return
+
+            // A full buffer fails the emission, as does a stream the client has cancelled already.
+            if (sink.tryEmitNext(change.event).isFailure) {
+                close()
+                sink.tryEmitComplete()
+            }
+        }
+
+        fun close() {
+            changeLogs[resourceName]?.subscribers?.remove(this)
+        }
+    }
+
+    /**
+     * Whether anybody is subscribed to the changes of [resourceName] right now, so a resource
+     * that is costly to get hold of is only built for [publishUpdate] or [publishRemoval] when it
+     * is sent somewhere. If not, subscribers reconnecting from before the change asked about are
+     * told to resync, as it may not be kept.
+     */
+    fun hasSubscribers(resourceName: String): Boolean = changeLogs[resourceName.lowercase()]?.isStreamed() ?: false
+
+    /**
+     * Send [resource], written at [timestamp], to the subscribers of [resourceName].
+     */
+    fun publishUpdate(
+        resourceName: String,
+        resource: FintResource,
+        timestamp: Long,
+    ) = publish(resourceName, resource) { updated(resource, it) }
+
+    /**
+     * Tell the subscribers of [resourceName] that [resource], stored under [resourceId], was
+     * removed at [timestamp].
+     */
+    fun publishRemoval(
+        resourceName: String,
+        resourceId: String,
+        resource: FintResource,
+        timestamp: Long,
+    ) = publish(resourceName, resource) { removed(RemovedResource(resourceId, identifiersOf(resource), timestamp), it) }
+
+    /**
+     * Subscribe to the changes of [resourceName] matching [filter]. A subscriber reconnecting
+     * with [lastEventId] first gets the changes after that event, otherwise one passing
+     * [sinceTimeStamp] first gets the changes since then from the cache.
+     *
+     * Removals caught up from the cache are sent whether or not they match [filter], since the
+     * removed resources can't be checked anymore.
+     *
+     * @throws org.springframework.web.server.ResponseStatusException with `400 Bad Request` if
+     *   [filter] is not a valid OData filter.
+     */
+    fun subscribe(
+        resourceName: String,
+        sinceTimeStamp: Long?,
+        lastEventId: String?,
+        filter: String?,
+    ): Flux<ServerSentEvent<Any>> {
+        val activeFilter = filter?.takeIf { it.isNotBlank() }
+        activeFilter?.let { filters.apply(Stream.empty<FintResource>(), it) }
+
+        val subscriber = Subscriber(resourceName.lowercase(), activeFilter)
+        val changeLog = changeLogs.computeIfAbsent(subscriber.resourceName) { ChangeLog() }
+
+        // Registering before the changes are read makes sure no change falls between the two.
+        val first =
+            if (lastEventId != null) {
+                resume(resourceName, changeLog, subscriber, lastEventId)
+            } else {
+                catchUp(resourceName, sinceTimeStamp, activeFilter, changeLog.register(subscriber))
+            }
+
+        return Flux
+            .concat(first, subscriber.sink.asFlux())
+            .doFinally { subscriber.close() }
+    }
+
+    private fun resume(
+        resourceName: String,
+        changeLog: ChangeLog,
+        subscriber: Subscriber,
+        lastEventId: String,
+    ): Flux<ServerSentEvent<Any>> {
+        val missed = changeLog.resume(subscriber, sequenceOf(lastEventId))
+        if (missed == null) {
+            return Flux.defer { Flux.just(resync(cacheService.getCache(resourceName).lastUpdated)) }
+        }
+        return Flux.fromIterable(missed.filter { matches(it.resource, subscriber.filter) }.map { it.event })
+    }
+
+    private fun catchUp(
+        resourceName: String,
+        sinceTimeStamp: Long?,
+        filter: String?,
+        registeredAt: Long,
+    ): Flux<ServerSentEvent<Any>> {
+        if (sinceTimeStamp == null) return Flux.empty()
+
+        return Flux.defer {
+            val cache = cacheService.getCache(resourceName)
+            val changes =
+                cache.getChangedEntries(sinceTimeStamp)
+                    ?: return@defer Flux.just(resync(cache.lastUpdated))
+
+            val updates =
+                changes.updated
+                    .filter { matches(it.stored.resource, filter) }
+                    .map { entry -> Pair(entry.timestamp) { id: String? -> updated(entry.stored.resource, id) } }
+            val removals =
+                changes.removed.map {
+                    val removal = RemovedResource(it.resourceId, it.identifiers, it.timestamp)
+                    Pair(it.timestamp) { id: String? -> removed(removal, id) }
+                }
+
+            // Every change numbered up to registration is in the cache read, so the last event of
+            // the catch-up is where the live changes pick up.
+            val events = (updates + removals).sortedBy { it.first }
+            Flux.fromIterable(
+                events.mapIndexed { index, (_, event) ->
+                    event(if (index == events.lastIndex) idOf(registeredAt) else null)
+                },
+            )
+        }
+    }
+
+    private fun publish(
+        resourceName: String,
+        resource: FintResource,
+        event: (String) -> ServerSentEvent<Any>,
+    ) {
+        changeLogs[resourceName.lowercase()]?.publish(resource, event)
+    }
+
+    private fun idOf(sequence: Long) = "$epoch-$sequence"
+
+    /** The change number in [id], or `null` if it wasn't handed out by this instance. */
+    private fun sequenceOf(id: String): Long? =
+        id
+            .split('-')
+            .takeIf { it.size == 2 && it[0] == epoch.toString() }
+            ?.get(1)
+            ?.toLongOrNull()
+
+    private fun matches(
+        resource: FintResource,
+        filter: String?,
+    ) = filter == null || filters.apply(Stream.of(resource), filter).findAny().isPresent
+
+    private fun identifiersOf(resource: FintResource): Map<String, Any> =
+        resource.identifikators
+            .filter { (_, value) -> value?.identifikatorverdi != null }
+            .map { (key, value) -> key.lowercase() to value.identifikatorverdi as Any }
+            .toMap()
+
+    companion object {
+        private const val UPDATED = "updated"
+        private const val REMOVED = "removed"
+        private const val RESYNC = "resync"
+
+        private fun updated(
+            resource: FintResource,
+            id: String?,
+        ) = event(UPDATED, resource, id)
+
+        private fun removed(
+            removal: RemovedResource,
+            id: String?,
+        ) = event(REMOVED, removal, id)
+
+        private fun resync(lastUpdated: Long) =
+            ServerSentEvent.builder<Any>(LastUpdatedResponse(lastUpdated)).event(RESYNC).build()
+
+        private fun event(
+            name: String,
+            data: Any,
+            id: String?,
+        ) = ServerSentEvent
+            .builder(data)
+            .event(name)
+            .apply { if (id != null) id(id) }
+            .build()
+    }
+}
@@ -2,13 +2,18 @@ package no.fintlabs.consumer.resource
 
 import no.fintlabs.adapter.models.event.RequestFintEvent
 import no.fintlabs.adapter.operation.OperationType
+import no.fintlabs.cache.CacheVersion
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.config.EndpointsConstants
+import no.fintlabs.consumer.filter.OpaFieldAdvice
+import no.fintlabs.consumer.filter.SelectFilter
 import no.fintlabs.consumer.kafka.event.RequestFintEventService
 import no.fintlabs.consumer.resource.aspect.IdFieldCheck
 import no.fintlabs.consumer.resource.aspect.WriteableResource
 import no.fintlabs.consumer.resource.dto.LastUpdatedResponse
+import no.fintlabs.consumer.resource.dto.ResourceBatchResponse
 import no.fintlabs.consumer.resource.dto.ResourceCacheSizeResponse
+import no.fintlabs.consumer.resource.dto.ResourceChangesResponse
 import no.fintlabs.consumer.resource.event.RequestAccepted
 import no.fintlabs.consumer.resource.event.RequestFailed
 import no.fintlabs.consumer.resource.event.RequestGone
@@ -17,18 +22,23 @@ import no.fintlabs.consumer.resource.event.RequestValidated
 import no.fintlabs.consumer.resource.event.ResourceCreated
 import no.fintlabs.consumer.resource.event.ResourceDeleted
 import no.fintlabs.model.resource.FintResources
-import no.novari.fint.model.resource.FintResource
 import org.slf4j.LoggerFactory
 import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
+import org.springframework.http.codec.ServerSentEvent
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.PostMapping
 import org.springframework.web.bind.annotation.PutMapping
 import org.springframework.web.bind.annotation.RequestBody
+import org.springframework.web.bind.annotation.RequestHeader
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.bind.annotation.RestController
+import org.springframework.web.server.ServerWebExchange
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
 import java.net.URI
 
 @RestController
@@ -38,6 +48,9 @@ class ResourceController(
     private val requestFintEventService: RequestFintEventService,
     private val requestStatusService: RequestStatusService,
     private val consumerConfig: ConsumerConfiguration,
+    private val resourceChangeService: ResourceChangeService,
+    private val pageResponseCache: PageResponseCache,
+    private val opaFieldAdvice: OpaFieldAdvice,
 ) {
     @GetMapping
     fun getResource(
@@ -46,14 +59,22 @@ class ResourceController(
         @RequestParam(defaultValue = "0") offset: Int,
         @RequestParam(defaultValue = "0") sinceTimeStamp: Long,
         @RequestParam(required = false, name = "\$filter") filter: String?,
-    ): FintResources? =
-        resourceService.getResources(
-            resource,
-            size,
-            offset,
-            sinceTimeStamp,
-            filter,
-        )
+        @RequestParam(required = false) cursor: String?,
+        @RequestParam(required = false, name = SelectFilter.SELECT_PARAM) select: String?,
+        exchange: ServerWebExchange,
+    ): Mono<ResponseEntity<ByteArray>> {
+        val version = resourceService.getCollectionVersion(resource)
+        if (exchange.checkNotModified(version)) return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).build())
+        val key = PageResponseCache.PageKey(resource, size, offset, sinceTimeStamp, filter, cursor, select)
+        return pageResponseCache.getPage(exchange, key, version)
+    }
+
+    @GetMapping(produces = [MediaType.APPLICATION_NDJSON_VALUE])
+    fun streamResources(
+        @PathVariable resource: String,
+        @RequestParam(defaultValue = "0") sinceTimeStamp: Long,
+        @RequestParam(required = false, name = "\$filter") filter: String?,
+    ): Flux<Any> = resourceService.streamResources(resource, sinceTimeStamp, filter)
 
     @PostMapping("/\$query")
     fun getResourceByOdataFilter(
@@ -62,7 +83,9 @@ class ResourceController(
         @RequestParam(defaultValue = "0") offset: Int,
         @RequestParam(defaultValue = "0") sinceTimeStamp: Long,
         @RequestBody(required = false) filter: String?,
-    ): FintResources? = getResource(resource, size, offset, sinceTimeStamp, filter)
+        @RequestParam(required = false) cursor: String?,
+        @RequestParam(required = false, name = SelectFilter.SELECT_PARAM) select: String?,
+    ): FintResources? = resourceService.getResources(resource, size, offset, sinceTimeStamp, filter, cursor, select)
 
     @IdFieldCheck
     @GetMapping(EndpointsConstants.BY_ID)
@@ -70,11 +93,30 @@ class ResourceController(
         @PathVariable resource: String,
         @PathVariable idField: String,
         @PathVariable idValue: String,
-    ): ResponseEntity<FintResource?> =
-        resourceService
-            .getResourceById(resource, idField, idValue)
-            ?.let { ResponseEntity.ok(it) }
+        @RequestParam(required = false, name = SelectFilter.SELECT_PARAM) select: String?,
+        exchange: ServerWebExchange,
+    ): ResponseEntity<Any> {
+        val version =
+            resourceService.getResourceVersion(resource, idField, idValue)
+                ?: return ResponseEntity.notFound().build()
+        if (exchange.checkNotModified(version)) return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build()
+
+        // Entity responses bypass the response body advice, so the projection is applied here.
+        val selectedFields = SelectFilter.parse(select)
+        return resourceService
+            .getResourceById(resource, idField, idValue, select)
+            ?.let { ResponseEntity.ok(selectedFields?.let { fields -> SelectFilter.project(it, fields) } ?: it) }
             ?: ResponseEntity.notFound().build()
+    }
+
+    @IdFieldCheck
+    @PostMapping(EndpointsConstants.BY_IDS)
+    fun getResourcesByIds(
+        @PathVariable resource: String,
+        @PathVariable idField: String,
+        @RequestBody idValues: List<String>,
+    ): ResponseEntity<ResourceBatchResponse> =
+        ResponseEntity.ok(resourceService.getResourcesByIds(resource, idField, idValues))
 
     @GetMapping(EndpointsConstants.LAST_UPDATED)
     fun getLastUpdated(
@@ -84,6 +126,20 @@ class ResourceController(
             ResponseEntity.ok(LastUpdatedResponse(it))
         }
 
+    @GetMapping(EndpointsConstants.CHANGES)
+    fun getChanges(
+        @PathVariable resource: String,
+        @RequestParam(defaultValue = "0") sinceTimeStamp: Long,
+    ): ResponseEntity<ResourceChangesResponse> = ResponseEntity.ok(resourceService.getChanges(resource, sinceTimeStamp))
+
+    @GetMapping(EndpointsConstants.CHANGES, produces = [MediaType.TEXT_EVENT_STREAM_VALUE])
+    fun streamChanges(
+        @PathVariable resource: String,
+        @RequestParam(required = false) sinceTimeStamp: Long?,
+        @RequestHeader(name = "Last-Event-ID", required = false) lastEventId: String?,
+        @RequestParam(required = false, name = "\$filter") filter: String?,
+    ): Flux<ServerSentEvent<Any>> = resourceChangeService.subscribe(resource, sinceTimeStamp, lastEventId, filter)
+
     @GetMapping(EndpointsConstants.CACHE_SIZE)
     fun getResourceCacheSize(
         @PathVariable resource: String,
@@ -134,6 +190,21 @@ class ResourceController(
             .createAndPublish(resource, resourceData, OperationType.UPDATE)
             .toAcceptedResponse()
 
+    /**
+     * Sets `ETag` from [version] and tells whether the request's `If-None-Match` matches it.
+     *
+     * With OPA the same URL gives differently pruned bodies to different callers, so the `ETag`
+     * also holds a hash of the OPA field selection of the request, as the key of a
+     * [PageResponseCache] page does.
+     *
+     * No `Last-Modified` is sent, as its one second resolution can't tell apart changes made
+     * within the second a client last read, so `If-Modified-Since` would give stale `304`s.
+     */
+    private fun ServerWebExchange.checkNotModified(version: CacheVersion): Boolean {
+        val selection = opaFieldAdvice.selectionOf(this)?.let { "-${Integer.toUnsignedString(it.hashCode(), 36)}" }
+        return checkNotModified("W/\"${version.epoch.toString(36)}-${version.version.toString(36)}${selection ?: ""}\"")
+    }
+
     private fun RequestFailed.FailureType.toHttpStatus() =
         when (this) {
             RequestFailed.FailureType.REJECTED -> HttpStatus.BAD_REQUEST
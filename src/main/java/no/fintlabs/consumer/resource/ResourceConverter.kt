@@ -16,10 +16,21 @@ class ResourceConverter(
     private val resourceContext: ResourceContext,
     private val linkService: LinkService,
 ) {
+    /**
+     * [resource] as the resource class of [resourceName]. Resources already read into that class,
+     * as by [no.fintlabs.consumer.kafka.entity.EntityValueDeserializer], are returned as they are.
+     */
     fun convert(
         resourceName: String,
         resource: Any,
-    ): FintResource = objectMapper.convertValue(resource, resourceContext.getResource(resourceName).clazz)
+    ): FintResource {
+        val resourceClass = resourceContext.getResource(resourceName).clazz
+        return if (resourceClass.isInstance(resource)) {
+            resourceClass.cast(resource)
+        } else {
+            objectMapper.convertValue(resource, resourceClass)
+        }
+    }
 
     fun convertAndMapLinks(
         resourceName: String,
@@ -2,6 +2,7 @@ package no.fintlabs.consumer.resource
 
 import com.google.common.util.concurrent.Striped
 import org.springframework.stereotype.Service
+import java.util.concurrent.locks.Lock
 
 data class ResourceLockKey(
     val resourceName: String,
@@ -39,4 +40,28 @@ class ResourceLockService {
             lock.unlock()
         }
     }
+
+    /**
+     * Acquires the locks of all [resourceIds] of [resourceName], executes [block], then releases them.
+     *
+     * The locks are taken in stripe order, so two threads locking overlapping sets of resources
+     * can't deadlock each other.
+     */
+    fun withLocks(
+        resourceName: String,
+        resourceIds: Collection<String>,
+        block: () -> Unit,
+    ) {
+        val locks = striped.bulkGet(resourceIds.map { ResourceLockKey(resourceName, it) })
+        val acquired = ArrayList<Lock>(locks.size)
+        try {
+            locks.forEach {
+                it.lock()
+                acquired.add(it)
+            }
+            block()
+        } finally {
+            acquired.asReversed().forEach { it.unlock() }
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package no.fintlabs.consumer.resource
 
+import io.micrometer.core.instrument.FunctionTimer
 import io.micrometer.core.instrument.Gauge
 import io.micrometer.core.instrument.MeterRegistry
 import jakarta.annotation.PostConstruct
@@ -8,6 +9,7 @@ import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.kafka.sync.LastCompletedFullSyncCache
 import no.fintlabs.consumer.resource.context.ResourceContext
 import org.springframework.stereotype.Component
+import java.util.concurrent.TimeUnit
 
 @Component
 class ResourceMetrics(
@@ -22,6 +24,13 @@ class ResourceMetrics(
         resourceContext.resources.forEach { resource ->
             val name = resource.name()
             registerCacheSize(name)
+            registerCacheVersion(name)
+            registerWriteLockWait(name)
+            registerCompressionRatio(name)
+            registerDecodeTime(name)
+            registerOffHeapBytes(name)
+            registerFilterHitRatio(name)
+            registerFilterCompileTime(name)
             registerLatestFullSync(name)
         }
     }
@@ -33,6 +42,73 @@ class ResourceMetrics(
             description = "Number of entries in the cache for a given resource",
         ) { cacheService.getCache(resourceName).size }
 
+    private fun registerCacheVersion(resourceName: String) =
+        registerGauge(
+            name = "core.cache.version",
+            resourceName = resourceName,
+            description = "Version of the published cache snapshot, advanced by every accepted write",
+        ) { cacheService.getCache(resourceName).version }
+
+    private fun registerWriteLockWait(resourceName: String) =
+        FunctionTimer
+            .builder(
+                "core.cache.write.lock.wait",
+                cacheService,
+                { it.getCache(resourceName).writeLockAcquisitionCount },
+                { it.getCache(resourceName).writeLockWaitTimeNanos.toDouble() },
+                TimeUnit.NANOSECONDS,
+            ).tag("resource", resourceName)
+            .tag("org", configuration.orgId.value)
+            .description("Time cache writers spend waiting for the write lock")
+            .register(meterRegistry)
+
+    private fun registerCompressionRatio(resourceName: String) =
+        registerGauge(
+            name = "core.cache.compression.ratio",
+            resourceName = resourceName,
+            description = "Serialized size of the cached resources divided by the bytes held for them",
+        ) { cacheService.getCache(resourceName).compressionRatio }
+
+    private fun registerDecodeTime(resourceName: String) =
+        FunctionTimer
+            .builder(
+                "core.cache.decode",
+                cacheService,
+                { it.getCache(resourceName).decodeCount },
+                { it.getCache(resourceName).decodeTimeNanos.toDouble() },
+                TimeUnit.NANOSECONDS,
+            ).tag("resource", resourceName)
+            .tag("org", configuration.orgId.value)
+            .description("Time spent decoding stored cache entries back into resources")
+            .register(meterRegistry)
+
+    private fun registerOffHeapBytes(resourceName: String) =
+        registerGauge(
+            name = "core.cache.offheap.bytes",
+            resourceName = resourceName,
+            description = "Bytes held outside the Java heap for the cached resources",
+        ) { cacheService.getCache(resourceName).offHeapBytes }
+
+    private fun registerFilterHitRatio(resourceName: String) =
+        registerGauge(
+            name = "core.cache.filter.hit.ratio",
+            resourceName = resourceName,
+            description = "Share of OData filter lookups served without parsing the filter again",
+        ) { cacheService.getCache(resourceName).filterHitRatio }
+
+    private fun registerFilterCompileTime(resourceName: String) =
+        FunctionTimer
+            .builder(
+                "core.cache.filter.compile",
+                cacheService,
+                { it.getCache(resourceName).filterCompileCount },
+                { it.getCache(resourceName).filterCompileTimeNanos.toDouble() },
+                TimeUnit.NANOSECONDS,
+            ).tag("resource", resourceName)
+            .tag("org", configuration.orgId.value)
+            .description("Time spent parsing OData filters that were not cached")
+            .register(meterRegistry)
+
     private fun registerLatestFullSync(resourceName: String) =
         registerGauge(
             name = "core.consumer.latestCompletedFullSync",
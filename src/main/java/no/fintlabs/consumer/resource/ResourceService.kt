@@ -1,35 +1,280 @@
 package no.fintlabs.consumer.resource
 
+import no.fintlabs.cache.CacheChanges
+import no.fintlabs.cache.CachePage
 import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.CacheVersion
+import no.fintlabs.cache.FintCache
+import no.fintlabs.cache.PageCursor
+import no.fintlabs.consumer.config.BatchLookupProperties
+import no.fintlabs.consumer.filter.SelectFilter
 import no.fintlabs.consumer.links.LinkService
+import no.fintlabs.consumer.resource.dto.RemovedResource
+import no.fintlabs.consumer.resource.dto.ResourceBatchResponse
+import no.fintlabs.consumer.resource.dto.ResourceChangesResponse
+import no.fintlabs.consumer.resource.dto.SerializedResource
 import no.fintlabs.model.resource.FintResources
+import no.fintlabs.resource.server.config.OpaProperties
 import no.novari.fint.model.resource.FintResource
+import org.springframework.http.HttpStatus
 import org.springframework.stereotype.Service
+import org.springframework.web.server.ResponseStatusException
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 
 @Service
 class ResourceService(
     private val linkService: LinkService,
     private val cacheService: CacheService,
+    private val opaProperties: OpaProperties,
+    private val batchLookupProperties: BatchLookupProperties,
 ) {
+    private val pagesInFlight = ConcurrentHashMap<PageQuery, CompletableFuture<Any>>()
+
+    private data class PageQuery(
+        val resourceName: String,
+        val size: Int,
+        val offset: Int,
+        val sinceTimeStamp: Long,
+        val filter: String?,
+        val cursor: String?,
+        val select: String?,
+        val encoding: Any?,
+        val epoch: Long,
+        val version: Long,
+    )
+
+    /**
+     * Reads one page of the resource collection. A [cursor] from a previous page's `next` link
+     * resumes right after that page; the returned page links to its successor the same way.
+     *
+     * A page read for a [select] projection holds resource objects, since the projection is
+     * applied while they are serialized.
+     */
     fun getResources(
         resourceName: String,
         size: Int,
         offset: Int,
         sinceTimeStamp: Long,
         filter: String?,
+        cursor: String? = null,
+        select: String? = null,
     ): FintResources {
         val cache = cacheService.getCache(resourceName)
-        val resources = cache.getList(size.toLong(), offset.toLong(), sinceTimeStamp, filter)
-        return linkService.toResources(resourceName, resources, offset, size, cache.size)
+        val projected = SelectFilter.parse(select) != null
+        return readPage(cache, resourceName, size, offset, sinceTimeStamp, filter, cursor, projected)
+    }
+
+    /**
+     * Same page as [getResources], encoded with [encode]. Requests for the same page with the same
+     * [encoding] arriving while it is being read and encoded for the same cache version get the
+     * result of that one read, so a burst of clients polling at once reads and serializes it once.
+     *
+     * The request that starts the read does it right away. Those arriving meanwhile don't wait
+     * for it on their own thread, they get a [Mono] completing with the shared result.
+     */
+    fun <E : Any> getEncodedResources(
+        resourceName: String,
+        size: Int,
+        offset: Int,
+        sinceTimeStamp: Long,
+        filter: String?,
+        cursor: String?,
+        select: String?,
+        encoding: Any?,
+        encode: (FintResources) -> E,
+    ): Mono<E> {
+        val version = cacheService.getCache(resourceName).currentVersion()
+        val query =
+            PageQuery(
+                resourceName,
+                size,
+                offset,
+                sinceTimeStamp,
+                filter,
+                cursor,
+                select,
+                encoding,
+                version.epoch,
+                version.version,
+            )
+        val pending = CompletableFuture<Any>()
+        val running = pagesInFlight.putIfAbsent(query, pending)
+        if (running != null) {
+            // Only the query decides what was encoded, and identical queries pass the same encoder.
+            @Suppress("UNCHECKED_CAST")
+            return Mono.fromFuture(running as CompletableFuture<E>, true)
+        }
+
+        try {
+            val encoded = encode(getResources(resourceName, size, offset, sinceTimeStamp, filter, cursor, select))
+            pending.complete(encoded)
+            return Mono.just(encoded)
+        } catch (exception: Throwable) {
+            pending.completeExceptionally(exception)
+            throw exception
+        } finally {
+            pagesInFlight.remove(query, pending)
+        }
     }
 
+    private fun readPage(
+        cache: FintCache<FintResource>,
+        resourceName: String,
+        size: Int,
+        offset: Int,
+        sinceTimeStamp: Long,
+        filter: String?,
+        cursor: String?,
+        projected: Boolean,
+    ): FintResources {
+        val pageCursor = cursor?.let(PageCursor::decode)
+        val page =
+            if (!projected && servesSerializedJson(cache)) {
+                cache
+                    .getSerializedPage(size.toLong(), offset.toLong(), sinceTimeStamp, filter, pageCursor)
+                    .map(::SerializedResource)
+                    .asEntries()
+            } else {
+                cache.getPage(size.toLong(), offset.toLong(), sinceTimeStamp, filter, pageCursor)
+            }
+        return linkService.toResources(
+            resourceName,
+            page.items,
+            offset,
+            size,
+            page.totalItems.toInt(),
+            sinceTimeStamp,
+            filter,
+            cursor,
+            page.nextCursor?.encode(),
+        )
+    }
+
+    /**
+     * Streams every resource of the collection matching [sinceTimeStamp] and [filter], one
+     * element per resource. The cache is only read as fast as the subscriber requests resources,
+     * and a [filter] tests one resource at a time, so no export, filtered or not, holds the whole
+     * collection in memory.
+     */
+    fun streamResources(
+        resourceName: String,
+        sinceTimeStamp: Long,
+        filter: String?,
+    ): Flux<Any> {
+        val cache = cacheService.getCache(resourceName)
+        return if (servesSerializedJson(cache)) {
+            Flux.fromStream { cache.streamSerialized(sinceTimeStamp, filter).map(::SerializedResource) }
+        } else {
+            Flux.fromStream { cache.stream(sinceTimeStamp, filter) }
+        }
+    }
+
+    /**
+     * Resources written and removed at or after [sinceTimeStamp], so incremental clients learn
+     * about removals without reading the whole collection.
+     *
+     * @throws ResponseStatusException with `410 Gone` if removals that old are no longer
+     *   remembered, telling the client to read the whole collection instead.
+     */
+    fun getChanges(
+        resourceName: String,
+        sinceTimeStamp: Long,
+    ): ResourceChangesResponse {
+        val cache = cacheService.getCache(resourceName)
+        val changes: CacheChanges<Any>? =
+            if (servesSerializedJson(cache)) {
+                cache.getSerializedChanges(sinceTimeStamp)?.map(::SerializedResource)
+            } else {
+                cache.getChanges(sinceTimeStamp)
+            }
+        if (changes == null) {
+            throw ResponseStatusException(
+                HttpStatus.GONE,
+                "Removals since $sinceTimeStamp are no longer known, read the whole collection instead",
+            )
+        }
+
+        return ResourceChangesResponse(
+            changes.lastUpdated,
+            changes.updated,
+            changes.removed.map { RemovedResource(it.resourceId, it.identifiers, it.timestamp) },
+        )
+    }
+
+    /**
+     * Returns the cached resource, or its stored JSON as a [SerializedResource] when the cache
+     * runs in pre-serialized mode and no [select] projection is asked for.
+     */
     fun getResourceById(
         resourceName: String,
         idField: String,
         idValue: String,
-    ): FintResource? = cacheService.getCache(resourceName).getByIdField(idField, idValue)
+        select: String? = null,
+    ): Any? {
+        val cache = cacheService.getCache(resourceName)
+        return if (SelectFilter.parse(select) == null && servesSerializedJson(cache)) {
+            cache.getSerializedByIdField(idField, idValue)?.let(::SerializedResource)
+        } else {
+            cache.getByIdField(idField, idValue)
+        }
+    }
+
+    /**
+     * Returns the cached resources with the given [idValues] of [idField], looked up together in
+     * one pass over the identifier index, and the values no resource was found for.
+     *
+     * @throws ResponseStatusException with `400 Bad Request` if more than
+     *   [BatchLookupProperties.maxIds] values are asked for.
+     */
+    fun getResourcesByIds(
+        resourceName: String,
+        idField: String,
+        idValues: List<String>,
+    ): ResourceBatchResponse {
+        if (idValues.size > batchLookupProperties.maxIds) {
+            throw ResponseStatusException(
+                HttpStatus.BAD_REQUEST,
+                "At most ${batchLookupProperties.maxIds} identifiers can be looked up at once",
+            )
+        }
+
+        val values = idValues.distinct()
+        val cache = cacheService.getCache(resourceName)
+        val found: Map<String, Any> =
+            if (servesSerializedJson(cache)) {
+                cache.getAllSerializedByIdField(idField, values).mapValues { SerializedResource(it.value) }
+            } else {
+                cache.getAllByIdField(idField, values)
+            }
+        return ResourceBatchResponse(found.values.toList(), values.filterNot(found::containsKey))
+    }
+
+    /**
+     * Current version of the resource collection, read without touching its resources.
+     */
+    fun getCollectionVersion(resourceName: String): CacheVersion = cacheService.getCache(resourceName).currentVersion()
+
+    /**
+     * Current version of one resource, read without decoding it, or `null` if it is not cached.
+     */
+    fun getResourceVersion(
+        resourceName: String,
+        idField: String,
+        idValue: String,
+    ): CacheVersion? = cacheService.getCache(resourceName).versionByIdField(idField, idValue)
 
     fun getLastUpdated(resourceName: String): Long = cacheService.getCache(resourceName).lastUpdated
 
     fun getCacheSize(resourceName: String): Int = cacheService.getCache(resourceName).size
+
+    // OPA field filtering prunes properties during serialization, which stored JSON can't honor.
+    private fun servesSerializedJson(cache: FintCache<FintResource>) =
+        !opaProperties.enabled && cache.storesSerializedJson
+
+    // The envelope only hands its entries to Jackson, which writes SerializedResource verbatim.
+    @Suppress("UNCHECKED_CAST")
+    private fun CachePage<SerializedResource>.asEntries() = this as CachePage<FintResource>
 }
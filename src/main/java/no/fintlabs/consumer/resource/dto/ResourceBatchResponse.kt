@@ -0,0 +1,6 @@
+package no.fintlabs.consumer.resource.dto
+
+data class ResourceBatchResponse(
+    val resources: List<Any>,
+    val missing: List<String>,
+)
@@ -0,0 +1,13 @@
+package no.fintlabs.consumer.resource.dto
+
+data class ResourceChangesResponse(
+    val lastUpdated: Long,
+    val updated: List<Any>,
+    val removed: List<RemovedResource>,
+)
+
+data class RemovedResource(
+    val id: String,
+    val identifiers: Map<String, Any>,
+    val timestamp: Long,
+)
@@ -0,0 +1,110 @@
+package no.fintlabs.consumer.resource.dto
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.SerializableString
+import com.fasterxml.jackson.core.io.JsonStringEncoder
+import com.fasterxml.jackson.databind.JsonSerializable
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * A resource that has already been serialized to JSON.
+ *
+ * Jackson copies [json] verbatim into the output instead of walking the resource again, so a
+ * page of these inside a `FintResources` envelope is written as plain byte copies while the
+ * envelope (links, paging fields) is still produced by the regular object mapper.
+ */
+class SerializedResource(
+    val json: ByteArray,
+) : JsonSerializable.Base() {
+    override fun serialize(
+        gen: JsonGenerator,
+        serializers: SerializerProvider,
+    ) = gen.writeRawValue(RawUtf8(json))
+
+    override fun serializeWithType(
+        gen: JsonGenerator,
+        serializers: SerializerProvider,
+        typeSer: TypeSerializer,
+    ) = serialize(gen, serializers)
+
+    /**
+     * Pre-encoded UTF-8 JSON handed to [JsonGenerator.writeRawValue]. Byte-oriented generators
+     * copy [bytes] straight into their buffer; the char-based variants are only used by
+     * character generators and decode on demand.
+     */
+    private class RawUtf8(
+        private val bytes: ByteArray,
+    ) : SerializableString {
+        private val text: String by lazy { String(bytes, Charsets.UTF_8) }
+
+        override fun getValue(): String = text
+
+        override fun charLength(): Int = text.length
+
+        override fun asQuotedChars(): CharArray = JsonStringEncoder.getInstance().quoteAsString(text)
+
+        override fun asUnquotedUTF8(): ByteArray = bytes
+
+        override fun asQuotedUTF8(): ByteArray = JsonStringEncoder.getInstance().quoteAsUTF8(text)
+
+        override fun appendQuotedUTF8(
+            buffer: ByteArray,
+            offset: Int,
+        ): Int = append(asQuotedUTF8(), buffer, offset)
+
+        override fun appendQuoted(
+            buffer: CharArray,
+            offset: Int,
+        ): Int = append(asQuotedChars(), buffer, offset)
+
+        override fun appendUnquotedUTF8(
+            buffer: ByteArray,
+            offset: Int,
+        ): Int = append(bytes, buffer, offset)
+
+        override fun appendUnquoted(
+            buffer: CharArray,
+            offset: Int,
+        ): Int = append(text.toCharArray(), buffer, offset)
+
+        override fun writeQuotedUTF8(out: OutputStream): Int = asQuotedUTF8().also { out.write(it) }.size
+
+        override fun writeUnquotedUTF8(out: OutputStream): Int = bytes.also { out.write(it) }.size
+
+        override fun putQuotedUTF8(buffer: ByteBuffer): Int = put(asQuotedUTF8(), buffer)
+
+        override fun putUnquotedUTF8(buffer: ByteBuffer): Int = put(bytes, buffer)
+
+        private fun append(
+            source: ByteArray,
+            buffer: ByteArray,
+            offset: Int,
+        ): Int {
+            if (offset + source.size > buffer.size) return -1
+            source.copyInto(buffer, offset)
+            return source.size
+        }
+
+        private fun append(
+            source: CharArray,
+            buffer: CharArray,
+            offset: Int,
+        ): Int {
+            if (offset + source.size > buffer.size) return -1
+            source.copyInto(buffer, offset)
+            return source.size
+        }
+
+        private fun put(
+            source: ByteArray,
+            buffer: ByteBuffer,
+        ): Int {
+            if (source.size > buffer.remaining()) return -1
+            buffer.put(source)
+            return source.size
+        }
+    }
+}
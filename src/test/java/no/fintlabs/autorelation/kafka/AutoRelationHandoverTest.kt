@@ -0,0 +1,79 @@
+package no.fintlabs.autorelation.kafka
+
+import io.mockk.every
+import io.mockk.mockk
+import no.fintlabs.cache.CacheSnapshotService
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class AutoRelationHandoverTest {
+    private val cacheSnapshotService = mockk<CacheSnapshotService>()
+    private val handover = AutoRelationHandover(cacheSnapshotService)
+    private val partition = TopicPartition("fintlabs-no.fint-core.entity.utdanning-vurdering", 0)
+
+    @Test
+    fun `partition is not handed over while the entity consumer is ahead`() {
+        handover.claim(partition, 9)
+
+        assertTrue(handover.take(partition, 4))
+        assertFalse(handover.isHandedOver(partition))
+        assertFalse(handover.claim(partition, 10))
+    }
+
+    @Test
+    fun `partition is handed over once the autorelation consumer catches up with the entity consumer`() {
+        handover.claim(partition, 4)
+
+        assertTrue(handover.take(partition, 4))
+        assertTrue(handover.isHandedOver(partition))
+        assertTrue(handover.claim(partition, 5))
+        assertFalse(handover.take(partition, 5))
+    }
+
+    @Test
+    fun `records delivered after the handover are published once by whichever consumer reads them first`() {
+        handover.claim(partition, 4)
+        handover.take(partition, 4)
+
+        assertTrue(handover.take(partition, 5))
+        assertFalse(handover.claim(partition, 5))
+        assertTrue(handover.claim(partition, 6))
+        assertFalse(handover.take(partition, 6))
+    }
+
+    @Test
+    fun `partition is not handed over before the entity consumer has read from it`() {
+        assertTrue(handover.take(partition, 0))
+        assertFalse(handover.isHandedOver(partition))
+    }
+
+    @Test
+    fun `handed over partitions commit the entity consumer's progress but never before the handover`() {
+        val other = TopicPartition(partition.topic(), 1)
+        handover.claim(partition, 2)
+        handover.take(partition, 2)
+        every { cacheSnapshotService.resumeOffset(partition) } returns 1L
+
+        assertEquals(mapOf(partition to OffsetAndMetadata(3)), handover.commitOffsets(listOf(partition, other)))
+
+        every { cacheSnapshotService.resumeOffset(partition) } returns 8L
+
+        assertEquals(mapOf(partition to OffsetAndMetadata(8)), handover.commitOffsets(listOf(partition)))
+    }
+
+    @Test
+    fun `released partition is published by the autorelation consumer again`() {
+        handover.claim(partition, 4)
+        handover.take(partition, 4)
+
+        handover.release(listOf(partition))
+
+        assertFalse(handover.isHandedOver(partition))
+        assertFalse(handover.claim(partition, 5))
+        assertTrue(handover.take(partition, 5))
+    }
+}
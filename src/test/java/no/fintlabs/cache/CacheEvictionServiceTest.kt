@@ -1,5 +1,6 @@
 package no.fintlabs.cache
 
+import com.fasterxml.jackson.databind.ObjectMapper
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.Called
 import io.mockk.clearAllMocks
@@ -8,6 +9,7 @@ import io.mockk.mockk
 import io.mockk.verify
 import no.fintlabs.autorelation.RelationEventService
 import no.fintlabs.consumer.config.AutorelationConfig
+import no.fintlabs.consumer.config.CacheProperties
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.config.OrgId
 import no.novari.fint.model.resource.FintResource
@@ -29,7 +31,7 @@ class CacheEvictionServiceTest {
 
     @BeforeEach
     fun setUp() {
-        cacheService = CacheService()
+        cacheService = CacheService(CacheProperties(), ObjectMapper(), mockk(relaxed = true), mockk(relaxed = true))
         relationEventService = mockk(relaxed = true)
         consumerConfiguration =
             mockk {
@@ -42,6 +44,7 @@ class CacheEvictionServiceTest {
                 relationEventService = relationEventService,
                 consumerConfiguration = consumerConfiguration,
                 meterRegistry = SimpleMeterRegistry(),
+                resourceChangeService = mockk(relaxed = true),
             )
     }
 
@@ -105,13 +108,14 @@ class CacheEvictionServiceTest {
                 relationEventService = relationEventService,
                 consumerConfiguration = consumerConfiguration,
                 meterRegistry = SimpleMeterRegistry(),
+                resourceChangeService = mockk(relaxed = true),
             )
 
         val firstRunStarted = CountDownLatch(1)
         val allowFirstRunToFinish = CountDownLatch(1)
         val evictionRuns = AtomicInteger(0)
 
-        every { cache.evictExpired(any()) } answers {
+        every { cache.evictExpired(any(), any()) } answers {
             if (evictionRuns.incrementAndGet() == 1) {
                 firstRunStarted.countDown()
                 allowFirstRunToFinish.await(2, TimeUnit.SECONDS)
@@ -129,7 +133,7 @@ class CacheEvictionServiceTest {
         first.get(2, TimeUnit.SECONDS)
         second.get(2, TimeUnit.SECONDS)
 
-        verify(exactly = 1) { cache.evictExpired(firstStartTimestamp) }
-        verify(exactly = 1) { cache.evictExpired(secondStartTimestamp) }
+        verify(exactly = 1) { cache.evictExpired(firstStartTimestamp, true) }
+        verify(exactly = 1) { cache.evictExpired(secondStartTimestamp, true) }
     }
 }
@@ -0,0 +1,313 @@
+package no.fintlabs.cache
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.sun.net.httpserver.HttpServer
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import no.fintlabs.consumer.config.CacheProperties
+import no.fintlabs.consumer.links.LinkService
+import no.fintlabs.consumer.resource.context.ResourceContext
+import no.fintlabs.consumer.resource.context.model.FintResourceInformation
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
+import no.novari.fint.model.resource.utdanning.elev.ElevResource
+import org.apache.kafka.common.TopicPartition
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.io.path.isRegularFile
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+
+class CacheSnapshotServiceTest {
+    @TempDir
+    private lateinit var directory: Path
+
+    private val partition = TopicPartition("utdanning-elev", 0)
+    private val linkService = mockk<LinkService>(relaxed = true)
+    private val resourceContext =
+        mockk<ResourceContext> {
+            every { getResource("elev") } returns
+                FintResourceInformation(
+                    "elev",
+                    ElevResource::class.java,
+                    setOf("systemid"),
+                    false,
+                    emptySet(),
+                    emptySet(),
+                    emptySet(),
+                    emptyMap(),
+                )
+        }
+
+    @Test
+    fun `restored caches hold the snapshot entries and resume after the processed offsets`() {
+        val (cacheService, snapshotService) = start()
+        listOf("A", "B", "C").forEachIndexed { index, id ->
+            cacheService.getCache("elev").put(id, createElevResource(id), index.toLong() + 10)
+        }
+        snapshotService.recordProcessed(partition, 41)
+        snapshotService.writeSnapshot()
+
+        val (restoredCacheService, restoredSnapshotService) = start()
+
+        val cache = restoredCacheService.getCache("elev")
+        assertEquals(mapOf(partition to 42L), restoredSnapshotService.restoredOffsets)
+        assertEquals(42L, restoredSnapshotService.resumeOffset(partition))
+        assertEquals(
+            listOf("A", "B", "C"),
+            cache.getList(0, 0, 0, null).map {
+                (it as ElevResource).systemId.identifikatorverdi
+            },
+        )
+        assertEquals(
+            listOf("C"),
+            cache.getList(0, 0, 12, null).map { (it as ElevResource).systemId.identifikatorverdi },
+        )
+        assertEquals("B", (cache.getByIdField("systemid", "B") as ElevResource).systemId.identifikatorverdi)
+    }
+
+    @Test
+    fun `snapshot taken during a full sync resumes from the start of the sync until it has completed`() {
+        val (cacheService, snapshotService) = start()
+        cacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        snapshotService.recordProcessed(partition, 9)
+        snapshotService.fullSyncRecordProcessed("sync-1", partition, 10)
+        snapshotService.fullSyncRecordProcessed("sync-1", partition, 12)
+        snapshotService.recordProcessed(partition, 12)
+        snapshotService.writeSnapshot()
+
+        assertEquals(mapOf(partition to 10L), start().second.restoredOffsets)
+
+        snapshotService.fullSyncCompleted("sync-1", partition, 15)
+        snapshotService.recordProcessed(partition, 14)
+        snapshotService.writeSnapshot()
+
+        assertEquals(mapOf(partition to 10L), start().second.restoredOffsets)
+
+        snapshotService.recordProcessed(partition, 15)
+        snapshotService.writeSnapshot()
+
+        assertEquals(mapOf(partition to 16L), start().second.restoredOffsets)
+    }
+
+    @Test
+    fun `abandoned full sync no longer holds snapshots back`() {
+        val (cacheService, snapshotService) = start()
+        cacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        snapshotService.fullSyncRecordProcessed("sync-1", partition, 3)
+        snapshotService.recordProcessed(partition, 5)
+        snapshotService.fullSyncAbandoned("sync-1")
+        snapshotService.writeSnapshot()
+
+        assertEquals(mapOf(partition to 6L), start().second.restoredOffsets)
+    }
+
+    @Test
+    fun `unread lazy entries are written undecoded and restored lazily`() {
+        val (cacheService, snapshotService) = start(lazyDecode = true)
+        val json = ObjectMapper().writeValueAsBytes(createElevResource("A"))
+        val lazy = cacheService.lazyResourceReader("elev")!!.read(json)
+        cacheService.getCache("elev").putLazy("A", lazy, 1)
+        snapshotService.recordProcessed(partition, 0)
+        snapshotService.writeSnapshot()
+
+        assertFalse(lazy.isMaterialized)
+
+        val (restoredCacheService, _) = start(lazyDecode = true)
+
+        verify(exactly = 0) { linkService.mapLinks(any(), any()) }
+        val restored = restoredCacheService.getCache("elev").getByIdField("systemid", "A") as ElevResource
+        assertEquals("A", restored.systemId.identifikatorverdi)
+        verify(exactly = 1) { linkService.mapLinks("elev", restored) }
+    }
+
+    @Test
+    fun `entries that were prepared on write are restored without mapping their links again`() {
+        val (cacheService, snapshotService) = start()
+        cacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        snapshotService.recordProcessed(partition, 0)
+        snapshotService.writeSnapshot()
+
+        val (restoredCacheService, _) = start()
+
+        assertEquals("A", (restoredCacheService.getCache("elev").get("A") as ElevResource).systemId.identifikatorverdi)
+        verify(exactly = 0) { linkService.mapLinks(any(), any()) }
+    }
+
+    @Test
+    fun `unread lazy entries restored into a cache that decodes eagerly are mapped once`() {
+        val (cacheService, snapshotService) = start(lazyDecode = true)
+        val json = ObjectMapper().writeValueAsBytes(createElevResource("A"))
+        cacheService.getCache("elev").putLazy("A", cacheService.lazyResourceReader("elev")!!.read(json), 1)
+        snapshotService.recordProcessed(partition, 0)
+        snapshotService.writeSnapshot()
+
+        val (restoredCacheService, _) = start()
+
+        val restored = restoredCacheService.getCache("elev").get("A") as ElevResource
+        verify(exactly = 1) { linkService.mapLinks("elev", restored) }
+    }
+
+    @Test
+    fun `corrupt snapshot is not restored`() {
+        val (cacheService, snapshotService) = start()
+        cacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        snapshotService.recordProcessed(partition, 0)
+        snapshotService.writeSnapshot()
+        val cacheFile =
+            Files.walk(directory).use { paths ->
+                paths.filter { it.fileName.toString() == "cache-0-0" }.findFirst().get()
+            }
+        val bytes = Files.readAllBytes(cacheFile)
+        bytes[bytes.size / 2] = (bytes[bytes.size / 2] + 1).toByte()
+        Files.write(cacheFile, bytes)
+
+        val (restoredCacheService, restoredSnapshotService) = start()
+
+        assertNull(restoredSnapshotService.restoredOffsets)
+        assertNull(restoredSnapshotService.resumeOffset(partition))
+        assertEquals(0, restoredCacheService.getCache("elev").size)
+    }
+
+    @Test
+    fun `nothing is written when snapshots are disabled`() {
+        val (cacheService, snapshotService) = start(enabled = false)
+        cacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        snapshotService.recordProcessed(partition, 0)
+
+        snapshotService.writeSnapshot()
+
+        assertEquals(0, Files.walk(directory).use { paths -> paths.filter { it.isRegularFile() }.count() })
+    }
+
+    @Test
+    fun `new instance bootstraps its caches from a warm peer and resumes after its offsets`() {
+        val (peerCacheService, peerSnapshotService) = start(enabled = false, peerToken = "secret")
+        peerCacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        peerCacheService.getCache("elev").put("B", createElevResource("B"), 2)
+        peerSnapshotService.recordProcessed(partition, 6)
+        val peer = startPeer(peerSnapshotService)
+
+        try {
+            val (cacheService, snapshotService) =
+                start(enabled = false, peerUrl = "http://localhost:${peer.address.port}", peerToken = "secret")
+
+            assertEquals(mapOf(partition to 7L), snapshotService.restoredOffsets)
+            assertEquals(
+                listOf("A", "B"),
+                cacheService
+                    .getCache(
+                        "elev",
+                    ).getList(0, 0, 0, null)
+                    .map { (it as ElevResource).systemId.identifikatorverdi },
+            )
+        } finally {
+            peer.stop(0)
+        }
+    }
+
+    @Test
+    fun `peer refuses instances without its token`() {
+        val (peerCacheService, peerSnapshotService) = start(enabled = false, peerToken = "secret")
+        peerCacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        peerSnapshotService.recordProcessed(partition, 0)
+        val peer = startPeer(peerSnapshotService)
+
+        try {
+            val (cacheService, snapshotService) =
+                start(enabled = false, peerUrl = "http://localhost:${peer.address.port}", peerToken = "guess")
+
+            assertNull(snapshotService.restoredOffsets)
+            assertEquals(0, cacheService.getCache("elev").size)
+        } finally {
+            peer.stop(0)
+        }
+    }
+
+    @Test
+    fun `peers are not served without a token`() {
+        val (_, snapshotService) = start(enabled = false)
+
+        assertFalse(snapshotService.servesPeers)
+        assertFalse(snapshotService.isPeer(null))
+    }
+
+    @Test
+    fun `caches are restored when the service is started`() {
+        val (cacheService, snapshotService) = start()
+        cacheService.getCache("elev").put("A", createElevResource("A"), 1)
+        snapshotService.recordProcessed(partition, 0)
+        snapshotService.writeSnapshot()
+        val cacheProperties =
+            CacheProperties(snapshot = CacheProperties.Snapshot(enabled = true, directory = directory.toString()))
+        val restoredCacheService = CacheService(cacheProperties, ObjectMapper(), resourceContext, linkService)
+
+        val restoredSnapshotService = CacheSnapshotService(restoredCacheService, cacheProperties)
+
+        assertNull(restoredSnapshotService.restoredOffsets)
+        assertEquals(0, restoredCacheService.getCache("elev").size)
+
+        restoredSnapshotService.start()
+
+        assertEquals(mapOf(partition to 1L), restoredSnapshotService.restoredOffsets)
+        assertEquals(1, restoredCacheService.getCache("elev").size)
+    }
+
+    @Test
+    fun `unreachable peer falls back to a full replay`() {
+        val unusedPort = ServerSocket(0).use { it.localPort }
+
+        val (cacheService, snapshotService) = start(enabled = false, peerUrl = "http://localhost:$unusedPort")
+
+        assertNull(snapshotService.restoredOffsets)
+        assertEquals(0, cacheService.getCache("elev").size)
+    }
+
+    private fun start(
+        enabled: Boolean = true,
+        peerUrl: String? = null,
+        lazyDecode: Boolean = false,
+        peerToken: String? = null,
+    ): Pair<CacheService, CacheSnapshotService> {
+        val cacheProperties =
+            CacheProperties(
+                defaults = CacheProperties.ResourceCache(lazyDecode = lazyDecode),
+                snapshot =
+                    CacheProperties.Snapshot(
+                        enabled = enabled,
+                        directory = directory.toString(),
+                        peerUrl = peerUrl,
+                        peerToken = peerToken,
+                    ),
+            )
+        val cacheService = CacheService(cacheProperties, ObjectMapper(), resourceContext, linkService)
+        return Pair(cacheService, CacheSnapshotService(cacheService, cacheProperties).apply { start() })
+    }
+
+    /**
+     * A peer serving the snapshot of [snapshotService] the way the admin endpoint does.
+     */
+    private fun startPeer(snapshotService: CacheSnapshotService) =
+        HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+            createContext("/admin/cache/snapshot") { exchange ->
+                if (!snapshotService.isPeer(exchange.requestHeaders.getFirst(CacheSnapshotService.PEER_TOKEN_HEADER))) {
+                    exchange.sendResponseHeaders(403, -1)
+                    exchange.close()
+                    return@createContext
+                }
+                exchange.sendResponseHeaders(200, 0)
+                exchange.responseBody.use(snapshotService::writeTo)
+            }
+            start()
+        }
+
+    private fun createElevResource(id: String): ElevResource =
+        ElevResource().apply {
+            systemId = Identifikator().apply { identifikatorverdi = id }
+        }
+}
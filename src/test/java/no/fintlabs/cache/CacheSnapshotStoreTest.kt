@@ -0,0 +1,58 @@
+package no.fintlabs.cache
+
+import org.apache.kafka.common.TopicPartition
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.stream.Stream
+import kotlin.io.path.fileSize
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class CacheSnapshotStoreTest {
+    @TempDir
+    private lateinit var directory: Path
+
+    private val partition = TopicPartition("utdanning-elev", 0)
+
+    @Test
+    fun `caches larger than one file are split across files and read back in order`() {
+        val store = CacheSnapshotStore(directory, maxFileSize = 256)
+        val records =
+            List(50) {
+                CacheSnapshotStore.Record("id-$it", it.toLong(), ByteArray(40) { _ -> it.toByte() }, raw = it % 3 == 0)
+            }
+
+        store.write(100, mapOf(partition to 7L), mapOf("elev" to records.stream(), "skole" to Stream.empty()))
+
+        val files = Files.list(directory).use { it.findFirst().get() }.listDirectoryEntries("cache-*")
+        assertTrue(files.count { it.name.startsWith("cache-0-") } > 1)
+        assertTrue(files.all { it.fileSize() <= 256 })
+
+        val snapshot = store.latest()!!
+        val restored = mutableListOf<CacheSnapshotStore.Record>()
+        snapshot.forEachRecord("elev") { restored.add(it) }
+        snapshot.forEachRecord("skole") { error("Unexpected record $it") }
+
+        assertEquals(mapOf(partition to 7L), snapshot.offsets)
+        assertEquals(records.map { it.resourceId }, restored.map { it.resourceId })
+        assertEquals(records.map { it.timestamp }, restored.map { it.timestamp })
+        assertEquals(records.map { it.json.toList() }, restored.map { it.json.toList() })
+        assertEquals(records.map { it.raw }, restored.map { it.raw })
+    }
+
+    @Test
+    fun `records larger than a file get a file of their own`() {
+        val store = CacheSnapshotStore(directory, maxFileSize = 64)
+        val records = List(3) { CacheSnapshotStore.Record("id-$it", it.toLong(), ByteArray(100)) }
+
+        store.write(100, emptyMap(), mapOf("elev" to records.stream()))
+
+        val restored = mutableListOf<String>()
+        store.latest()!!.forEachRecord("elev") { restored.add(it.resourceId) }
+        assertEquals(listOf("id-0", "id-1", "id-2"), restored)
+    }
+}
@@ -0,0 +1,99 @@
+package no.fintlabs.cache
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
+import no.novari.fint.model.resource.utdanning.elev.ElevResource
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class CompressedStorageTest {
+    private val objectMapper = ObjectMapper()
+    private val codec = ResourceCodec(objectMapper, ElevResource::class.java)
+
+    @Test
+    fun `stored entries restore the serialized json`() {
+        val storage = CompressedStorage(codec, hotTierSize = 10)
+        val elev = createElevResource("A")
+
+        val stored = storage.store(elev)
+
+        assertEquals(objectMapper.readTree(codec.serialize(elev)), objectMapper.readTree(stored.json))
+        assertTrue(storage.storedBytes > 0)
+        assertEquals(codec.serialize(elev).size.toLong(), storage.serializedBytes)
+    }
+
+    @Test
+    fun `released entries are still decoded for readers of older snapshots`() {
+        val storage = CompressedStorage(codec, hotTierSize = 10)
+        val elev = createElevResource("A")
+
+        val stored = storage.store(elev)
+        stored.release()
+        val decoded = stored.resource
+
+        assertNotSame(elev, decoded)
+        assertEquals("A", decoded.systemId.identifikatorverdi)
+        assertEquals(1, storage.decodeCount)
+    }
+
+    @Test
+    fun `freshly stored resources are read without decoding`() {
+        val storage = CompressedStorage(codec, hotTierSize = 10)
+        val elev = createElevResource("A")
+
+        val stored = storage.store(elev)
+
+        assertSame(elev, stored.resource)
+        assertEquals(0, storage.decodeCount)
+    }
+
+    @Test
+    fun `released entries are no longer accounted for`() {
+        val storage = CompressedStorage(codec, hotTierSize = 10)
+
+        storage.store(createElevResource("A")).release()
+
+        assertEquals(0, storage.serializedBytes)
+        assertEquals(0, storage.storedBytes)
+    }
+
+    @Test
+    fun `compressed fint cache evicts and resolves identifiers without decoding`() {
+        val storage = CompressedStorage(codec, hotTierSize = 10)
+        val cache = FintCache(storage = storage)
+        val elever = (0 until 3).map { createElevResource("elev-$it") }
+        elever.forEachIndexed { index, elev ->
+            cache.put(elev.systemId.identifikatorverdi, elev, index.toLong())
+        }
+
+        cache.put("elev-0", createElevResource("elev-0"), 5)
+        cache.evictExpired(2)
+
+        assertEquals(2, cache.size)
+        assertEquals(listOf("elev-2", "elev-0"), cache.getList(0, 0, 0, null).map { it.systemId.identifikatorverdi })
+        assertEquals(0, storage.decodeCount)
+        assertTrue(cache.compressionRatio > 0)
+    }
+
+    @Test
+    fun `evicting without reading the resources decodes nothing and releases every entry`() {
+        val storage = CompressedStorage(codec, hotTierSize = 1)
+        val cache = FintCache(storage = storage)
+        (0 until 3).forEach { cache.put("elev-$it", createElevResource("elev-$it"), it.toLong()) }
+
+        val evicted = cache.evictExpired(3, readResources = false)
+
+        assertTrue(evicted.isEmpty())
+        assertEquals(0, cache.size)
+        assertEquals(0, storage.decodeCount)
+        assertEquals(0, storage.storedBytes)
+    }
+
+    private fun createElevResource(id: String): ElevResource =
+        ElevResource().apply {
+            systemId = Identifikator().apply { identifikatorverdi = id }
+        }
+}
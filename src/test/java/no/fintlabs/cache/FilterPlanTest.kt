@@ -0,0 +1,49 @@
+package no.fintlabs.cache
+
+import org.junit.jupiter.api.Test
+import java.time.Instant
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class FilterPlanTest {
+    private val fields = listOf(IndexedField("elevnummer/identifikatorverdi"), IndexedField("periode/start"))
+    private val index =
+        FieldIndex
+            .empty<String>()
+            .plus(FieldKey("elevnummer/identifikatorverdi", FieldKey.Kind.TEXT, "a-1"), "a")
+            .plus(FieldKey("elevnummer/identifikatorverdi", FieldKey.Kind.TEXT, "b-2"), "b")
+            .plus(FieldKey("periode/start", FieldKey.Kind.DATE, millis("2024-01-10T12:00:00Z")), "a")
+            .plus(FieldKey("periode/start", FieldKey.Kind.DATE, millis("2024-03-01T00:00:00Z")), "b")
+            .plus(FieldKey("periode/start", FieldKey.Kind.DATE, millis("2024-06-01T00:00:00Z")), "c")
+
+    @Test
+    fun `equality is looked up case-insensitively`() {
+        assertEquals(setOf("a"), candidates("elevnummer/identifikatorverdi eq 'A-1'"))
+        assertEquals(setOf("a", "b"), candidates("Elevnummer/Identifikatorverdi in ('a-1', 'b-2', 'c-3')"))
+    }
+
+    @Test
+    fun `conjunctions intersect the clauses and leave unindexed clauses to the filter`() {
+        assertEquals(
+            setOf("b"),
+            candidates("periode/start gt '2024-02-01' and elevnummer/identifikatorverdi eq 'b-2' and navn eq 'x'"),
+        )
+    }
+
+    @Test
+    fun `date ranges keep a day of slack on either side`() {
+        assertEquals(setOf("a", "b"), candidates("periode/start le '2024-02-29'"))
+        assertEquals(setOf("a"), candidates("periode/start eq '2024-01-10'"))
+    }
+
+    @Test
+    fun `filters the indexes can't narrow are not planned`() {
+        assertNull(FilterPlan.of("elevnummer/identifikatorverdi eq 'a-1' or navn eq 'x'", fields))
+        assertNull(FilterPlan.of("navn eq 'x'", fields))
+        assertNull(FilterPlan.of("elevnummer/identifikatorverdi eq 'a-1", fields))
+    }
+
+    private fun candidates(filter: String) = requireNotNull(FilterPlan.of(filter, fields)).candidates(index)
+
+    private fun millis(instant: String) = Instant.parse(instant).toEpochMilli()
+}
@@ -5,10 +5,18 @@ import no.novari.fint.model.resource.utdanning.elev.ElevResource
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertDoesNotThrow
+import org.junit.jupiter.api.assertThrows
+import org.springframework.http.HttpStatus
+import org.springframework.web.server.ResponseStatusException
+import java.lang.ref.WeakReference
 import java.util.UUID
+import kotlin.math.max
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
 import kotlin.test.assertNull
 import kotlin.test.assertSame
+import kotlin.test.assertTrue
 
 class FintCacheTest {
     private lateinit var cache: FintCache<ElevResource>
@@ -262,6 +270,352 @@ class FintCacheTest {
         }
     }
 
+    @Test
+    fun `sharded cache returns entries in timestamp and resource id order across shards`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 4)
+        val timestamps = listOf(5L, 1L, 3L, 3L, 2L, 4L, 1L, 5L)
+        timestamps.forEachIndexed { index, timestamp ->
+            val elev = createElevResource("elev-$index")
+            shardedCache.put(elev.systemId.identifikatorverdi, elev, timestamp)
+        }
+
+        val expectedOrder =
+            timestamps
+                .mapIndexed { index, timestamp -> Pair(timestamp, "elev-$index") }
+                .sortedWith(compareBy({ it.first }, { it.second }))
+                .map { it.second }
+
+        assertEquals(8, shardedCache.size)
+        assertEquals(expectedOrder, shardedCache.getList(0, 0, 0, null).map { it.systemId.identifikatorverdi })
+        assertEquals(
+            expectedOrder.subList(2, 5),
+            shardedCache.getList(3, 2, 0, null).map { it.systemId.identifikatorverdi },
+        )
+        assertEquals(
+            expectedOrder.filterIndexed { index, _ -> timestamps.sorted()[index] >= 3 },
+            shardedCache.getList(0, 0, 3, null).map { it.systemId.identifikatorverdi },
+        )
+    }
+
+    @Test
+    fun `stream reads every matching entry in page order`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 3)
+        listOf(4L, 1L, 3L, 1L, 2L).forEachIndexed { index, timestamp ->
+            val elev = createElevResource("elev-$index")
+            shardedCache.put(elev.systemId.identifikatorverdi, elev, timestamp)
+        }
+
+        assertEquals(
+            shardedCache.getList(0, 0, 0, null).map { it.systemId.identifikatorverdi },
+            shardedCache.stream(0, null).map { it.systemId.identifikatorverdi }.toList(),
+        )
+        assertEquals(
+            listOf("elev-2", "elev-0"),
+            shardedCache.stream(3, null).map { it.systemId.identifikatorverdi }.toList(),
+        )
+        assertThrows<IllegalStateException> { shardedCache.streamSerialized(0, null) }
+    }
+
+    @Test
+    fun `batch lookup finds resources on every shard in the order asked for`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 3)
+        listOf("A", "B", "C", "D").forEachIndexed { index, id ->
+            shardedCache.put(id, createElevResource(id), index.toLong())
+        }
+
+        val found = shardedCache.getAllByIdField("systemId", listOf("D", "X", "A", "C"))
+
+        assertEquals(listOf("D", "A", "C"), found.keys.toList())
+        assertEquals(listOf("D", "A", "C"), found.values.map { it.systemId.identifikatorverdi })
+        assertThrows<IllegalStateException> { shardedCache.getAllSerializedByIdField("systemId", listOf("A")) }
+    }
+
+    @Test
+    fun `putAll accepts and rejects every write as put would across shards`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 3)
+        shardedCache.put("A", createElevResource("A"), 10)
+
+        val accepted =
+            shardedCache.putAll(
+                listOf(
+                    CachePut("A", createElevResource("A"), 5),
+                    CachePut("B", createElevResource("B"), 2),
+                    CachePut("C", createElevResource("C"), 1),
+                    CachePut("C", createElevResource("C"), 3),
+                    CachePut("D", createElevResource("D"), 4),
+                ),
+            )
+
+        assertEquals(setOf("B", "C", "D"), accepted)
+        assertEquals(4, shardedCache.size)
+        assertEquals(
+            listOf("B", "C", "D", "A"),
+            shardedCache.getList(0, 0, 0, null).map { it.systemId.identifikatorverdi },
+        )
+        assertEquals(10L, shardedCache.lastUpdated)
+        assertEquals("C", shardedCache.getByIdField("systemid", "C")?.systemId?.identifikatorverdi)
+    }
+
+    @Test
+    fun `cursor pages walk the cache in order and end on the last page`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 3)
+        val timestamps = listOf(2L, 1L, 2L, 3L, 1L, 2L, 3L)
+        timestamps.forEachIndexed { index, timestamp ->
+            val elev = createElevResource("elev-$index")
+            shardedCache.put(elev.systemId.identifikatorverdi, elev, timestamp)
+        }
+
+        val pages = mutableListOf<List<String>>()
+        var cursor: PageCursor? = null
+        do {
+            val page = shardedCache.getPage(3, 0, 0, null, cursor?.encode()?.let(PageCursor::decode))
+            pages.add(page.items.map { it.systemId.identifikatorverdi })
+            assertEquals(7, page.totalItems)
+            cursor = page.nextCursor
+        } while (cursor != null)
+
+        val expectedOrder = shardedCache.getList(0, 0, 0, null).map { it.systemId.identifikatorverdi }
+        assertEquals(expectedOrder.chunked(3), pages)
+    }
+
+    @Test
+    fun `cursor page starts after the cursor even when it lies before sinceTimestamp`() {
+        (0 until 6).forEach {
+            val elev = createElevResource("elev-$it")
+            cache.put(elev.systemId.identifikatorverdi, elev, it.toLong())
+        }
+
+        val afterCursor = cache.getPage(2, 0, 0, null, PageCursor(2L, "elev-2", 3))
+        val afterSince = cache.getPage(2, 0, 4, null, PageCursor(2L, "elev-2", 3))
+
+        assertEquals(listOf("elev-3", "elev-4"), afterCursor.items.map { it.systemId.identifikatorverdi })
+        assertEquals(PageCursor(4L, "elev-4", 5), afterCursor.nextCursor)
+        assertEquals(6, afterCursor.totalItems)
+        assertEquals(listOf("elev-4", "elev-5"), afterSince.items.map { it.systemId.identifikatorverdi })
+        assertNull(afterSince.nextCursor)
+        assertEquals(2, afterSince.totalItems)
+    }
+
+    @Test
+    fun `malformed cursor is rejected as a bad request`() {
+        val exception = assertThrows<ResponseStatusException> { PageCursor.decode("not a cursor") }
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.statusCode)
+    }
+
+    @Test
+    fun `filtered read on an indexed field follows put, remove and eviction`() {
+        val indexedCache =
+            FintCache<ElevResource>(shardCount = 2, indexedFields = listOf("systemId/identifikatorverdi"))
+        (0 until 6).forEach {
+            val elev = createElevResource("elev-$it")
+            indexedCache.put(elev.systemId.identifikatorverdi, elev, it.toLong())
+        }
+        val filter = "systemId/identifikatorverdi in ('ELEV-1', 'elev-4', 'elev-5')"
+
+        fun matches() = indexedCache.getList(0, 0, 0, filter).map { it.systemId.identifikatorverdi }
+
+        assertEquals(listOf("elev-1", "elev-4", "elev-5"), matches())
+
+        val firstPage = indexedCache.getPage(2, 0, 0, filter, null)
+        val lastPage = indexedCache.getPage(2, 0, 0, filter, firstPage.nextCursor)
+        assertEquals(3, firstPage.totalItems)
+        assertEquals(listOf("elev-5"), lastPage.items.map { it.systemId.identifikatorverdi })
+        assertEquals(3, lastPage.totalItems)
+        assertNull(lastPage.nextCursor)
+
+        indexedCache.put("elev-1", createElevResource("elev-1"), 10)
+        indexedCache.remove("elev-4", 10)
+        assertEquals(listOf("elev-5", "elev-1"), matches())
+
+        indexedCache.evictExpired(6)
+        assertEquals(listOf("elev-1"), matches())
+    }
+
+    @Test
+    fun `sharded cache resolves identifiers and evicts across shards`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 4)
+        val elever = (0 until 10).map { createElevResource("elev-$it") }
+        elever.forEachIndexed { index, elev ->
+            shardedCache.put(elev.systemId.identifikatorverdi, elev, index.toLong())
+        }
+
+        elever.forEach {
+            assertSame(it, shardedCache.get(it.systemId.identifikatorverdi))
+            assertSame(it, shardedCache.getByIdField("brukernavn", it.brukernavn.identifikatorverdi))
+        }
+        assertEquals(9, shardedCache.lastUpdated)
+
+        val evicted = shardedCache.evictExpired(5)
+
+        assertEquals(elever.take(5).map { it.systemId.identifikatorverdi }.toSet(), evicted.map { it.first }.toSet())
+        assertEquals(5, shardedCache.size)
+        assertNull(shardedCache.getByIdField("brukernavn", elever[0].brukernavn.identifikatorverdi))
+    }
+
+    @Test
+    fun `changes report removed and expired resources that are not back in the cache`() {
+        val shardedCache = FintCache<ElevResource>(shardCount = 2, createdAt = 0)
+        (0 until 4).forEach {
+            val elev = createElevResource("elev-$it")
+            shardedCache.put(elev.systemId.identifikatorverdi, elev, it.toLong())
+        }
+        shardedCache.remove("elev-3", 5)
+        shardedCache.remove("elev-1", 6)
+        shardedCache.put("elev-1", createElevResource("elev-1"), 7)
+        shardedCache.evictExpired(2)
+
+        val changes = shardedCache.getChanges(5)!!
+
+        assertEquals(7, changes.lastUpdated)
+        assertEquals(listOf("elev-1"), changes.updated.map { it.systemId.identifikatorverdi })
+        assertEquals(listOf("elev-3" to 5L, "elev-0" to 7L), changes.removed.map { it.resourceId to it.timestamp })
+        assertEquals("elev-0", changes.removed[1].identifiers["systemid"])
+        assertEquals(listOf("elev-0"), shardedCache.getChanges(6)!!.removed.map { it.resourceId })
+    }
+
+    @Test
+    fun `changes since before the oldest remembered removal are not answered`() {
+        val boundedCache = FintCache<ElevResource>(removalLogSize = 2, createdAt = 0)
+        (0 until 4).forEach {
+            val elev = createElevResource("elev-$it")
+            boundedCache.put(elev.systemId.identifikatorverdi, elev, it.toLong())
+        }
+        (0 until 3).forEach { boundedCache.remove("elev-$it", it + 10L) }
+
+        assertNull(boundedCache.getChanges(10))
+        assertEquals(listOf("elev-1", "elev-2"), boundedCache.getChanges(11)!!.removed.map { it.resourceId })
+    }
+
+    @Test
+    fun `changes since before the cache was created are not answered`() {
+        val restoredCache = FintCache<ElevResource>(createdAt = 12)
+        restoredCache.put("elev-0", createElevResource("elev-0"), 5)
+        restoredCache.remove("elev-0", 13)
+
+        assertNull(restoredCache.getChanges(11))
+        assertEquals(listOf("elev-0"), restoredCache.getChanges(12)!!.removed.map { it.resourceId })
+        assertNull(FintCache<ElevResource>().getChanges(0))
+    }
+
+    @Test
+    fun `cache version advances with every change and entry versions only with their own writes`() {
+        val elevA = createElevResource("A")
+        val elevB = createElevResource("B")
+        val initial = cache.currentVersion()
+        cache.put("A", elevA, 1)
+        cache.put("B", elevB, 2)
+        val versionA = cache.versionByIdField("systemid", "A")!!
+
+        cache.put("B", createElevResource("B"), 3)
+        assertEquals(versionA, cache.versionByIdField("systemid", "A"))
+        cache.put("A", createElevResource("A"), 4)
+        val rewrittenA = cache.versionByIdField("systemid", "A")!!
+        val beforeEviction = cache.currentVersion()
+        cache.evictExpired(4)
+
+        assertEquals(initial.epoch, beforeEviction.epoch)
+        assertTrue(initial.version < beforeEviction.version)
+        assertTrue(beforeEviction.version < cache.currentVersion().version)
+        assertTrue(versionA.version < rewrittenA.version)
+        assertNull(cache.versionByIdField("systemid", "B"))
+        assertNotEquals(cache.currentVersion().epoch, FintCache<ElevResource>().currentVersion().epoch)
+    }
+
+    @Test
+    fun `pre-serialized cache serializes each accepted put once and serves the stored json`() {
+        val serialized = mutableListOf<String>()
+        val serializingCache =
+            FintCache(
+                shardCount = 2,
+                storage =
+                    PreSerializedStorage<ElevResource> { elev ->
+                        elev.systemId.identifikatorverdi
+                            .also { serialized.add(it) }
+                            .toByteArray()
+                    },
+            )
+        val elever = (0 until 4).map { createElevResource("elev-$it") }
+        elever.forEachIndexed { index, elev ->
+            serializingCache.put(elev.systemId.identifikatorverdi, elev, index.toLong())
+        }
+
+        assertTrue(serializingCache.storesSerializedJson)
+        assertEquals(listOf("elev-1", "elev-2"), serializingCache.getSerializedList(2, 1, 0, null).map { String(it) })
+        assertEquals(
+            "elev-3",
+            serializingCache
+                .getSerializedByIdField(
+                    "brukernavn",
+                    elever[3].brukernavn.identifikatorverdi,
+                )?.let { String(it) },
+        )
+        assertEquals(listOf("elev-0", "elev-1", "elev-2", "elev-3"), serialized)
+    }
+
+    @Test
+    fun `object cache does not store serialized json`() {
+        val elev = createElevResource("A")
+        cache.put(elev.systemId.identifikatorverdi, elev, 0)
+
+        assertFalse(cache.storesSerializedJson)
+        assertNull(cache.getSerializedByIdField("brukernavn", elev.brukernavn.identifikatorverdi))
+        assertThrows<IllegalStateException> { cache.getSerializedList(0, 0, 0, null) }
+    }
+
+    @Test
+    fun `filtered stream holds no more resources than it tests at a time`() {
+        val storage = DecodingEveryReadStorage()
+        val decodingCache = FintCache(storage = storage)
+        repeat(5_000) { decodingCache.put("elev-$it", createElevResource("elev-$it"), it.toLong()) }
+
+        val matched = decodingCache.stream(0, "systemId/identifikatorverdi eq 'none'").count()
+
+        assertEquals(0, matched)
+        assertTrue(storage.maxLive < 500, "Up to ${storage.maxLive} decoded resources were held at once")
+    }
+
+    @Test
+    fun `filtered export decodes every entry once`() {
+        val storage = DecodingEveryReadStorage()
+        val decodingCache = FintCache(storage = storage)
+        repeat(100) { decodingCache.put("elev-$it", createElevResource("elev-$it"), it.toLong()) }
+
+        val exported = decodingCache.stream(0, "systemId/identifikatorverdi ne 'none'").count()
+
+        assertEquals(100, exported)
+        assertEquals(100, storage.decodes)
+    }
+
+    /**
+     * Hands out a new resource on every read, and watches how many of those are still reachable.
+     */
+    private inner class DecodingEveryReadStorage : EntryStorage<ElevResource> {
+        private val decoded = mutableListOf<WeakReference<ElevResource>>()
+        var maxLive = 0
+        var decodes = 0
+
+        override fun store(resource: ElevResource): StoredResource<ElevResource> {
+            val id = resource.systemId.identifikatorverdi
+            return object : StoredResource<ElevResource> {
+                override val resource: ElevResource
+                    get() = createElevResource(id).also(::track)
+                override val json: ByteArray?
+                    get() = null
+            }
+        }
+
+        private fun track(resource: ElevResource) {
+            decodes++
+            decoded.add(WeakReference(resource))
+            if (decoded.size % 1_000 == 0) {
+                System.gc()
+                decoded.removeIf { it.get() == null }
+                maxLive = max(maxLive, decoded.size)
+            }
+        }
+    }
+
     private fun createElevResource(id: String): ElevResource {
         val elevResource = ElevResource()
         elevResource.systemId =
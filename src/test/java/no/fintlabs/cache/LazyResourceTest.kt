@@ -0,0 +1,121 @@
+package no.fintlabs.cache
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
+import no.novari.fint.model.resource.utdanning.elev.ElevResource
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class LazyResourceTest {
+    private val objectMapper = ObjectMapper()
+    private val codec = ResourceCodec(objectMapper, ElevResource::class.java)
+    private val prepared = AtomicInteger()
+    private val reader =
+        LazyResourceReader(codec, objectMapper.factory, setOf("systemid", "brukernavn", "feidenavn")) {
+            prepared.incrementAndGet()
+        }
+
+    @Test
+    fun `identifiers are read without decoding the resource`() {
+        val lazy = reader.read(json(createElevResource("A", brukernavn = "a.b")))
+
+        assertEquals(mapOf("systemId" to "A", "brukernavn" to "a.b"), lazy.identifiers)
+        assertFalse(lazy.isMaterialized)
+        assertEquals(0, prepared.get())
+    }
+
+    @Test
+    fun `resource is decoded and prepared once on first read`() {
+        val lazy = reader.read(json(createElevResource("A")))
+
+        val first = lazy.resource
+        val second = lazy.resource
+
+        assertSame(first, second)
+        assertEquals("A", first.systemId.identifikatorverdi)
+        assertTrue(lazy.isMaterialized)
+        assertEquals(1, prepared.get())
+    }
+
+    @Test
+    fun `lazy entries are found by their identifiers and decoded on read`() {
+        val cache = FintCache<ElevResource>()
+        val lazy = reader.read(json(createElevResource("A", brukernavn = "a.b")))
+
+        assertTrue(cache.putLazy("A", lazy, 1))
+        assertFalse(lazy.isMaterialized)
+
+        assertSame(lazy.resource, cache.getByIdField("brukernavn", "a.b"))
+        assertSame(cache.get("A"), cache.getByIdField("systemid", "A"))
+        assertEquals(1, prepared.get())
+    }
+
+    @Test
+    fun `lazy entries are accepted and rejected by timestamp like any other write`() {
+        val cache = FintCache<ElevResource>()
+        val newer = createElevResource("A")
+
+        cache.put("A", newer, 5)
+
+        assertFalse(cache.putLazy("A", reader.read(json(createElevResource("A"))), 4))
+        assertSame(newer, cache.get("A"))
+        assertEquals(setOf("A"), cache.putAll(listOf(CachePut("A", reader.read(json(newer)), 6))))
+        assertEquals(1, cache.size)
+    }
+
+    @Test
+    fun `caches that need decoded resources on write do not take lazy entries`() {
+        val indexed = FintCache<ElevResource>(indexedFields = listOf("elevnummer/identifikatorverdi"))
+        val compressed = FintCache(storage = CompressedStorage(codec, hotTierSize = 10))
+
+        assertFalse(indexed.supportsLazyEntries)
+        assertFalse(compressed.supportsLazyEntries)
+        assertThrows<IllegalStateException> { indexed.putLazy("A", reader.read(json(createElevResource("A"))), 1) }
+    }
+
+    @Test
+    fun `lazy entries that don't fit the resource class are dropped on the first page read`() {
+        val cache = FintCache<ElevResource>(createdAt = 0)
+        cache.putLazy("A", reader.read(json(createElevResource("A"))), 1)
+        cache.putLazy("B", reader.read("""{"systemId":{"identifikatorverdi":"B"},"brukernavn":[1]}""".toByteArray()), 2)
+        cache.putLazy("C", reader.read(json(createElevResource("C"))), 3)
+
+        val page = cache.getPage(10, 0, 0, null, null)
+
+        assertEquals(listOf("A", "C"), page.items.map { it.systemId.identifikatorverdi })
+        assertEquals(2, cache.size)
+        assertNull(cache.getByIdField("systemid", "B"))
+        assertEquals(listOf("A", "C"), cache.getList(0, 0, 0, null).map { it.systemId.identifikatorverdi })
+        assertEquals(listOf("B"), cache.getChanges(0)!!.removed.map { it.resourceId })
+    }
+
+    @Test
+    fun `lazy entry that doesn't fit the resource class is not found by id`() {
+        val cache = FintCache<ElevResource>()
+        cache.putLazy(
+            "A",
+            reader.read("""{"systemId":{"identifikatorverdi":"A"},"brukernavn":"a.b"}""".toByteArray()),
+            1,
+        )
+
+        assertNull(cache.get("A"))
+        assertEquals(0, cache.size)
+        assertThrows<UndecodableResourceException> { reader.materialize("[".toByteArray()) }
+    }
+
+    private fun json(elev: ElevResource) = codec.serialize(elev)
+
+    private fun createElevResource(
+        id: String,
+        brukernavn: String? = null,
+    ) = ElevResource().apply {
+        systemId = Identifikator().apply { identifikatorverdi = id }
+        if (brukernavn != null) this.brukernavn = Identifikator().apply { identifikatorverdi = brukernavn }
+    }
+}
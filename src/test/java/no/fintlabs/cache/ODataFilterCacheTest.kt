@@ -0,0 +1,30 @@
+package no.fintlabs.cache
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.springframework.http.HttpStatus
+import org.springframework.web.server.ResponseStatusException
+import java.util.stream.Stream
+import kotlin.test.assertEquals
+
+class ODataFilterCacheTest {
+    private val filters = ODataFilterCache()
+
+    @Test
+    fun `repeated filter is parsed once`() {
+        repeat(4) { filters.apply(Stream.empty<Any>(), "navn eq 'Ola'").toList() }
+
+        assertEquals(1, filters.compileCount)
+        assertEquals(0.75, filters.hitRatio)
+    }
+
+    @Test
+    fun `invalid filter is rejected from the cache without parsing it again`() {
+        repeat(2) {
+            val exception = assertThrows<ResponseStatusException> { filters.apply(Stream.empty<Any>(), "navn eq ((") }
+            assertEquals(HttpStatus.BAD_REQUEST, exception.statusCode)
+        }
+
+        assertEquals(1, filters.compileCount)
+    }
+}
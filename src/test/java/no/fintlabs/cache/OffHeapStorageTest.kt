@@ -0,0 +1,55 @@
+package no.fintlabs.cache
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
+import no.novari.fint.model.resource.utdanning.elev.ElevResource
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+
+class OffHeapStorageTest {
+    private val objectMapper = ObjectMapper()
+    private val codec = ResourceCodec(objectMapper, ElevResource::class.java)
+
+    @Test
+    fun `stored entries are held off heap and restore the serialized json`() {
+        val storage = OffHeapStorage(codec, hotTierSize = 10, budgetBytes = 1024 * 1024)
+        val elev = createElevResource("A")
+
+        val stored = storage.store(elev)
+        stored.release()
+
+        assertEquals(objectMapper.readTree(codec.serialize(elev)), objectMapper.readTree(stored.json))
+        assertEquals("A", stored.resource.systemId.identifikatorverdi)
+        assertEquals(0, storage.offHeapBytes)
+    }
+
+    @Test
+    fun `off heap memory is accounted for until the entry is released`() {
+        val storage = OffHeapStorage(codec, hotTierSize = 10, budgetBytes = 1024 * 1024)
+        val elev = createElevResource("A")
+
+        val stored = storage.store(elev)
+
+        assertEquals(codec.serialize(elev).size.toLong(), storage.offHeapBytes)
+        stored.release()
+        assertEquals(0, storage.offHeapBytes)
+    }
+
+    @Test
+    fun `entries beyond the budget are kept on heap`() {
+        val storage = OffHeapStorage(codec, hotTierSize = 10, budgetBytes = 0)
+        val elev = createElevResource("A")
+
+        val stored = storage.store(elev)
+        stored.release()
+
+        assertEquals(0, storage.offHeapBytes)
+        assertEquals("A", stored.resource.systemId.identifikatorverdi)
+        assertEquals(objectMapper.readTree(codec.serialize(elev)), objectMapper.readTree(stored.json))
+    }
+
+    private fun createElevResource(id: String): ElevResource =
+        ElevResource().apply {
+            systemId = Identifikator().apply { identifikatorverdi = id }
+        }
+}
@@ -0,0 +1,106 @@
+package no.fintlabs.cache
+
+import org.junit.jupiter.api.Test
+import java.util.TreeMap
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TimestampIndexTest {
+    private data class Element(
+        override val timestamp: Long,
+        override val resourceId: String,
+    ) : TimestampIndex.Element
+
+    private val order = compareBy<Element>({ it.timestamp }, { it.resourceId })
+
+    @Test
+    fun `empty index has no elements`() {
+        val index = TimestampIndex.empty<Element>()
+
+        assertTrue(index.isEmpty())
+        assertEquals(emptyList(), index.toList())
+        assertEquals(0, index.countFrom(0, "", inclusive = true))
+    }
+
+    @Test
+    fun `elements are iterated in timestamp and resource id order`() {
+        val elements = listOf(Element(3, "a"), Element(1, "b"), Element(1, "a"), Element(2, "c"))
+
+        val index = elements.fold(TimestampIndex.empty<Element>()) { acc, element -> acc.plus(element) }
+
+        assertEquals(elements.sortedWith(order), index.toList())
+    }
+
+    @Test
+    fun `plus replaces an element with the same key`() {
+        val replacement = Element(1, "a")
+        val index = TimestampIndex.empty<Element>().plus(Element(1, "a")).plus(replacement)
+
+        assertEquals(1, index.size)
+        assertSame(replacement, index.single())
+    }
+
+    @Test
+    fun `previous versions are not affected by updates`() {
+        val first =
+            (0 until 500).fold(
+                TimestampIndex.empty<Element>(),
+            ) { acc, i -> acc.plus(Element(i.toLong(), "id-$i")) }
+
+        val second = first.minus(10, "id-10").plus(Element(1000, "new")).minusBefore(100)
+
+        assertEquals(500, first.size)
+        assertEquals((0 until 500).map { Element(it.toLong(), "id-$it") }, first.toList())
+        assertEquals(401, second.size)
+    }
+
+    @Test
+    fun `iteration, counting and removal match a sorted map`() {
+        val random = Random(42)
+        val expected = TreeMap<Element, Element>(order)
+        var index = TimestampIndex.empty<Element>()
+
+        repeat(20_000) {
+            val element = Element(random.nextLong(0, 2_000), "id-${random.nextInt(0, 5_000)}")
+            if (random.nextInt(4) == 0) {
+                expected.remove(element)
+                index = index.minus(element.timestamp, element.resourceId)
+            } else {
+                expected[element] = element
+                index = index.plus(element)
+            }
+        }
+
+        assertEquals(expected.size, index.size)
+        assertEquals(expected.keys.toList(), index.toList())
+
+        val from = Element(1_000, "id-2500")
+        assertEquals(
+            expected.tailMap(from, true).keys.toList(),
+            index.iteratorFrom(1_000, "id-2500", inclusive = true).asSequence().toList(),
+        )
+        assertEquals(
+            expected.tailMap(from, false).keys.toList(),
+            index.iteratorFrom(1_000, "id-2500", inclusive = false).asSequence().toList(),
+        )
+        assertEquals(expected.tailMap(from, true).size, index.countFrom(1_000, "id-2500", inclusive = true))
+
+        val bound = Element(700, "")
+        assertEquals(expected.headMap(bound).keys.toList(), index.headBefore(700))
+        assertEquals(expected.tailMap(bound).keys.toList(), index.minusBefore(700).toList())
+        assertEquals(expected.tailMap(bound).size, index.minusBefore(700).size)
+    }
+
+    @Test
+    fun `removing every element leaves an empty index`() {
+        val elements = (0 until 1_000).map { Element((it % 37).toLong(), "id-$it") }
+        var index = elements.fold(TimestampIndex.empty<Element>()) { acc, element -> acc.plus(element) }
+
+        elements.shuffled(Random(7)).forEach { index = index.minus(it.timestamp, it.resourceId) }
+
+        assertTrue(index.isEmpty())
+        assertTrue(elements.fold(index) { acc, element -> acc.plus(element) }.minusBefore(Long.MAX_VALUE).isEmpty())
+    }
+}
@@ -1,5 +1,6 @@
 package no.fintlabs.consumer.filter;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import no.fintlabs.resource.server.config.OpaProperties;
 import org.junit.jupiter.api.Test;
 import org.springframework.http.codec.ServerCodecConfigurer;
@@ -30,7 +31,8 @@ class OpaFieldAdviceTest {
         OpaFieldAdvice advice = new OpaFieldAdvice(
             ServerCodecConfigurer.create(),
             mock(RequestedContentTypeResolver.class),
-            mock(OpaProperties.class)
+            mock(OpaProperties.class),
+            new ObjectMapper()
         );
 
         Method m = OpaFieldAdvice.class
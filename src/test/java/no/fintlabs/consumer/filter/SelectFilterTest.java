@@ -0,0 +1,69 @@
+package no.fintlabs.consumer.filter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator;
+import no.novari.fint.model.resource.Link;
+import no.novari.fint.model.resource.utdanning.elev.ElevResource;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.MappingJacksonValue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SelectFilterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .addMixIn(ElevResource.class, no.fintlabs.consumer.filter.interfaces.OpaFilter.class);
+
+    @Test
+    void parsesSelectedFieldsCaseInsensitively() {
+        assertEquals(Set.of("systemid", "brukernavn"), SelectFilter.parse(" systemId,,Brukernavn "));
+        assertNull(SelectFilter.parse(null));
+        assertNull(SelectFilter.parse(" "));
+    }
+
+    @Test
+    void writesOnlySelectedPropertiesOfResources() throws Exception {
+        MappingJacksonValue projected = SelectFilter.project(createElevResource(), Set.of("systemid"));
+
+        JsonNode json = objectMapper.readTree(
+                objectMapper.writer(projected.getFilters()).writeValueAsBytes(projected.getValue()));
+
+        assertEquals(List.of("systemId"), iterableToList(json.fieldNames()));
+        assertEquals("123", json.get("systemId").get("identifikatorverdi").asText());
+    }
+
+    @Test
+    void writesLinksOnlyWhenSelected() throws Exception {
+        MappingJacksonValue projected = SelectFilter.project(createElevResource(), Set.of("_links"));
+
+        JsonNode json = objectMapper.readTree(
+                objectMapper.writer(projected.getFilters()).writeValueAsBytes(projected.getValue()));
+
+        assertEquals(List.of("_links"), iterableToList(json.fieldNames()));
+    }
+
+    private ElevResource createElevResource() {
+        ElevResource elev = new ElevResource();
+        Identifikator systemId = new Identifikator();
+        systemId.setIdentifikatorverdi("123");
+        elev.setSystemId(systemId);
+        Identifikator brukernavn = new Identifikator();
+        brukernavn.setIdentifikatorverdi("ola");
+        elev.setBrukernavn(brukernavn);
+        elev.addSelf(Link.with("https://api.felleskomponent.no/utdanning/elev/elev/systemid/123"));
+        return elev;
+    }
+
+    private static List<String> iterableToList(Iterator<String> names) {
+        List<String> result = new ArrayList<>();
+        names.forEachRemaining(result::add);
+        return result;
+    }
+}
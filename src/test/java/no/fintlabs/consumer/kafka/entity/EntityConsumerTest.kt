@@ -4,6 +4,9 @@ import io.mockk.every
 import io.mockk.mockk
 import io.mockk.slot
 import io.mockk.verify
+import no.fintlabs.autorelation.kafka.AutoRelationHandover
+import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.CacheSnapshotService
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.config.KafkaConfiguration
 import no.fintlabs.consumer.config.OrgId
@@ -11,7 +14,6 @@ import no.fintlabs.consumer.kafka.KafkaConstants.LAST_MODIFIED
 import no.fintlabs.consumer.kafka.KafkaConstants.RESOURCE_NAME
 import no.fintlabs.consumer.resource.ResourceConverter
 import no.novari.kafka.consuming.ErrorHandlerFactory
-import no.novari.kafka.consuming.ListenerConfiguration
 import no.novari.kafka.consuming.ParameterizedListenerContainerFactory
 import no.novari.kafka.consuming.ParameterizedListenerContainerFactoryService
 import no.novari.kafka.topic.name.EntityTopicNamePatternParameters
@@ -31,18 +33,27 @@ import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
 import org.springframework.kafka.core.ConsumerFactory
 import org.springframework.kafka.listener.ConcurrentMessageListenerContainer
-import org.springframework.kafka.listener.ConsumerSeekAware
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener
 import org.springframework.kafka.listener.ContainerProperties
 import java.util.Optional
 import java.util.function.Consumer
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertIs
+import kotlin.test.assertNull
+import kotlin.test.assertSame
 import kotlin.test.assertTrue
+import org.apache.kafka.clients.consumer.Consumer as KafkaConsumer
 
 class EntityConsumerTest {
     private lateinit var entityProcessingService: EntityProcessingService
     private lateinit var consumerConfig: ConsumerConfiguration
     private lateinit var resourceConverter: ResourceConverter
     private lateinit var metamodelService: MetamodelService
+    private lateinit var cacheSnapshotService: CacheSnapshotService
+    private lateinit var keyOrderedEntityProcessor: KeyOrderedEntityProcessor
+    private lateinit var autoRelationHandover: AutoRelationHandover
+    private lateinit var cacheService: CacheService
     private lateinit var factoryService: ParameterizedListenerContainerFactoryService
     private lateinit var errorHandlerFactory: ErrorHandlerFactory
     private lateinit var factory: ParameterizedListenerContainerFactory<Any>
@@ -55,6 +66,10 @@ class EntityConsumerTest {
         consumerConfig = mockk()
         resourceConverter = mockk(relaxed = true)
         metamodelService = mockk()
+        cacheSnapshotService = mockk(relaxed = true)
+        keyOrderedEntityProcessor = mockk(relaxed = true)
+        autoRelationHandover = mockk()
+        cacheService = mockk()
         factoryService = mockk()
         errorHandlerFactory = mockk(relaxed = true)
         factory = mockk()
@@ -67,6 +82,7 @@ class EntityConsumerTest {
         every { consumerConfig.orgId } returns OrgId.from("foo.bar")
         every { consumerConfig.domain } returns "utdanning"
         every { consumerConfig.packageName } returns "vurdering"
+        every { keyOrderedEntityProcessor.enabled } returns false
 
         every {
             factoryService.createRecordListenerContainerFactory(
@@ -79,7 +95,19 @@ class EntityConsumerTest {
         } returns factory
         every { factory.createContainer(any<TopicNamePatternParameters>()) } returns container
 
-        entityConsumer = EntityConsumer(entityProcessingService, consumerConfig, resourceConverter, metamodelService)
+        entityConsumer =
+            EntityConsumer(
+                entityProcessingService,
+                consumerConfig,
+                resourceConverter,
+                metamodelService,
+                cacheSnapshotService,
+                keyOrderedEntityProcessor,
+                mockk(),
+                mockk(),
+                autoRelationHandover,
+                cacheService,
+            )
     }
 
     @Test
@@ -148,6 +176,12 @@ class EntityConsumerTest {
         val createdContainer = entityConsumer.resourceEntityConsumerFactory(factoryService, errorHandlerFactory)
 
         assertEquals(222L, createdContainer.containerProperties.idleBetweenPolls)
+        assertEquals(
+            EntityValueDeserializer::class.java,
+            createdContainer.containerProperties.kafkaConsumerProperties.get(
+                ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+            ),
+        )
         assertEquals(
             "12345",
             createdContainer.containerProperties.kafkaConsumerProperties.getProperty(
@@ -224,36 +258,164 @@ class EntityConsumerTest {
     }
 
     @Test
-    fun `listener configuration seeks to beginning on partition assignment`() {
-        val config = captureListenerConfig()
-        val callback = mockk<ConsumerSeekAware.ConsumerSeekCallback>(relaxed = true)
+    fun `partitions nothing has been applied from are replayed from the beginning on assignment`() {
+        every { consumerConfig.kafka } returns KafkaConfiguration()
         val partition = TopicPartition("test-topic", 0)
+        every { cacheSnapshotService.resumeOffset(partition) } returns null
+
+        val listener = rebalanceListenerOf(createCustomizedContainer())
+        val kafkaConsumer = mockk<KafkaConsumer<*, *>>(relaxed = true)
+        every { kafkaConsumer.beginningOffsets(any()) } returns mapOf(partition to 0L)
+
+        listener.onPartitionsAssigned(kafkaConsumer, listOf(partition))
+
+        verify { kafkaConsumer.seekToBeginning(listOf(partition)) }
+        verify(exactly = 0) { kafkaConsumer.seek(any(), any<Long>()) }
+    }
+
+    @Test
+    fun `processed records are reported with their offset`() {
+        every { consumerConfig.kafka } returns KafkaConfiguration(consumeLegacyResourceTopics = false)
+
+        entityConsumer.consumeRecord(
+            createConsumerRecord(topic = "utdanning-vurdering", resourceNameHeader = "elevfravar"),
+        )
+
+        verify { cacheSnapshotService.recordProcessed(TopicPartition("utdanning-vurdering", 0), 0L) }
+    }
 
-        assertTrue(config.onPartitionsAssigned.isPresent)
-        config.onPartitionsAssigned.get().accept(mapOf(partition to 0L), callback)
+    @Test
+    fun `records are handed to the key ordered processor when it is enabled`() {
+        every { consumerConfig.kafka } returns KafkaConfiguration(consumeLegacyResourceTopics = false)
+        every { keyOrderedEntityProcessor.enabled } returns true
+
+        entityConsumer.consumeRecord(
+            createConsumerRecord(topic = "utdanning-vurdering", resourceNameHeader = "elevfravar", offset = 3),
+        )
 
-        verify { callback.seekToBeginning(setOf(partition)) }
+        verify { keyOrderedEntityProcessor.submit(TopicPartition("utdanning-vurdering", 0), 3L, any()) }
+        verify(exactly = 0) { entityProcessingService.processEntityConsumerRecord(any()) }
+        verify(exactly = 0) { cacheSnapshotService.recordProcessed(any(), any()) }
     }
 
-    private fun captureListenerConfig(): ListenerConfiguration {
+    @Test
+    fun `records of partitions handed over by autorelation publish their relations`() {
+        every { consumerConfig.kafka } returns KafkaConfiguration(sharedEntityRead = true)
+        every { autoRelationHandover.claim(TopicPartition("utdanning-vurdering", 0), 4L) } returns true
+        val captured = slot<EntityConsumerRecord>()
+        every { entityProcessingService.processEntityConsumerRecord(capture(captured)) } returns Unit
+
+        entityConsumer.consumeRecord(
+            createConsumerRecord(topic = "utdanning-vurdering", resourceNameHeader = "elevfravar", offset = 4),
+        )
+
+        assertTrue(captured.captured.publishRelations)
+    }
+
+    @Test
+    fun `records read as raw bytes are handed on undecoded`() {
         every { consumerConfig.kafka } returns KafkaConfiguration()
-        val slot = slot<ListenerConfiguration>()
+        val captured = slot<EntityConsumerRecord>()
+        every { entityProcessingService.processEntityConsumerRecord(capture(captured)) } returns Unit
+        val json = """{"systemId":{"identifikatorverdi":"1"}}""".toByteArray()
+
+        entityConsumer.consumeRecord(
+            createConsumerRecord(topic = "utdanning-vurdering", resourceNameHeader = "elevfravar", value = json),
+        )
+
+        assertSame(json, captured.captured.rawValue)
+        assertNull(captured.captured.resource)
+        assertFalse(captured.captured.isRemoval)
+        verify(exactly = 0) { resourceConverter.convert(any(), any()) }
+    }
+
+    @Test
+    fun `batch listener mode creates a batch listener container factory`() {
+        every { consumerConfig.kafka } returns KafkaConfiguration(entityBatchListener = true)
         every {
-            factoryService.createRecordListenerContainerFactory(
+            factoryService.createBatchListenerContainerFactory(
                 any<Class<Any>>(),
-                any<Consumer<ConsumerRecord<String, Any>>>(),
-                capture(slot),
+                any<Consumer<List<ConsumerRecord<String, Any>>>>(),
+                any(),
                 any(),
                 any(),
             )
         } returns factory
+
         entityConsumer.resourceEntityConsumerFactory(factoryService, errorHandlerFactory)
-        return slot.captured
+
+        verify(exactly = 0) {
+            factoryService.createRecordListenerContainerFactory(
+                any<Class<Any>>(),
+                any<Consumer<ConsumerRecord<String, Any>>>(),
+                any(),
+                any(),
+                any(),
+            )
+        }
     }
 
+    @Test
+    fun `consumed batch skips unreadable records and reports every offset`() {
+        every { consumerConfig.kafka } returns KafkaConfiguration(consumeLegacyResourceTopics = false)
+        val captured = slot<List<EntityConsumerRecord>>()
+        every { entityProcessingService.processEntityConsumerRecords(capture(captured)) } returns Unit
+
+        entityConsumer.consumeBatch(
+            listOf(
+                createConsumerRecord(topic = "utdanning-vurdering", resourceNameHeader = "elevfravar", offset = 7),
+                createConsumerRecord(topic = "utdanning-vurdering", resourceNameHeader = null, offset = 8),
+            ),
+        )
+
+        assertEquals(listOf("elevfravar"), captured.captured.map { it.resourceName })
+        verify { cacheSnapshotService.recordProcessed(TopicPartition("utdanning-vurdering", 0), 7L) }
+        verify { cacheSnapshotService.recordProcessed(TopicPartition("utdanning-vurdering", 0), 8L) }
+    }
+
+    @Test
+    fun `restored cache snapshot resumes partitions from the processed offsets`() {
+        val resumed = TopicPartition("test-topic", 0)
+        val unknown = TopicPartition("test-topic", 1)
+        every { consumerConfig.kafka } returns KafkaConfiguration()
+        every { cacheSnapshotService.resumeOffset(resumed) } returns 42L
+        every { cacheSnapshotService.resumeOffset(unknown) } returns null
+
+        val listener = rebalanceListenerOf(createCustomizedContainer())
+        val kafkaConsumer = mockk<KafkaConsumer<*, *>>(relaxed = true)
+        every { kafkaConsumer.beginningOffsets(any()) } returns mapOf(resumed to 0L, unknown to 0L)
+
+        listener.onPartitionsAssigned(kafkaConsumer, listOf(resumed, unknown))
+
+        verify { kafkaConsumer.seek(resumed, 42L) }
+        verify { kafkaConsumer.seekToBeginning(listOf(unknown)) }
+    }
+
+    private fun createCustomizedContainer(): ConcurrentMessageListenerContainer<String, in Any> {
+        val customizer = slot<Consumer<ConcurrentMessageListenerContainer<String, Any>>>()
+        every {
+            factoryService.createRecordListenerContainerFactory(
+                any<Class<Any>>(),
+                any<Consumer<ConsumerRecord<String, Any>>>(),
+                any(),
+                any(),
+                capture(customizer),
+            )
+        } answers {
+            customizer.captured.accept(container)
+            factory
+        }
+        return entityConsumer.resourceEntityConsumerFactory(factoryService, errorHandlerFactory)
+    }
+
+    private fun rebalanceListenerOf(container: ConcurrentMessageListenerContainer<String, in Any>) =
+        assertIs<ConsumerAwareRebalanceListener>(container.containerProperties.consumerRebalanceListener)
+
     private fun createConsumerRecord(
         topic: String,
         resourceNameHeader: String?,
+        offset: Long = 0,
+        value: Any? = null,
     ): ConsumerRecord<String, Any?> {
         val headers = RecordHeaders()
         headers.add(
@@ -271,13 +433,13 @@ class EntityConsumerTest {
         return ConsumerRecord(
             topic,
             0,
-            0,
+            offset,
             0L,
             TimestampType.CREATE_TIME,
             NULL_SIZE,
             NULL_SIZE,
             "key",
-            null,
+            value,
             headers,
             Optional.empty<Int>(),
         )
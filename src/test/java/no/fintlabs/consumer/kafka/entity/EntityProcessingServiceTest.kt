@@ -3,18 +3,24 @@ package no.fintlabs.consumer.kafka.entity
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.slot
 import io.mockk.verify
+import io.mockk.verifyOrder
 import no.fintlabs.autorelation.AutoRelationService
 import no.fintlabs.autorelation.MetricService
 import no.fintlabs.autorelation.RelationEventService
+import no.fintlabs.cache.CachePut
 import no.fintlabs.cache.CacheService
 import no.fintlabs.cache.FintCache
+import no.fintlabs.cache.LazyResource
+import no.fintlabs.cache.LazyResourceReader
 import no.fintlabs.consumer.config.AutorelationConfig
 import no.fintlabs.consumer.config.ConsumerConfiguration
 import no.fintlabs.consumer.config.OrgId
 import no.fintlabs.consumer.kafka.KafkaConstants
 import no.fintlabs.consumer.kafka.sync.SyncTrackerService
 import no.fintlabs.consumer.links.LinkService
+import no.fintlabs.consumer.resource.ResourceChangeService
 import no.fintlabs.consumer.resource.ResourceLockService
 import no.novari.fint.model.resource.FintResource
 import org.apache.kafka.clients.consumer.ConsumerRecord
@@ -22,6 +28,7 @@ import org.apache.kafka.common.header.internals.RecordHeaders
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import java.nio.ByteBuffer
+import kotlin.test.assertEquals
 
 class EntityProcessingServiceTest {
     private val linkService = mockk<LinkService>(relaxed = true)
@@ -33,12 +40,17 @@ class EntityProcessingServiceTest {
     private val cache = mockk<FintCache<FintResource>>(relaxed = true)
     private val meterRegistry = SimpleMeterRegistry()
     private val metricService = mockk<MetricService>(relaxed = true)
+    private val resourceChangeService = mockk<ResourceChangeService>(relaxed = true)
     private var resourceLockService: ResourceLockService =
         mockk {
             every { withLock(any(), any(), any()) } answers {
                 val block = thirdArg<() -> Unit>()
                 block()
             }
+            every { withLocks(any(), any(), any()) } answers {
+                val block = thirdArg<() -> Unit>()
+                block()
+            }
         }
 
     private lateinit var service: EntityProcessingService
@@ -56,6 +68,7 @@ class EntityProcessingServiceTest {
                 meterRegistry,
                 resourceLockService,
                 metricService,
+                resourceChangeService,
             )
         every { cacheService.getCache(any()) } returns cache
         every { consumerConfiguration.orgId } returns OrgId.from("org-123")
@@ -117,6 +130,44 @@ class EntityProcessingServiceTest {
         verify(exactly = 0) { relationEventService.removeRelations(any(), any(), any()) }
     }
 
+    @Test
+    fun `delete does not read the removed resource when nobody needs it`() {
+        val record = recordWith(resource = null, syncType = null)
+        every { cache.remove(record.key, record.timestamp) } returns true
+
+        service.processEntityConsumerRecord(record)
+
+        verify(exactly = 0) { cache.get(any()) }
+        verify(exactly = 1) { cache.remove(record.key, record.timestamp) }
+        verify(exactly = 0) { resourceChangeService.publishRemoval(any(), any(), any(), any()) }
+    }
+
+    @Test
+    fun `accepted put and remove are published to change stream subscribers`() {
+        val resource = mockk<FintResource>()
+        val added = recordWith(resource = resource, syncType = null)
+        val deleted = recordWith(resource = null, syncType = null)
+        every { resourceChangeService.hasSubscribers(any()) } returns true
+        every { cache.put(any(), any(), any()) } returns true
+        every { cache.get(deleted.key) } returns resource
+        every { cache.remove(deleted.key, deleted.timestamp) } returns true
+
+        service.processEntityConsumerRecord(added)
+        service.processEntityConsumerRecord(deleted)
+
+        verify { resourceChangeService.publishUpdate(added.resourceName, resource, added.timestamp) }
+        verify { resourceChangeService.publishRemoval(deleted.resourceName, deleted.key, resource, deleted.timestamp) }
+    }
+
+    @Test
+    fun `rejected put is not published to change stream subscribers`() {
+        every { cache.put(any(), any(), any()) } returns false
+
+        service.processEntityConsumerRecord(recordWith(resource = mockk(), syncType = null))
+
+        verify(exactly = 0) { resourceChangeService.publishUpdate(any(), any(), any()) }
+    }
+
     @Test
     fun `non-null type triggers syncTrackerService`() {
         val record = recordWith(resource = mockk(), syncType = 0)
@@ -135,6 +186,21 @@ class EntityProcessingServiceTest {
         verify(exactly = 0) { syncTrackerService.processRecordMetadata(any()) }
     }
 
+    @Test
+    fun `relations of handed over records are published before their links are mapped`() {
+        val resource = mockk<FintResource>()
+        val record = EntityConsumerRecord("test-resource", resource, mockConsumerRecord(null, "test-key", 1000L), true)
+
+        service.processEntityConsumerRecord(record)
+        service.processEntityConsumerRecord(recordWith(resource = resource, syncType = null))
+
+        verifyOrder {
+            relationEventService.addRelations("test-resource", "test-key", resource)
+            linkService.mapLinks("test-resource", resource)
+        }
+        verify(exactly = 1) { relationEventService.addRelations(any(), any(), any()) }
+    }
+
     @Test
     fun `autorelation enabled calls mapLinks and reconcileLinks`() {
         every { consumerConfiguration.autorelation } returns AutorelationConfig(enabled = true)
@@ -173,22 +239,137 @@ class EntityProcessingServiceTest {
         verifyTimer("sync.processRecordMetadata")
     }
 
+    @Test
+    fun `batch puts the newest record of every key into the cache at once`() {
+        val older = mockk<FintResource>()
+        val newer = mockk<FintResource>()
+        val other = mockk<FintResource>()
+        val records =
+            listOf(
+                recordWith(resource = newer, syncType = 0, key = "a", timestamp = 2000L),
+                recordWith(resource = older, syncType = 0, key = "a", timestamp = 1000L),
+                recordWith(resource = other, syncType = 0, key = "b"),
+            )
+        val puts = slot<Collection<CachePut<FintResource>>>()
+        every { cache.putAll(capture(puts)) } returns setOf("a")
+
+        service.processEntityConsumerRecords(records)
+
+        assertEquals(listOf(newer, other), puts.captured.map { it.resource })
+        verify(exactly = 0) { cache.put(any(), any(), any()) }
+        verify(exactly = 1) { resourceChangeService.publishUpdate("test-resource", newer, 2000L) }
+        verify(exactly = 0) { resourceChangeService.publishUpdate(any(), other, any()) }
+        verify(exactly = 1) { syncTrackerService.processRecordMetadata(records) }
+    }
+
+    @Test
+    fun `failed batch is applied one record at a time`() {
+        val resource = mockk<FintResource>()
+        val records =
+            listOf(
+                recordWith(resource = resource, syncType = null, key = "a"),
+                recordWith(resource = resource, syncType = null, key = "b"),
+            )
+        every { cache.putAll(any()) } throws IllegalStateException("boom")
+
+        service.processEntityConsumerRecords(records)
+
+        verify(exactly = 1) { cache.put("a", resource, 1000L) }
+        verify(exactly = 1) { cache.put("b", resource, 1000L) }
+        verify(exactly = 0) { syncTrackerService.processRecordMetadata(any<List<EntityConsumerRecord>>()) }
+    }
+
+    @Test
+    fun `failed batch does not prepare its records again`() {
+        every { consumerConfiguration.autorelation } returns AutorelationConfig(enabled = true)
+        val resource = mockk<FintResource>()
+        val record = EntityConsumerRecord("test-resource", resource, mockConsumerRecord(null, "a", 1000L), true)
+        every { cache.putAll(any()) } throws IllegalStateException("boom")
+
+        service.processEntityConsumerRecords(listOf(record))
+
+        verify(exactly = 1) { cache.put("a", resource, 1000L) }
+        verify(exactly = 1) { relationEventService.addRelations("test-resource", "a", resource) }
+        verify(exactly = 1) { autoRelationService.reconcileLinks("test-resource", "a", resource) }
+        verify(exactly = 1) { linkService.mapLinks("test-resource", resource) }
+    }
+
+    @Test
+    fun `records of a batch that were written before it failed are not written again`() {
+        val resource = mockk<FintResource>()
+        every { cache.putAll(any()) } returns setOf("a")
+        every { resourceChangeService.publishUpdate(any(), any(), any()) } throws IllegalStateException("boom")
+
+        service.processEntityConsumerRecords(listOf(recordWith(resource = resource, syncType = null, key = "a")))
+
+        verify(exactly = 1) { cache.putAll(any()) }
+        verify(exactly = 0) { cache.put(any(), any(), any()) }
+    }
+
+    @Test
+    fun `raw record is put into the cache undecoded when the cache takes lazy entries`() {
+        val json = ByteArray(0)
+        val lazyResource = mockk<LazyResource<FintResource>>()
+        val reader = mockk<LazyResourceReader<FintResource>> { every { read(json) } returns lazyResource }
+        every { cacheService.lazyResourceReader("test-resource") } returns reader
+        every { cache.supportsLazyEntries } returns true
+        every { cache.putLazy(any(), any(), any()) } returns true
+
+        service.processEntityConsumerRecord(recordWith(resource = null, syncType = null, rawValue = json))
+
+        verify(exactly = 1) { cache.putLazy("test-key", lazyResource, 1000L) }
+        verify(exactly = 0) { cache.put(any(), any(), any()) }
+        verify(exactly = 0) { linkService.mapLinks(any(), any()) }
+        verify(exactly = 0) { resourceChangeService.publishUpdate(any(), any(), any()) }
+    }
+
+    @Test
+    fun `raw record is decoded right away when the cache does not take lazy entries`() {
+        val json = ByteArray(0)
+        val resource = mockk<FintResource>()
+        val reader = mockk<LazyResourceReader<FintResource>> { every { decode(json) } returns resource }
+        every { cacheService.lazyResourceReader("test-resource") } returns reader
+        every { cache.supportsLazyEntries } returns false
+        every { cache.put(any(), any(), any()) } returns true
+
+        service.processEntityConsumerRecord(recordWith(resource = null, syncType = null, rawValue = json))
+
+        verifyOrder {
+            linkService.mapLinks("test-resource", resource)
+            cache.put("test-key", resource, 1000L)
+        }
+        verify(exactly = 0) { cache.putLazy(any(), any(), any()) }
+        verify(exactly = 0) { cache.remove(any(), any()) }
+    }
+
     private fun recordWith(
         resource: FintResource?,
         syncType: Int?,
-    ): EntityConsumerRecord = EntityConsumerRecord("test-resource", resource, mockConsumerRecord(syncType))
-
-    private fun mockConsumerRecord(syncType: Int?) =
-        mockk<ConsumerRecord<String, Any?>> {
-            every { key() } returns "test-key"
-            every { headers() } returns
-                RecordHeaders().apply {
-                    add(KafkaConstants.LAST_MODIFIED, ByteBuffer.allocate(8).putLong(1000L).array())
-                    if (syncType != null) {
-                        add(KafkaConstants.SYNC_TYPE, byteArrayOf(syncType.toByte()))
-                    }
+        key: String = "test-key",
+        timestamp: Long = 1000L,
+        rawValue: ByteArray? = null,
+    ): EntityConsumerRecord =
+        EntityConsumerRecord(
+            "test-resource",
+            resource,
+            mockConsumerRecord(syncType, key, timestamp),
+            rawValue = rawValue,
+        )
+
+    private fun mockConsumerRecord(
+        syncType: Int?,
+        recordKey: String,
+        timestamp: Long,
+    ) = mockk<ConsumerRecord<String, Any?>> {
+        every { key() } returns recordKey
+        every { headers() } returns
+            RecordHeaders().apply {
+                add(KafkaConstants.LAST_MODIFIED, ByteBuffer.allocate(8).putLong(timestamp).array())
+                if (syncType != null) {
+                    add(KafkaConstants.SYNC_TYPE, byteArrayOf(syncType.toByte()))
                 }
-        }
+            }
+    }
 
     private fun verifyTimer(operation: String) {
         val timers = meterRegistry.find("core.consumer.processing").tag("operation", operation).timers()
@@ -0,0 +1,78 @@
+package no.fintlabs.consumer.kafka.entity
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.mockk.every
+import io.mockk.mockk
+import no.fintlabs.consumer.kafka.KafkaConstants.RESOURCE_NAME
+import no.fintlabs.consumer.resource.context.ResourceContext
+import no.fintlabs.consumer.resource.context.model.FintResourceInformation
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
+import no.novari.fint.model.resource.utdanning.elev.ElevResource
+import org.apache.kafka.common.header.internals.RecordHeader
+import org.apache.kafka.common.header.internals.RecordHeaders
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertIs
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class EntityValueDeserializerTest {
+    private val objectMapper = ObjectMapper()
+    private val resourceContext =
+        mockk<ResourceContext> {
+            every { getResource(any()) } returns null
+            every { getResource("elev") } returns
+                FintResourceInformation(
+                    "elev",
+                    ElevResource::class.java,
+                    emptySet(),
+                    false,
+                    emptySet(),
+                    emptySet(),
+                    emptySet(),
+                    emptyMap(),
+                )
+        }
+    private val deserializer = EntityValueDeserializer(objectMapper, resourceContext)
+    private val json =
+        objectMapper.writeValueAsBytes(
+            ElevResource().apply { systemId = Identifikator().apply { identifikatorverdi = "123" } },
+        )
+
+    @Test
+    fun `value is read into the resource class named by the header`() {
+        val value = deserializer.deserialize("utdanning-elev", headers("elev"), json)
+
+        assertEquals("123", assertIs<ElevResource>(value).systemId.identifikatorverdi)
+    }
+
+    @Test
+    fun `value without a known resource name is read untyped`() {
+        assertIs<Map<*, *>>(deserializer.deserialize("utdanning-elev", headers(null), json))
+        assertIs<Map<*, *>>(deserializer.deserialize("utdanning-elev", headers("unknown"), json))
+    }
+
+    @Test
+    fun `value that does not fit its resource class is read untyped`() {
+        val value = deserializer.deserialize("utdanning-elev", headers("elev"), """{"unknownField":1}""".toByteArray())
+
+        assertEquals(mapOf("unknownField" to 1), value)
+    }
+
+    @Test
+    fun `value of a lazily decoded resource is kept as raw bytes`() {
+        val lazyDeserializer = EntityValueDeserializer(objectMapper, resourceContext) { it == "elev" }
+
+        assertSame(json, lazyDeserializer.deserialize("utdanning-elev", headers("elev"), json))
+    }
+
+    @Test
+    fun `tombstone is read as null`() {
+        assertNull(deserializer.deserialize("utdanning-elev", headers("elev"), null as ByteArray?))
+    }
+
+    private fun headers(resourceName: String?) =
+        RecordHeaders().apply {
+            if (resourceName != null) add(RecordHeader(RESOURCE_NAME, resourceName.toByteArray()))
+        }
+}
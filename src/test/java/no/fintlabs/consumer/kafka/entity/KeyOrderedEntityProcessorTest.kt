@@ -0,0 +1,115 @@
+package no.fintlabs.consumer.kafka.entity
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import no.fintlabs.cache.CacheSnapshotService
+import no.fintlabs.consumer.config.ConsumerConfiguration
+import no.fintlabs.consumer.config.KafkaConfiguration
+import no.fintlabs.consumer.kafka.KafkaConstants
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.header.internals.RecordHeaders
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+
+class KeyOrderedEntityProcessorTest {
+    private val entityProcessingService = mockk<EntityProcessingService>()
+    private val cacheSnapshotService = mockk<CacheSnapshotService>(relaxed = true)
+    private val consumerConfig =
+        mockk<ConsumerConfiguration> {
+            every { kafka } returns KafkaConfiguration(entityProcessingConcurrency = 2)
+        }
+    private val processor = KeyOrderedEntityProcessor(entityProcessingService, cacheSnapshotService, consumerConfig)
+    private val partition = TopicPartition("utdanning-vurdering", 0)
+
+    @AfterEach
+    fun tearDown() = processor.shutdown()
+
+    @Test
+    fun `records of one key are applied in order while other keys go ahead`() {
+        val release = CountDownLatch(1)
+        val applied = Collections.synchronizedList(ArrayList<Long>())
+        every { entityProcessingService.processEntityConsumerRecord(any()) } answers {
+            val record = firstArg<EntityConsumerRecord>()
+            if (record.timestamp == 0L) release.await(5, TimeUnit.SECONDS)
+            applied.add(record.timestamp)
+        }
+
+        processor.submit(partition, 0, recordWith(key = "a", timestamp = 0))
+        processor.submit(partition, 1, recordWith(key = "b", timestamp = 1))
+        processor.submit(partition, 2, recordWith(key = "a", timestamp = 2))
+
+        verify(timeout = 5000) { entityProcessingService.processEntityConsumerRecord(match { it.timestamp == 1L }) }
+        assertFalse(2L in applied)
+        verify(exactly = 0) { cacheSnapshotService.recordProcessed(any(), any()) }
+
+        release.countDown()
+
+        verify(timeout = 5000) { cacheSnapshotService.recordProcessed(partition, 2L) }
+        assertEquals(listOf(0L, 2L), applied.filter { it != 1L })
+    }
+
+    @Test
+    fun `failed record holds back the offsets after it`() {
+        every { entityProcessingService.processEntityConsumerRecord(any()) } answers {
+            if (firstArg<EntityConsumerRecord>().timestamp == 6L) throw IllegalStateException("boom")
+        }
+
+        processor.submit(partition, 5, recordWith(key = "a", timestamp = 5))
+        processor.submit(partition, 6, recordWith(key = "a", timestamp = 6))
+        processor.submit(partition, 7, recordWith(key = "b", timestamp = 7))
+        processor.submit(partition, 8, recordWith(key = "a", timestamp = 8))
+
+        verify(timeout = 5000) { entityProcessingService.processEntityConsumerRecord(match { it.timestamp == 8L }) }
+        verify(timeout = 5000) { cacheSnapshotService.recordProcessed(partition, 5L) }
+        processor.shutdown()
+        verify(exactly = 0) { cacheSnapshotService.recordProcessed(partition, more(5L)) }
+    }
+
+    @Test
+    fun `records submitted again after a rebalance are not applied twice`() {
+        every { entityProcessingService.processEntityConsumerRecord(any()) } returns Unit
+
+        processor.submit(partition, 0, recordWith(key = "a", timestamp = 0))
+        processor.submit(partition, 1, recordWith(key = "a", timestamp = 1))
+        processor.submit(partition, 0, recordWith(key = "a", timestamp = 0))
+        processor.submit(partition, 2, recordWith(key = "a", timestamp = 2))
+        processor.shutdown()
+
+        verify(exactly = 3) { entityProcessingService.processEntityConsumerRecord(any()) }
+        verify { cacheSnapshotService.recordProcessed(partition, 2L) }
+    }
+
+    @Test
+    fun `records are applied on the consumer thread when batches are read`() {
+        val batchConfig =
+            mockk<ConsumerConfiguration> {
+                every { kafka } returns KafkaConfiguration(entityBatchListener = true, entityProcessingConcurrency = 4)
+            }
+
+        assertFalse(KeyOrderedEntityProcessor(entityProcessingService, cacheSnapshotService, batchConfig).enabled)
+    }
+
+    private fun recordWith(
+        key: String,
+        timestamp: Long,
+    ): EntityConsumerRecord = EntityConsumerRecord("elevfravar", null, mockConsumerRecord(key, timestamp))
+
+    private fun mockConsumerRecord(
+        recordKey: String,
+        timestamp: Long,
+    ) = mockk<ConsumerRecord<String, Any?>> {
+        every { key() } returns recordKey
+        every { headers() } returns
+            RecordHeaders().apply {
+                add(KafkaConstants.LAST_MODIFIED, ByteBuffer.allocate(8).putLong(timestamp).array())
+            }
+    }
+}
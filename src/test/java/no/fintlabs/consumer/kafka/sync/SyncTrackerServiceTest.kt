@@ -8,6 +8,7 @@ import io.mockk.verify
 import io.mockk.verifySequence
 import no.fintlabs.adapter.models.sync.SyncType
 import no.fintlabs.cache.CacheEvictionService
+import no.fintlabs.cache.CacheSnapshotService
 import no.fintlabs.consumer.config.CaffeineCacheProperties
 import no.fintlabs.consumer.kafka.KafkaConstants.LAST_MODIFIED
 import no.fintlabs.consumer.kafka.KafkaConstants.SYNC_CORRELATION_ID
@@ -18,6 +19,7 @@ import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
 import no.novari.fint.model.resource.utdanning.vurdering.ElevfravarResource
 import org.apache.kafka.clients.consumer.ConsumerRecord
 import org.apache.kafka.clients.consumer.ConsumerRecord.NULL_SIZE
+import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.header.internals.RecordHeader
 import org.apache.kafka.common.header.internals.RecordHeaders
 import org.apache.kafka.common.record.TimestampType
@@ -34,6 +36,7 @@ class SyncTrackerServiceTest {
     private lateinit var syncStatusProducer: SyncStatusProducer
     private lateinit var syncTracker: SyncTrackerService
     private lateinit var lastFullSync: LastCompletedFullSyncCache
+    private lateinit var cacheSnapshotService: CacheSnapshotService
     private val meterRegistry = SimpleMeterRegistry()
     private val cacheProperties: CaffeineCacheProperties = CaffeineCacheProperties()
     private val resourceName = "elevfravar"
@@ -43,6 +46,7 @@ class SyncTrackerServiceTest {
         evictionService = mockk(relaxed = true)
         syncStatusProducer = mockk(relaxed = true)
         lastFullSync = mockk(relaxed = true)
+        cacheSnapshotService = mockk(relaxed = true)
 
         syncTracker =
             SyncTrackerService(
@@ -51,9 +55,32 @@ class SyncTrackerServiceTest {
                 meterRegistry,
                 lastFullSync,
                 cacheProperties,
+                cacheSnapshotService,
             )
     }
 
+    @Test
+    fun `full-sync records are reported to the snapshots until the sync completes`() {
+        val correlationId = "test-corr-id"
+        val partition = TopicPartition("test-topic", 0)
+
+        syncTracker.processRecordMetadata(
+            createEntityConsumerRecord("a", corrId = correlationId, totalSize = 2, offset = 7),
+        )
+        syncTracker.processRecordMetadata(
+            createEntityConsumerRecord("b", corrId = correlationId, totalSize = 2, offset = 9),
+        )
+        syncTracker.processRecordMetadata(
+            createEntityConsumerRecord("c", type = SyncType.DELTA, totalSize = 1, offset = 10),
+        )
+
+        verifySequence {
+            cacheSnapshotService.fullSyncRecordProcessed(correlationId, partition, 7)
+            cacheSnapshotService.fullSyncRecordProcessed(correlationId, partition, 9)
+            cacheSnapshotService.fullSyncCompleted(correlationId, partition, 9)
+        }
+    }
+
     @Test
     fun `full-sync with one record and total size 1 shall trigger eviction and send sync-status`() {
         val correlationId = "test-corr-id"
@@ -369,6 +396,32 @@ class SyncTrackerServiceTest {
         }
     }
 
+    @Test
+    fun `batch of records completes the syncs it holds every record of`() {
+        val completed = "completed-corr-id"
+        val ongoing = "ongoing-corr-id"
+        val timestamp = 7_000L
+
+        syncTracker.processRecordMetadata(
+            listOf(
+                createEntityConsumerRecord("a", resourceName, timestamp, SyncType.FULL, completed, totalSize = 2),
+                createEntityConsumerRecord("b", "elev", timestamp, SyncType.FULL, ongoing, totalSize = 2),
+                createEntityConsumerRecord("c", resourceName, timestamp, SyncType.FULL, completed, totalSize = 2),
+            ),
+        )
+
+        verify(exactly = 1) { evictionService.evictExpired(resourceName, timestamp) }
+        verify(exactly = 0) { evictionService.evictExpired("elev", any()) }
+        verify(exactly = 1) {
+            syncStatusProducer.publish(
+                withArg {
+                    assertEquals(completed, it.corrId)
+                    assertContains("Completed", it.status)
+                },
+            )
+        }
+    }
+
     @Test
     fun `completed full-sync registers timestamp in last-completed-full-sync cache`() {
         val correlationId = "last-sync-corr-id"
@@ -458,6 +511,7 @@ class SyncTrackerServiceTest {
         type: SyncType = SyncType.FULL,
         corrId: String = UUID.randomUUID().toString(),
         totalSize: Long = 10L,
+        offset: Long = 0,
     ): EntityConsumerRecord {
         val headers = RecordHeaders()
         val timestampBytes =
@@ -487,7 +541,7 @@ class SyncTrackerServiceTest {
                 ConsumerRecord<String, Any?>(
                     "test-topic",
                     0,
-                    0,
+                    offset,
                     timestamp,
                     TimestampType.CREATE_TIME,
                     NULL_SIZE,
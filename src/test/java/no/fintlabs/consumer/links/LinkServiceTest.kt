@@ -62,7 +62,30 @@ class LinkServiceTest {
     @Test
     fun `toResources throws NPE when resources is null`() {
         assertThrows<NullPointerException> {
-            linkService.toResources("elev", null, 0, 10, 0)
+            linkService.toResources("elev", null, 0, 10, 0, 0, null, null, null)
+        }
+    }
+
+    @Nested
+    inner class Pagination {
+        @Test
+        fun `next cursor link reads the page with the same filter and sinceTimeStamp`() {
+            val resources =
+                linkService.toResources("elev", emptyList(), 0, 10, 42, 1000, "navn eq 'Ola'", "c1", "c2")
+
+            val next = resources.links["next"]!!.single().href
+            assertEquals(
+                "$elevResourceUrl?sinceTimeStamp=1000&\$filter=navn%20eq%20'Ola'&cursor=c2&size=10",
+                next,
+            )
+        }
+
+        @Test
+        fun `links of an unfiltered page carry no filter or sinceTimeStamp`() {
+            val resources = linkService.toResources("elev", emptyList(), 0, 10, 42, 0, null, null, "c2")
+
+            assertEquals("$elevResourceUrl?offset=0&size=10", resources.links["self"]!!.single().href)
+            assertEquals("$elevResourceUrl?cursor=c2&size=10", resources.links["next"]!!.single().href)
         }
     }
 
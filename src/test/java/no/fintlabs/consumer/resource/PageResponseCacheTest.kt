@@ -0,0 +1,129 @@
+package no.fintlabs.consumer.resource
+
+import com.fasterxml.jackson.databind.ObjectWriter
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import no.fintlabs.cache.CacheVersion
+import no.fintlabs.consumer.config.CacheProperties
+import no.fintlabs.consumer.config.ConsumerConfiguration
+import no.fintlabs.consumer.config.OrgId
+import no.fintlabs.consumer.filter.OpaFieldAdvice
+import no.fintlabs.model.resource.FintResources
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpHeaders
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest
+import org.springframework.mock.web.server.MockServerWebExchange
+import reactor.core.publisher.Mono
+import java.util.zip.GZIPInputStream
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class PageResponseCacheTest {
+    private val meterRegistry = SimpleMeterRegistry()
+    private var serialized = 0
+    private val writer =
+        mockk<ObjectWriter> {
+            every { writeValueAsBytes(any()) } answers { """{"page":${++serialized}}""".toByteArray() }
+        }
+    private val opaFieldAdvice =
+        mockk<OpaFieldAdvice> {
+            every { selectionOf(any()) } returns null
+            every { writerFor(any(), any()) } returns writer
+        }
+    private val configuration = mockk<ConsumerConfiguration> { every { orgId } returns OrgId.from("org-123") }
+    private val resourceService =
+        mockk<ResourceService> {
+            every { getEncodedResources<Any>("elev", 10, 0, 0, null, null, null, null, any()) } answers {
+                Mono.just(lastArg<(FintResources) -> Any>()(FintResources()))
+            }
+        }
+    private val key = PageResponseCache.PageKey("elev", 10, 0, 0, null, null)
+
+    private fun pageResponseCache(enabled: Boolean = true) =
+        PageResponseCache(
+            CacheProperties(responseCache = CacheProperties.ResponseCache(enabled = enabled)),
+            opaFieldAdvice,
+            meterRegistry,
+            configuration,
+            resourceService,
+        )
+
+    @Test
+    fun `page is served again while the cache version is unchanged`() {
+        val pageResponseCache = pageResponseCache()
+
+        val first = pageResponseCache.getPage(exchange(), key, CacheVersion(1, 5)).block()!!
+        val second = pageResponseCache.getPage(exchange(), key, CacheVersion(1, 5)).block()!!
+
+        assertEquals(1, serialized)
+        assertContentEquals(first.body, second.body)
+        assertEquals("""{"page":1}""", String(second.body!!))
+        assertEquals(
+            1.0,
+            meterRegistry
+                .get("core.response.cache.requests")
+                .tag("result", "hit")
+                .counter()
+                .count(),
+        )
+        assertEquals(10.0, meterRegistry.get("core.response.cache.saved.bytes").counter().count())
+    }
+
+    @Test
+    fun `page is read again once the cache version advances`() {
+        val pageResponseCache = pageResponseCache()
+
+        pageResponseCache.getPage(exchange(), key, CacheVersion(1, 5)).block()
+        val advanced = pageResponseCache.getPage(exchange(), key, CacheVersion(1, 6)).block()!!
+        val otherEpoch = pageResponseCache.getPage(exchange(), key, CacheVersion(2, 6)).block()!!
+
+        assertEquals(3, serialized)
+        assertEquals("""{"page":2}""", String(advanced.body!!))
+        assertEquals("""{"page":3}""", String(otherEpoch.body!!))
+        assertEquals(
+            3.0,
+            meterRegistry
+                .get("core.response.cache.requests")
+                .tag("result", "miss")
+                .counter()
+                .count(),
+        )
+    }
+
+    @Test
+    fun `gzip copy is sent to clients accepting gzip`() {
+        val pageResponseCache = pageResponseCache()
+
+        val plain = pageResponseCache.getPage(exchange(), key, CacheVersion(1, 5)).block()!!
+        val gzipped = pageResponseCache.getPage(exchange("gzip, deflate"), key, CacheVersion(1, 5)).block()!!
+
+        assertNull(plain.headers.getFirst(HttpHeaders.CONTENT_ENCODING))
+        assertEquals("gzip", gzipped.headers.getFirst(HttpHeaders.CONTENT_ENCODING))
+        assertEquals(listOf(HttpHeaders.ACCEPT_ENCODING), gzipped.headers.vary)
+        assertContentEquals(plain.body, GZIPInputStream(gzipped.body!!.inputStream()).readBytes())
+    }
+
+    @Test
+    fun `pages are read through the shared page reads and only kept when enabled`() {
+        val pageResponseCache = pageResponseCache(enabled = false)
+
+        pageResponseCache.getPage(exchange(), key, CacheVersion(1, 5)).block()
+        val second = pageResponseCache.getPage(exchange("gzip"), key, CacheVersion(1, 5)).block()!!
+
+        assertEquals(2, serialized)
+        assertNull(second.headers.getFirst(HttpHeaders.CONTENT_ENCODING))
+        verify(
+            exactly = 2,
+        ) { resourceService.getEncodedResources<Any>("elev", 10, 0, 0, null, null, null, null, any()) }
+    }
+
+    private fun exchange(acceptEncoding: String? = null): MockServerWebExchange =
+        MockServerWebExchange.from(
+            MockServerHttpRequest
+                .get("/elev")
+                .apply { acceptEncoding?.let { header(HttpHeaders.ACCEPT_ENCODING, it) } },
+        )
+}
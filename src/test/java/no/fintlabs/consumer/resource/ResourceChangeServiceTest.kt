@@ -0,0 +1,168 @@
+package no.fintlabs.consumer.resource
+
+import io.mockk.every
+import io.mockk.mockk
+import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.FintCache
+import no.fintlabs.consumer.config.ChangeStreamProperties
+import no.fintlabs.consumer.resource.dto.LastUpdatedResponse
+import no.fintlabs.consumer.resource.dto.RemovedResource
+import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
+import no.novari.fint.model.resource.FintResource
+import no.novari.fint.model.resource.utdanning.elev.ElevResource
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ResourceChangeServiceTest {
+    private var cache = FintCache<FintResource>(createdAt = 0)
+    private val cacheService = mockk<CacheService> { every { getCache("elev") } answers { cache } }
+
+    @Test
+    fun `subscriber catches up from the cache and then receives live changes`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties())
+        cache.put("A", createElevResource("A"), 1)
+        cache.put("B", createElevResource("B"), 2)
+        cache.put("C", createElevResource("C"), 3)
+        cache.remove("B", 4)
+
+        val events = service.subscribe("elev", 2, null, null)
+        val removed = createElevResource("D")
+        service.publishUpdate("elev", createElevResource("E"), 5)
+        service.publishRemoval("elev", "D", removed, 6)
+
+        val received = events.take(4).collectList().block(Duration.ofSeconds(5))!!
+
+        assertEquals(listOf("updated", "removed", "updated", "removed"), received.map { it.event() })
+        assertEquals(listOf(null, "0", "1", "2"), received.map { it.id()?.substringAfter('-') })
+        assertEquals("C", (received[0].data() as ElevResource).systemId.identifikatorverdi)
+        assertEquals(RemovedResource("B", mapOf("systemid" to "B"), 4), received[1].data())
+        assertEquals(RemovedResource("D", mapOf("systemid" to "D"), 6), received[3].data())
+    }
+
+    @Test
+    fun `subscriber is told to resync when changes that old are no longer known`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties())
+        cache = FintCache(createdAt = 10)
+        cache.put("A", createElevResource("A"), 10)
+
+        val received = service.subscribe("elev", 5, null, null).blockFirst(Duration.ofSeconds(5))!!
+
+        assertEquals("resync", received.event())
+        assertEquals(LastUpdatedResponse(10), received.data())
+    }
+
+    @Test
+    fun `stream of a subscriber that falls behind its buffer is closed`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties(bufferSize = 4))
+        val events = service.subscribe("elev", null, null, null)
+
+        (1..10).forEach { service.publishUpdate("elev", createElevResource("elev-$it"), it.toLong()) }
+        service.publishUpdate("elev", createElevResource("late"), 11)
+
+        val received = events.collectList().block(Duration.ofSeconds(5))!!
+        assertEquals(listOf("1", "2", "3", "4"), received.map { it.id()!!.substringAfter('-') })
+    }
+
+    @Test
+    fun `reconnecting subscriber gets the changes it missed in the order they were sent`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties())
+        val first = service.subscribe("elev", null, null, null)
+        // Applied out of timestamp order, as changes from different partitions can be.
+        service.publishUpdate("elev", createElevResource("A"), 20)
+        val lastReceived = first.blockFirst(Duration.ofSeconds(5))!!
+        service.publishUpdate("elev", createElevResource("B"), 10)
+        service.publishRemoval("elev", "A", createElevResource("A"), 15)
+
+        val received =
+            service
+                .subscribe("elev", null, lastReceived.id(), null)
+                .take(2)
+                .collectList()
+                .block(Duration.ofSeconds(5))!!
+
+        assertEquals(listOf("updated", "removed"), received.map { it.event() })
+        assertEquals("B", (received[0].data() as ElevResource).systemId.identifikatorverdi)
+        assertEquals(listOf("2", "3"), received.map { it.id()!!.substringAfter('-') })
+    }
+
+    @Test
+    fun `reconnecting subscriber is told to resync when the changes it missed are no longer kept`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties(retainedChanges = 2))
+        cache.put("A", createElevResource("A"), 10)
+        val first = service.subscribe("elev", null, null, null)
+        service.publishUpdate("elev", createElevResource("A"), 10)
+        val lastReceived = first.blockFirst(Duration.ofSeconds(5))!!
+        (11..13).forEach { service.publishUpdate("elev", createElevResource("elev-$it"), it.toLong()) }
+
+        val resumed = service.subscribe("elev", null, lastReceived.id(), null).blockFirst(Duration.ofSeconds(5))!!
+        val foreign = service.subscribe("elev", null, "1-1", null).blockFirst(Duration.ofSeconds(5))!!
+
+        assertEquals("resync", resumed.event())
+        assertEquals(LastUpdatedResponse(10), resumed.data())
+        assertEquals("resync", foreign.event())
+    }
+
+    @Test
+    fun `publishing does not wait for changes being offered to subscribers`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties())
+        val offering = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val received = Collections.synchronizedList(ArrayList<String>())
+        service.subscribe("elev", null, null, null).subscribe { event ->
+            if (offering.count > 0) {
+                offering.countDown()
+                release.await(5, TimeUnit.SECONDS)
+            }
+            received.add(event.id()!!.substringAfter('-'))
+        }
+
+        val first = Thread.ofVirtual().start { service.publishUpdate("elev", createElevResource("A"), 1) }
+        assertTrue(offering.await(5, TimeUnit.SECONDS))
+        val second = Thread.ofVirtual().start { service.publishUpdate("elev", createElevResource("B"), 2) }
+
+        assertTrue(second.join(Duration.ofSeconds(5)))
+        assertEquals(emptyList(), received.toList())
+
+        release.countDown()
+        first.join(Duration.ofSeconds(5))
+        assertEquals(listOf("1", "2"), received.toList())
+    }
+
+    @Test
+    fun `resource has subscribers only while somebody is subscribed`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties())
+        assertFalse(service.hasSubscribers("elev"))
+
+        val events = service.subscribe("Elev", null, null, null)
+        val subscription = events.subscribe()
+        assertTrue(service.hasSubscribers("elev"))
+
+        subscription.dispose()
+        assertFalse(service.hasSubscribers("elev"))
+    }
+
+    @Test
+    fun `reconnecting subscriber is told to resync when a change may have gone unpublished`() {
+        val service = ResourceChangeService(cacheService, ChangeStreamProperties())
+        val first = service.subscribe("elev", null, null, null)
+        service.publishUpdate("elev", createElevResource("A"), 10)
+        val lastReceived = first.blockFirst(Duration.ofSeconds(5))!!
+        assertFalse(service.hasSubscribers("elev"))
+        service.publishUpdate("elev", createElevResource("B"), 11)
+
+        val resumed = service.subscribe("elev", null, lastReceived.id(), null).blockFirst(Duration.ofSeconds(5))!!
+
+        assertEquals("resync", resumed.event())
+    }
+
+    private fun createElevResource(id: String): ElevResource =
+        ElevResource().apply {
+            systemId = Identifikator().apply { identifikatorverdi = id }
+        }
+}
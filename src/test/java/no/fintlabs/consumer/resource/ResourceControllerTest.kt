@@ -2,8 +2,12 @@ package no.fintlabs.consumer.resource
 
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.verify
 import no.fintlabs.adapter.models.event.EventBodyResponse
+import no.fintlabs.cache.CacheVersion
 import no.fintlabs.consumer.config.ConsumerConfiguration
+import no.fintlabs.consumer.filter.OpaFieldAdvice
+import no.fintlabs.consumer.filter.OpaFieldSelection
 import no.fintlabs.consumer.kafka.event.RequestFintEventService
 import no.fintlabs.consumer.resource.event.RequestAccepted
 import no.fintlabs.consumer.resource.event.RequestFailed
@@ -15,11 +19,18 @@ import no.fintlabs.consumer.resource.event.ResourceDeleted
 import no.novari.fint.model.felles.kompleksedatatyper.Identifikator
 import no.novari.fint.model.resource.utdanning.vurdering.ElevfravarResource
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotEquals
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertNotNull
 import org.junit.jupiter.api.assertNull
 import org.springframework.http.HttpStatus
+import org.springframework.http.ResponseEntity
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest
+import org.springframework.mock.web.server.MockServerWebExchange
+import reactor.core.publisher.Mono
 import java.net.URI
 import java.util.UUID
 
@@ -28,6 +39,9 @@ class ResourceControllerTest {
     private val requestFintEventProducer: RequestFintEventService = mockk()
     private val requestStatusService: RequestStatusService = mockk()
     private val consumerConfig: ConsumerConfiguration = mockk()
+    private val resourceChangeService: ResourceChangeService = mockk()
+    private val pageResponseCache: PageResponseCache = mockk()
+    private val opaFieldAdvice: OpaFieldAdvice = mockk { every { selectionOf(any()) } returns null }
     private lateinit var sut: ResourceController
 
     private val resourceName = "elevfravar"
@@ -35,7 +49,16 @@ class ResourceControllerTest {
 
     @BeforeEach
     fun setUp() {
-        sut = ResourceController(resourceService, requestFintEventProducer, requestStatusService, consumerConfig)
+        sut =
+            ResourceController(
+                resourceService,
+                requestFintEventProducer,
+                requestStatusService,
+                consumerConfig,
+                resourceChangeService,
+                pageResponseCache,
+                opaFieldAdvice,
+            )
     }
 
     @Nested
@@ -168,4 +191,94 @@ class ResourceControllerTest {
             assertNull(responseEntity.headers.location)
         }
     }
+
+    @Nested
+    inner class ConditionalGet {
+        private val version = CacheVersion(epoch = 7, version = 42)
+
+        @Test
+        fun `should return 304 without reading the resource when the ETag matches`() {
+            every { resourceService.getResourceVersion(resourceName, "systemid", "123") } returns version
+            val first = MockServerWebExchange.from(MockServerHttpRequest.get("/$resourceName/systemid/123"))
+            every { resourceService.getResourceById(resourceName, "systemid", "123", null) } returns
+                ElevfravarResource()
+            sut.getResourceById(resourceName, "systemid", "123", null, first)
+            val eTag = first.response.headers.eTag!!
+
+            val exchange =
+                MockServerWebExchange.from(
+                    MockServerHttpRequest.get("/$resourceName/systemid/123").ifNoneMatch(eTag),
+                )
+            val responseEntity = sut.getResourceById(resourceName, "systemid", "123", null, exchange)
+
+            assertEquals(HttpStatus.NOT_MODIFIED, responseEntity.statusCode)
+            assertEquals(eTag, exchange.response.headers.eTag)
+            verify(exactly = 1) { resourceService.getResourceById(any(), any(), any(), any()) }
+        }
+
+        @Test
+        fun `should return 304 without reading the collection when the ETag matches`() {
+            every { resourceService.getCollectionVersion(resourceName) } returns version
+            val exchange =
+                MockServerWebExchange.from(MockServerHttpRequest.get("/$resourceName").ifNoneMatch("W/\"7-16\""))
+
+            val response = sut.getResource(resourceName, 0, 0, 0, null, null, null, exchange).block()!!
+
+            assertEquals(HttpStatus.NOT_MODIFIED, response.statusCode)
+            verify(exactly = 0) { pageResponseCache.getPage(any(), any(), any()) }
+        }
+
+        @Test
+        fun `should read the collection when it has changed since the ETag`() {
+            every { resourceService.getCollectionVersion(resourceName) } returns version
+            every { pageResponseCache.getPage(any(), any(), version) } returns
+                Mono.just(ResponseEntity.ok("{}".toByteArray()))
+            val exchange =
+                MockServerWebExchange.from(MockServerHttpRequest.get("/$resourceName").ifNoneMatch("W/\"7-1\""))
+
+            val response = sut.getResource(resourceName, 0, 0, 0, null, null, null, exchange).block()!!
+
+            assertEquals(HttpStatus.OK, response.statusCode)
+            assertNotNull(response.body)
+            assertFalse(exchange.isNotModified)
+            assertEquals("W/\"7-16\"", exchange.response.headers.eTag)
+        }
+
+        @Test
+        fun `should not answer with 304 when the OPA field selection differs from the ETag's`() {
+            every { resourceService.getCollectionVersion(resourceName) } returns version
+            every { pageResponseCache.getPage(any(), any(), version) } returns
+                Mono.just(ResponseEntity.ok("{}".toByteArray()))
+            every { opaFieldAdvice.selectionOf(any()) } returns OpaFieldSelection(setOf("systemId"), emptySet())
+            val first = MockServerWebExchange.from(MockServerHttpRequest.get("/$resourceName"))
+            sut.getResource(resourceName, 0, 0, 0, null, null, null, first).block()
+            val eTag = first.response.headers.eTag!!
+
+            every { opaFieldAdvice.selectionOf(any()) } returns OpaFieldSelection(setOf("systemId", "navn"), emptySet())
+            val exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/$resourceName").ifNoneMatch(eTag))
+            val response = sut.getResource(resourceName, 0, 0, 0, null, null, null, exchange).block()!!
+
+            assertEquals(HttpStatus.OK, response.statusCode)
+            assertFalse(exchange.isNotModified)
+            assertNotEquals(eTag, exchange.response.headers.eTag)
+        }
+
+        @Test
+        fun `should not answer If-Modified-Since, whose resolution misses changes within the second`() {
+            every { resourceService.getCollectionVersion(resourceName) } returns version
+            every { pageResponseCache.getPage(any(), any(), version) } returns
+                Mono.just(ResponseEntity.ok("{}".toByteArray()))
+            val exchange =
+                MockServerWebExchange.from(
+                    MockServerHttpRequest.get("/$resourceName").ifModifiedSince(System.currentTimeMillis()),
+                )
+
+            val response = sut.getResource(resourceName, 0, 0, 0, null, null, null, exchange).block()!!
+
+            assertEquals(HttpStatus.OK, response.statusCode)
+            assertNotNull(response.body)
+            assertFalse(exchange.isNotModified)
+            assertEquals(-1, exchange.response.headers.lastModified)
+        }
+    }
 }
@@ -2,18 +2,42 @@ package no.fintlabs.consumer.resource
 
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.verify
+import no.fintlabs.cache.CacheChanges
+import no.fintlabs.cache.CachePage
 import no.fintlabs.cache.CacheService
+import no.fintlabs.cache.CacheVersion
 import no.fintlabs.cache.FintCache
+import no.fintlabs.cache.PageCursor
+import no.fintlabs.cache.Removal
+import no.fintlabs.consumer.config.BatchLookupProperties
 import no.fintlabs.consumer.links.LinkService
+import no.fintlabs.consumer.resource.dto.RemovedResource
+import no.fintlabs.consumer.resource.dto.ResourceBatchResponse
+import no.fintlabs.consumer.resource.dto.ResourceChangesResponse
+import no.fintlabs.consumer.resource.dto.SerializedResource
 import no.fintlabs.model.resource.FintResources
+import no.fintlabs.resource.server.config.OpaProperties
 import no.novari.fint.model.resource.FintResource
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.springframework.http.HttpStatus
+import org.springframework.web.server.ResponseStatusException
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertContentEquals
+import kotlin.test.assertIs
 
 class ResourceServiceTest {
     private val linkService = mockk<LinkService>()
     private val cacheService = mockk<CacheService>()
-    private val resourceService = ResourceService(linkService, cacheService)
+    private val opaProperties = mockk<OpaProperties>()
+    private val resourceService =
+        ResourceService(linkService, cacheService, opaProperties, BatchLookupProperties(maxIds = 3))
 
     @Test
     fun `getResources fetches from cache and transforms through linkService`() {
@@ -21,13 +45,225 @@ class ResourceServiceTest {
         val resources = listOf(mockk<FintResource>())
         val expected = mockk<FintResources>()
 
+        every { opaProperties.enabled } returns false
         every { cacheService.getCache("employee") } returns cache
-        every { cache.getList(10L, 0L, 0L, null) } returns resources
-        every { cache.size } returns 100
-        every { linkService.toResources("employee", resources, 0, 10, 100) } returns expected
+        every { cache.currentVersion() } returns CacheVersion(1, 1)
+        every { cache.storesSerializedJson } returns false
+        every { cache.getPage(10L, 0L, 0L, null, null) } returns CachePage(resources, PageCursor(5L, "id-5"), 42)
+        every {
+            linkService.toResources("employee", resources, 0, 10, 42, 0L, null, null, PageCursor(5L, "id-5").encode())
+        } returns expected
 
         val result = resourceService.getResources("employee", 10, 0, 0L, null)
 
         assertEquals(expected, result)
     }
+
+    @Test
+    fun `getResources serves stored json when the cache is pre-serialized`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val json = "{}".toByteArray()
+        val expected = mockk<FintResources>()
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.currentVersion() } returns CacheVersion(1, 1)
+        every { cache.storesSerializedJson } returns true
+        every { cache.getSerializedPage(10L, 0L, 0L, null, null) } returns CachePage(listOf(json), null, 100)
+        every { linkService.toResources("employee", any(), 0, 10, 100, 0L, null, null, null) } answers {
+            val entry = assertIs<SerializedResource>(secondArg<List<Any>>().single())
+            assertContentEquals(json, entry.json)
+            expected
+        }
+
+        val result = resourceService.getResources("employee", 10, 0, 0L, null)
+
+        assertEquals(expected, result)
+    }
+
+    @Test
+    fun `getResources resumes from the decoded cursor`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val cursor = PageCursor(5L, "id-5")
+        val expected = mockk<FintResources>()
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.currentVersion() } returns CacheVersion(1, 1)
+        every { cache.storesSerializedJson } returns false
+        every { cache.getPage(10L, 0L, 0L, null, cursor) } returns CachePage(emptyList(), null, 100)
+        every { linkService.toResources("employee", emptyList(), 0, 10, 100, 0L, null, cursor.encode(), null) } returns
+            expected
+
+        val result = resourceService.getResources("employee", 10, 0, 0L, null, cursor.encode())
+
+        assertEquals(expected, result)
+    }
+
+    @Test
+    fun `concurrent identical page requests share one read and encoding without waiting on their thread`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val page = mockk<FintResources>()
+        val readStarted = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val encodings = AtomicInteger()
+        val encode = { _: FintResources -> "page-${encodings.incrementAndGet()}".toByteArray() }
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns false
+        every { cache.currentVersion() } returns CacheVersion(1, 1)
+        every { cache.getPage(10L, 0L, 0L, null, null) } answers {
+            readStarted.countDown()
+            release.await(5, TimeUnit.SECONDS)
+            CachePage(emptyList(), null, 0)
+        }
+        every { linkService.toResources("employee", emptyList(), 0, 10, 0, 0L, null, null, null) } returns page
+
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            val first =
+                executor.submit<ByteArray> {
+                    resourceService.getEncodedResources("employee", 10, 0, 0L, null, null, null, null, encode).block()
+                }
+            readStarted.await(5, TimeUnit.SECONDS)
+            // Returns right away although the page is still being read.
+            val second = resourceService.getEncodedResources("employee", 10, 0, 0L, null, null, null, null, encode)
+            release.countDown()
+
+            assertContentEquals("page-1".toByteArray(), first.get(5, TimeUnit.SECONDS))
+            assertContentEquals("page-1".toByteArray(), second.block(Duration.ofSeconds(5)))
+            assertEquals(1, encodings.get())
+            verify(exactly = 1) { cache.getPage(10L, 0L, 0L, null, null) }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun `page requests with different encodings are read and encoded on their own`() {
+        val cache = mockk<FintCache<FintResource>>()
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns false
+        every { cache.currentVersion() } returns CacheVersion(1, 1)
+        every { cache.getPage(10L, 0L, 0L, null, null) } returns CachePage(emptyList(), null, 0)
+        every { linkService.toResources("employee", emptyList(), 0, 10, 0, 0L, null, null, null) } returns mockk()
+
+        val plain = resourceService.getEncodedResources("employee", 10, 0, 0L, null, null, null, null) { "plain" }
+        val pruned = resourceService.getEncodedResources("employee", 10, 0, 0L, null, null, null, "opa") { "pruned" }
+
+        assertEquals("plain", plain.block())
+        assertEquals("pruned", pruned.block())
+    }
+
+    @Test
+    fun `streamResources streams stored json when the cache is pre-serialized`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val json = listOf("{\"a\":1}".toByteArray(), "{\"b\":2}".toByteArray())
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns true
+        every { cache.streamSerialized(5L, null) } answers { json.stream() }
+
+        val result = resourceService.streamResources("employee", 5L, null).collectList().block()!!
+
+        assertEquals(json, result.map { assertIs<SerializedResource>(it).json })
+        verify(exactly = 0) { cache.stream(any(), any()) }
+    }
+
+    @Test
+    fun `streamResources streams resource objects when OPA filtering is enabled`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val resources = listOf(mockk<FintResource>(), mockk<FintResource>())
+
+        every { opaProperties.enabled } returns true
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns true
+        every { cache.stream(0L, "navn eq 'x'") } answers { resources.stream() }
+
+        val result = resourceService.streamResources("employee", 0L, "navn eq 'x'").collectList().block()
+
+        assertEquals(resources, result)
+    }
+
+    @Test
+    fun `getChanges returns written and removed resources`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val resource = mockk<FintResource>()
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns false
+        every { cache.getChanges(5L) } returns
+            CacheChanges(8L, listOf(resource), listOf(Removal("abc", 7L, mapOf("systemid" to "123"))))
+
+        val result = resourceService.getChanges("employee", 5L)
+
+        assertEquals(
+            ResourceChangesResponse(
+                8L,
+                listOf(resource),
+                listOf(RemovedResource("abc", mapOf("systemid" to "123"), 7L)),
+            ),
+            result,
+        )
+    }
+
+    @Test
+    fun `getChanges answers gone when the removals are no longer known`() {
+        val cache = mockk<FintCache<FintResource>>()
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns false
+        every { cache.getChanges(5L) } returns null
+
+        val exception = assertThrows<ResponseStatusException> { resourceService.getChanges("employee", 5L) }
+
+        assertEquals(HttpStatus.GONE, exception.statusCode)
+    }
+
+    @Test
+    fun `getResourcesByIds returns the found resources and the missing identifiers`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val resource = mockk<FintResource>()
+
+        every { opaProperties.enabled } returns false
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns false
+        every { cache.getAllByIdField("systemid", listOf("A", "B")) } returns mapOf("A" to resource)
+
+        val result = resourceService.getResourcesByIds("employee", "systemid", listOf("A", "B", "A"))
+
+        assertEquals(ResourceBatchResponse(listOf(resource), listOf("B")), result)
+    }
+
+    @Test
+    fun `getResourcesByIds rejects batches above the limit`() {
+        val exception =
+            assertThrows<ResponseStatusException> {
+                resourceService.getResourcesByIds("employee", "systemid", listOf("A", "B", "C", "D"))
+            }
+
+        assertEquals(HttpStatus.BAD_REQUEST, exception.statusCode)
+    }
+
+    @Test
+    fun `getResourceById falls back to the resource object when OPA filtering is enabled`() {
+        val cache = mockk<FintCache<FintResource>>()
+        val resource = mockk<FintResource>()
+
+        every { opaProperties.enabled } returns true
+        every { cacheService.getCache("employee") } returns cache
+        every { cache.storesSerializedJson } returns true
+        every { cache.getByIdField("systemid", "123") } returns resource
+
+        val result = resourceService.getResourceById("employee", "systemid", "123")
+
+        assertEquals(resource, result)
+        verify(exactly = 0) { cache.getSerializedByIdField(any(), any()) }
+    }
 }